@@ -0,0 +1,80 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm.benchmark;
+
+import java.util.Collection;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs DecoderBenchmark.decode() under JMH's GC profiler and fails unless
+ * decoding allocates nothing per frame, as the listener's receive loop
+ * relies on:
+ * <p/>
+ * java -cp benchmarks/target/benchmarks.jar:esbcontent/lib/norm-1.0.0.jar
+ * com.dozersoftware.norm.benchmark.AllocationCheck
+ * <p/>
+ * gc.alloc.rate.norm is averaged over the frames of an invocation, so
+ * anything allocated per stream rather than per frame stays well under
+ * the limit.
+ */
+public class AllocationCheck {
+
+	/* Bytes per frame; a single object per frame is at least 16 */
+	private static final double LIMIT = 1.0;
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.include(DecoderBenchmark.class.getName() + ".decode$")
+				.addProfiler(GCProfiler.class)
+				.warmupIterations(3)
+				.measurementIterations(3)
+				.forks(1)
+				.build();
+		Collection<RunResult> results = new Runner(options).run();
+		boolean failed = results.isEmpty();
+		for (RunResult result : results) {
+			Result<?> norm = result.getSecondaryResults().get(
+					"gc.alloc.rate.norm");
+			double bytes = norm == null ? Double.NaN : norm.getScore();
+			String params = result.getParams().getParam("bodySize") + "/"
+					+ result.getParams().getParam("readSize");
+			if (!(bytes < LIMIT)) {
+				System.err.println("decode() bodySize/readSize " + params
+						+ " allocates " + bytes + " B/op");
+				failed = true;
+			} else {
+				System.out.println("decode() bodySize/readSize " + params
+						+ ": " + bytes + " B/op");
+			}
+		}
+		if (failed) {
+			System.exit(1);
+		}
+	}
+}
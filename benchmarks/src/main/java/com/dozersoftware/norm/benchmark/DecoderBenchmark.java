@@ -0,0 +1,142 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.dozersoftware.norm.NormChatEnvelope;
+import com.dozersoftware.norm.NormFrameDecoder;
+import com.dozersoftware.norm.NormFrameEncoder;
+import com.dozersoftware.norm.NormReassembler;
+
+/**
+ * The listener's receive path for one NORM stream: decoding frames from
+ * NormStream reads of a given size, then putting fragments back together
+ * and parsing the envelope as NormGatewayListener does before queueing a
+ * frame.
+ * <p/>
+ * Scores are per chat line; lines over a packet arrive as several frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+
+	private static final int FRAMES = 1000;
+	private static final int MAX_PACKET_LENGTH = 2048;
+
+	@Param( { "64", "512", "4096" })
+	public int bodySize;
+
+	/* Bytes a NormStream read returns at most */
+	@Param( { "37", "1400", "65536" })
+	public int readSize;
+
+	/* Replays a recorded stream in reads of at most readSize bytes */
+	private final class ArraySource implements NormFrameDecoder.Source {
+		byte[] data;
+		int position;
+
+		public boolean seekMsgStart() {
+			return position < data.length;
+		}
+
+		public int read(byte[] buffer, int offset, int length) {
+			int n = Math.min(Math.min(length, readSize), data.length
+					- position);
+			System.arraycopy(data, position, buffer, offset, n);
+			position += n;
+			return n;
+		}
+	}
+
+	private ArraySource source;
+	private NormFrameDecoder decoder;
+	private NormReassembler.Stream frames;
+	private NormFrameDecoder.FrameHandler sink;
+	private final NormChatEnvelope envelope = new NormChatEnvelope();
+	private Blackhole blackhole;
+
+	@Setup
+	public void setup(Blackhole bh) {
+		blackhole = bh;
+		source = new ArraySource();
+		source.data = Payloads.stream(new NormFrameEncoder(MAX_PACKET_LENGTH),
+				bodySize, FRAMES);
+		decoder = new NormFrameDecoder(source, MAX_PACKET_LENGTH);
+		sink = new NormFrameDecoder.FrameHandler() {
+			public void onFrame(byte[] buffer, int offset, int length) {
+				blackhole.consume(buffer[offset + length - 1]);
+			}
+		};
+		frames = new NormReassembler(64, 1024 * 1024, 30000)
+				.open(new NormFrameDecoder.FrameHandler() {
+					public void onFrame(byte[] buffer, int offset, int length) {
+						// As RxSession.onFrame() with text payloads
+						if (envelope.parse(buffer, offset, length)) {
+							blackhole.consume(envelope.getType());
+							blackhole.consume(envelope.getSender());
+						}
+						blackhole.consume(new String(buffer, offset, length,
+								Payloads.US_ASCII));
+					}
+				});
+	}
+
+	/**
+	 * Frame decoding alone.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int decode() {
+		source.position = 0;
+		return decoder.decode(sink);
+	}
+
+	/**
+	 * Decoding, reassembly, envelope parsing and the payload String.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int receive() {
+		source.position = 0;
+		return decoder.decode(frames);
+	}
+}
@@ -0,0 +1,104 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm.benchmark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.soa.esb.message.Message;
+import org.jboss.soa.esb.message.format.MessageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dozersoftware.norm.NormGatewayListener;
+
+/**
+ * Building the ESB message for a received frame or batch, as the listener's
+ * delivery workers do before ServiceInvoker.deliverAsync().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EsbMessageBenchmark {
+
+	@Param( { "text", "bytes" })
+	public String payloadType;
+
+	@Param( { "64", "512" })
+	public int bodySize;
+
+	@Param( { "16" })
+	public int batchSize;
+
+	private Serializable payload;
+	private MessageFactory factory;
+
+	@Setup
+	public void setup() {
+		byte[] line = Payloads.chatLine(bodySize);
+		payload = "bytes".equals(payloadType) ? line : new String(line,
+				Payloads.US_ASCII);
+		factory = MessageFactory.getInstance();
+	}
+
+	/**
+	 * One frame with the envelope properties, as processMessage().
+	 */
+	@Benchmark
+	public Message frame() {
+		Message message = factory.getMessage();
+		message.getBody().add(payload);
+		message.getProperties().setProperty(
+				NormGatewayListener.CHAT_TYPE_PROPERTY, "chat");
+		message.getProperties().setProperty(
+				NormGatewayListener.CHAT_SENDER_PROPERTY, "bench");
+		return message;
+	}
+
+	/**
+	 * A list of frames in one message, as processBatch().
+	 */
+	@Benchmark
+	public Message batch() {
+		ArrayList<Serializable> batch = new ArrayList<Serializable>(batchSize);
+		for (int i = 0; i < batchSize; i++) {
+			batch.add(payload);
+		}
+		Message message = factory.getMessage();
+		message.getBody().add(batch);
+		return message;
+	}
+}
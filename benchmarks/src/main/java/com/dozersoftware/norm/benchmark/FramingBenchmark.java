@@ -0,0 +1,97 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dozersoftware.norm.NormChatEnvelope;
+import com.dozersoftware.norm.NormFrameEncoder;
+
+/**
+ * The work NormProcessor.transmit() does before a message is queued for the
+ * NORM sender: encoding the normChat line and framing it, in fragments once
+ * it is larger than a packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+	/* Body length; 4096 does not fit one 2048 byte packet */
+	@Param( { "64", "512", "4096" })
+	public int bodySize;
+
+	private NormFrameEncoder encoder;
+	private String message;
+	private byte[] payload;
+	private byte[] frames;
+
+	@Setup
+	public void setup() {
+		encoder = new NormFrameEncoder(2048);
+		message = NormChatEnvelope.format("chat", "bench", Payloads
+				.text(bodySize));
+		payload = message.getBytes(Payloads.ISO_8859_1);
+		frames = new byte[encoder.encodedLength(payload, 0, payload.length)];
+	}
+
+	/**
+	 * As transmit(String): encode, then frame into a new array.
+	 */
+	@Benchmark
+	public byte[] transmit() {
+		byte[] bytes = message.getBytes(Payloads.ISO_8859_1);
+		return encoder.encode(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Framing alone, into a reused buffer.
+	 */
+	@Benchmark
+	public int encodeInto() {
+		return encoder.encode(payload, 0, payload.length, frames, 0);
+	}
+
+	/**
+	 * Formatting the MESSAGE envelope, as done for connect and disconnect.
+	 */
+	@Benchmark
+	public String format() {
+		return NormChatEnvelope.format("chat", "bench", message);
+	}
+}
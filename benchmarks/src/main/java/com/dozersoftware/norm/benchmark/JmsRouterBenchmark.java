@@ -0,0 +1,157 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.message.Message;
+import org.jboss.soa.esb.message.format.MessageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dozersoftware.norm.JMSRouter;
+import com.dozersoftware.norm.NormGatewayListener;
+
+/**
+ * JMSRouter.route() for a chat message against an embedded, non-persistent
+ * ActiveMQ broker reached through the in-VM transport, with a consumer
+ * draining the queue. The destination and connection factory are looked up
+ * through ActiveMQ's JNDI factory, so the router's session pool, producer
+ * cache and destination cache are all on the measured path.
+ * <p/>
+ * In micro-batch mode route() calls arriving while a commit is in flight
+ * share the next one, so commits only group messages with several threads
+ * routing at once, as there would be pipeline threads in the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class JmsRouterBenchmark {
+
+	private static final String BROKER_URL = "vm://norm-bench?create=false";
+	private static final String QUEUE = "norm_out";
+
+	/* serialized sends the whole ESB message, bytes normChat frames */
+	@Param( { "serialized", "bytes" })
+	public String envelope;
+
+	@Param( { "true", "false" })
+	public boolean cacheProducers;
+
+	@Param( { "1", "16" })
+	public int commitBatchSize;
+
+	@Param( { "256" })
+	public int bodySize;
+
+	private BrokerService broker;
+	private Connection connection;
+	private JMSRouter router;
+	private Message message;
+	private final AtomicLong received = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		broker = new BrokerService();
+		broker.setBrokerName("norm-bench");
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.start();
+		broker.waitUntilStarted();
+
+		connection = new ActiveMQConnectionFactory(BROKER_URL)
+				.createConnection();
+		Session session = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		MessageConsumer consumer = session.createConsumer(session
+				.createQueue(QUEUE));
+		consumer.setMessageListener(new MessageListener() {
+			public void onMessage(javax.jms.Message jmsMessage) {
+				received.incrementAndGet();
+			}
+		});
+		connection.start();
+
+		ConfigTree config = new ConfigTree("action");
+		config.setAttribute("jndiName", "dynamicQueues/" + QUEUE);
+		config.setAttribute("jndi-context-factory",
+				"org.apache.activemq.jndi.ActiveMQInitialContextFactory");
+		config.setAttribute("jndi-URL", BROKER_URL);
+		config.setAttribute("jndi-pkg-prefix", "org.apache.activemq.jndi");
+		config.setAttribute("connection-factory", "ConnectionFactory");
+		config.setAttribute(JMSRouter.PERSISTENT_ATTR, "false");
+		config.setAttribute("unwrap", "true");
+		config.setAttribute(JMSRouter.ENVELOPE, envelope);
+		config.setAttribute(JMSRouter.CACHE_PRODUCERS, String
+				.valueOf(cacheProducers));
+		config.setAttribute(JMSRouter.COMMIT_BATCH_SIZE, String
+				.valueOf(commitBatchSize));
+		router = new JMSRouter(config);
+
+		message = MessageFactory.getInstance().getMessage();
+		message.getBody().add(
+				new String(Payloads.chatLine(bodySize), Payloads.US_ASCII));
+		message.getProperties().setProperty(
+				NormGatewayListener.CHAT_TYPE_PROPERTY, "chat");
+		message.getProperties().setProperty(
+				NormGatewayListener.CHAT_SENDER_PROPERTY, "bench");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		router.destroy();
+		connection.close();
+		broker.stop();
+		broker.waitUntilStopped();
+	}
+
+	@Benchmark
+	public void route() throws Exception {
+		router.route(message);
+	}
+}
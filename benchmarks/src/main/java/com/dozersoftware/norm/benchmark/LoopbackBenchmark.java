@@ -0,0 +1,295 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm.benchmark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import mil.navy.nrl.norm.NormEvent;
+import mil.navy.nrl.norm.NormInstance;
+import mil.navy.nrl.norm.NormObject;
+import mil.navy.nrl.norm.NormSession;
+import mil.navy.nrl.norm.NormStream;
+import mil.navy.nrl.norm.enums.NormEventType;
+import mil.navy.nrl.norm.enums.NormFlushMode;
+import mil.navy.nrl.norm.enums.NormObjectType;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dozersoftware.norm.NormFrameDecoder;
+import com.dozersoftware.norm.NormFrameEncoder;
+import com.dozersoftware.norm.NormProcessor;
+import com.dozersoftware.norm.NormRuntime;
+import com.dozersoftware.norm.NormSender;
+
+/**
+ * End to end over a real NORM session: frames queued on a NormSender, sent
+ * to a multicast group with loopback on, received by a second session of
+ * the same instance and decoded. Both sessions use the given interface,
+ * normally the loopback one, so nothing leaves the host.
+ * <p/>
+ * roundTrip is the latency of one chat line; burst the throughput of lines
+ * sent back to back, which is where the flush policy shows. Needs the NORM
+ * native library on java.library.path and multicast enabled on the
+ * interface.
+ * <p/>
+ * The segments and messages counters give the NORM data segments sent and
+ * the chat lines sent in each iteration; segments per message is printed
+ * after it. NORM has no sent segment statistics, so segments are counted
+ * as the stream produces them: one for every full segment written and one
+ * for each flush with a partial segment pending.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+	private static final int BURST = 256;
+	private static final int MAX_PACKET_LENGTH = 2048;
+	private static final int SEGMENT_SIZE = 1400;
+	private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	@Param( { "lo" })
+	public String networkInterface;
+
+	@Param( { "224.1.2.3" })
+	public String address;
+
+	@Param( { "6103" })
+	public int port;
+
+	/* Fixed sender rate in bits per second */
+	@Param( { "100000000" })
+	public double txRate;
+
+	@Param( { "IMMEDIATE", "SIZE", "LINGER", "BATCH" })
+	public NormProcessor.FlushPolicy flushPolicy;
+
+	@Param( { "64", "1024" })
+	public int bodySize;
+
+	private NormInstance instance;
+	private NormSession txSession;
+	private NormSession rxSession;
+	private NormSender sender;
+	private Thread eventThread;
+	private byte[] frames;
+	private CountingStream counting;
+
+	/* Sent segments and messages, per iteration */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Segments {
+		public long segments;
+		public long messages;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			segments = 0;
+			messages = 0;
+		}
+
+		@TearDown(Level.Iteration)
+		public void report() {
+			if (messages > 0) {
+				System.out.printf("%.2f segments per message%n",
+						(double) segments / messages);
+			}
+		}
+	}
+
+	/*
+	 * Counts the data segments the stream sends; writer thread only. A
+	 * StreamBinding, as setWatermark() needs the NormStream.
+	 */
+	private static final class CountingStream extends
+			NormRuntime.StreamBinding {
+		private int partial;
+		volatile long segments;
+
+		CountingStream(NormStream stream) {
+			super(stream);
+		}
+
+		public int write(byte[] buffer, int offset, int length) {
+			int written = super.write(buffer, offset, length);
+			partial += written;
+			segments += partial / SEGMENT_SIZE;
+			partial %= SEGMENT_SIZE;
+			return written;
+		}
+
+		public void flush(boolean eom, NormFlushMode mode) {
+			if (partial > 0) {
+				segments++;
+				partial = 0;
+			}
+			super.flush(eom, mode);
+		}
+	}
+
+	/* Decoders per received stream, used on the event thread only */
+	private final Map<NormObject, NormFrameDecoder> decoders = new HashMap<NormObject, NormFrameDecoder>();
+	private final AtomicLong received = new AtomicLong();
+	private final NormFrameDecoder.FrameHandler counter = new NormFrameDecoder.FrameHandler() {
+		public void onFrame(byte[] buffer, int offset, int length) {
+			received.incrementAndGet();
+		}
+	};
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		instance = new NormInstance();
+
+		rxSession = instance.createSession(address, port, 2);
+		rxSession.setRxPortReuse(true, false);
+		rxSession.setMulticastInterface(networkInterface);
+		rxSession.startReceiver(1024 * 1024);
+
+		txSession = instance.createSession(address, port, 1);
+		txSession.setRxPortReuse(true, false);
+		txSession.setMulticastInterface(networkInterface);
+		txSession.setLoopback(true);
+		txSession.setTxRate(txRate);
+		txSession.startSender((int) System.nanoTime() & 0xFFFF,
+				1024 * 1024, SEGMENT_SIZE, 16, 0);
+		NormStream stream = txSession.streamOpen(1024 * 1024);
+
+		counting = new CountingStream(stream);
+		sender = new NormSender(new NormRuntime.SessionBinding(txSession),
+				counting, flushPolicy, SEGMENT_SIZE, 5, 1024);
+		eventThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					NormEvent event;
+					while ((event = instance.getNextEvent()) != null) {
+						dispatch(event);
+					}
+				} catch (IOException e) {
+					// Instance stopped
+				}
+			}
+		}, "NORM benchmark events");
+		eventThread.setDaemon(true);
+		eventThread.start();
+		sender.start();
+
+		byte[] line = Payloads.chatLine(bodySize);
+		frames = new NormFrameEncoder(MAX_PACKET_LENGTH).encode(line, 0,
+				line.length);
+	}
+
+	private void dispatch(NormEvent event) {
+		if (event.getSession() == txSession) {
+			sender.onEvent(event.getType());
+			return;
+		}
+		NormObject object = event.getObject();
+		if (object == null || object.getType() != NormObjectType.NORM_OBJECT_STREAM) {
+			return;
+		}
+		if (event.getType() == NormEventType.NORM_RX_OBJECT_UPDATED) {
+			NormFrameDecoder decoder = decoders.get(object);
+			if (decoder == null) {
+				decoder = new NormFrameDecoder(
+						new NormFrameDecoder.StreamSource((NormStream) object),
+						MAX_PACKET_LENGTH);
+				decoders.put(object, decoder);
+			}
+			decoder.decode(counter);
+		} else if (event.getType() == NormEventType.NORM_RX_OBJECT_COMPLETED
+				|| event.getType() == NormEventType.NORM_RX_OBJECT_ABORTED) {
+			decoders.remove(object);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		sender.close(5000);
+		txSession.stopSender();
+		rxSession.stopReceiver();
+		instance.stopInstance();
+		eventThread.join(1000);
+		txSession.destroySession();
+		rxSession.destroySession();
+		instance.destroyInstance();
+	}
+
+	/* Waits for the receiver to have decoded the given number of frames */
+	private void awaitReceived(long target) {
+		long deadline = System.nanoTime() + TIMEOUT_NANOS;
+		while (received.get() < target) {
+			if (System.nanoTime() - deadline > 0) {
+				throw new IllegalStateException("Frames lost on "
+						+ networkInterface + ": " + received.get() + " of "
+						+ target);
+			}
+			LockSupport.parkNanos(1000);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	public void roundTrip(Segments counters) throws InterruptedException {
+		long target = received.get() + 1;
+		long segments = counting.segments;
+		sender.send(frames, 0, frames.length, true);
+		awaitReceived(target);
+		counters.segments += counting.segments - segments;
+		counters.messages++;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OperationsPerInvocation(BURST)
+	public void burst(Segments counters) throws InterruptedException {
+		long target = received.get() + BURST;
+		long segments = counting.segments;
+		for (int i = 0; i < BURST; i++) {
+			sender.send(frames, 0, frames.length, i == BURST - 1);
+		}
+		awaitReceived(target);
+		counters.segments += counting.segments - segments;
+		counters.messages += BURST;
+	}
+}
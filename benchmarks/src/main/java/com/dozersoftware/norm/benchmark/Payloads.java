@@ -0,0 +1,74 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm.benchmark;
+
+import java.nio.charset.Charset;
+
+import com.dozersoftware.norm.NormChatEnvelope;
+import com.dozersoftware.norm.NormFrameEncoder;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class Payloads {
+
+	static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	private Payloads() {
+	}
+
+	/**
+	 * Printable text of the given length.
+	 */
+	static String text(int length) {
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			text.append((char) ('a' + i % 26));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * A normChat line with a body of the given length.
+	 */
+	static byte[] chatLine(int bodySize) {
+		return NormChatEnvelope.format("chat", "bench", text(bodySize))
+				.getBytes(ISO_8859_1);
+	}
+
+	/**
+	 * The given number of chat lines, framed back to back as they arrive on a
+	 * NORM stream.
+	 */
+	static byte[] stream(NormFrameEncoder encoder, int bodySize, int count) {
+		byte[] line = chatLine(bodySize);
+		int frameLength = encoder.encodedLength(line, 0, line.length);
+		byte[] stream = new byte[frameLength * count];
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			position = encoder.encode(line, 0, line.length, stream, position);
+		}
+		return stream;
+	}
+}
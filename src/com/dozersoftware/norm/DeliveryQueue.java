@@ -0,0 +1,214 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring buffer used to hand decoded frames from the NORM event thread
+ * to the ESB delivery workers.
+ * <p/>
+ * What happens when the buffer is full is decided by the
+ * {@link OverflowPolicy}; only {@link OverflowPolicy#BLOCK} ever makes the
+ * producer wait.
+ */
+public class DeliveryQueue<T> {
+
+	public enum OverflowPolicy {
+		/** Wait for a worker to free a slot. */
+		BLOCK,
+		/** Discard the oldest queued item to make room. */
+		DROP_OLDEST,
+		/** Discard the item being offered. */
+		DROP_NEWEST;
+
+		public static OverflowPolicy fromString(String value) {
+			return valueOf(value.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	private final Object[] items;
+	private final OverflowPolicy policy;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	private int head;
+	private int count;
+
+	private long offered;
+	private long blocked;
+	private long droppedOldest;
+	private long droppedNewest;
+
+	public DeliveryQueue(int capacity, OverflowPolicy policy) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		this.items = new Object[capacity];
+		this.policy = policy;
+	}
+
+	/**
+	 * Adds an item, applying the overflow policy if the queue is full.
+	 *
+	 * @return false if the item itself was dropped.
+	 */
+	public boolean offer(T item) throws InterruptedException {
+		lock.lock();
+		try {
+			offered++;
+			if (count == items.length) {
+				switch (policy) {
+				case BLOCK:
+					blocked++;
+					while (count == items.length) {
+						notFull.await();
+					}
+					break;
+				case DROP_OLDEST:
+					droppedOldest++;
+					items[head] = null;
+					head = (head + 1) % items.length;
+					count--;
+					break;
+				case DROP_NEWEST:
+					droppedNewest++;
+					return false;
+				}
+			}
+			items[(head + count) % items.length] = item;
+			count++;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the oldest item, waiting up to the timeout for one to arrive.
+	 *
+	 * @return the item or null if the timeout expired.
+	 */
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (count == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves up to max items into the list without waiting.
+	 *
+	 * @return the number of items moved.
+	 */
+	public int drainTo(List<? super T> list, int max) {
+		lock.lock();
+		try {
+			int n = Math.min(max, count);
+			for (int i = 0; i < n; i++) {
+				list.add(dequeue());
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private T dequeue() {
+		T item = (T) items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		count--;
+		notFull.signal();
+		return item;
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int capacity() {
+		return items.length;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public long getOffered() {
+		lock.lock();
+		try {
+			return offered;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getBlocked() {
+		lock.lock();
+		try {
+			return blocked;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDroppedOldest() {
+		lock.lock();
+		try {
+			return droppedOldest;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDroppedNewest() {
+		lock.lock();
+		try {
+			return droppedNewest;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
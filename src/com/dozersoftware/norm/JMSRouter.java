@@ -24,11 +24,18 @@ package com.dozersoftware.norm;
 
 import java.io.Serializable;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jms.BytesMessage;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
+import javax.jms.InvalidDestinationException;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
@@ -44,6 +51,7 @@ import org.jboss.internal.soa.esb.rosetta.pooling.JmsConnectionPoolContainer;
 import org.jboss.internal.soa.esb.rosetta.pooling.JmsSession;
 import org.jboss.soa.esb.actions.routing.AbstractRouter;
 import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.actions.ActionLifecycleException;
 import org.jboss.soa.esb.actions.ActionProcessingException;
 import org.jboss.soa.esb.addressing.EPR;
 import org.jboss.soa.esb.addressing.eprs.JMSEpr;
@@ -82,6 +90,18 @@ import org.jboss.soa.esb.util.Util;
  *     <property name="property-strategy" value="&lt;property setter class name&gt;" />
  *     <property name="message-prop-<i><prop-name></i>="<i>> value="prop-value"<</i>" />
  *     <property name="jndi-prefixes" value="org.xyz."<</i>" />
+ *     <property name="batch-mode" value="message"/>
+ *     <property name="cache-producers" value="true"/>
+ *     <property name="producer-cache-size" value="64"/>
+ *     <property name="commit-batch-size" value="1"/>
+ *     <property name="commit-interval-ms" value="0"/>
+ *     <property name="envelope" value="serialized"/>
+ *     <property name="route-mode" value="first"/>
+ *     <property name="destination-ttl-ms" value="300000"/>
+ *     <property name="routes">
+ *         <route property="NormChatType" value="chat" jndiName="topic/norm_chat"/>
+ *         <route property="NormRoom" jndiName="topic/norm_room_{value}"/>
+ *     </property>
  * }</pre>
  * Description of configuration attribues:
  * <ul>
@@ -127,6 +147,59 @@ import org.jboss.soa.esb.util.Util;
  * <li><i>org.xyz.propertyName</i>: 
  * A jndi environment property that will be added to the jndi environment if the prefix 'org.xyz' was specified in the jndi-prefixes list.</li>
  * 
+ * <li><i>batch-mode</i>: 
+ * How an unwrapped payload that is a java.util.List (a batch from the NormGatewayListener) is sent. 'message' (default) sends
+ * the list as a single ObjectMessage, 'split' sends each element as its own JMS message on the same session and producer.</li>
+ * 
+ * <li><i>cache-producers</i>: 
+ * When true (default) MessageProducers are kept open on the pooled sessions between sends. When false a producer is
+ * created and closed for every send.</li>
+ * 
+ * <li><i>producer-cache-size</i>: 
+ * The number of pooled sessions whose MessageProducers are kept open between sends, at least 1. Default is 64.
+ * A session's producers are only closed by a thread that holds the session. After a send fails the session's
+ * producers are closed and those of every other session are closed by their next user.</li>
+ * 
+ * <li><i>commit-batch-size</i>: 
+ * When greater than 1, messages are sent on a single transacted session and committed once this many have been sent.
+ * Default is 1 (no batching).</li>
+ * 
+ * <li><i>commit-interval-ms</i>: 
+ * When greater than 0, messages are sent on a single transacted session and a transaction takes in messages for at most
+ * this long before it is committed. Default is 0, no limit.
+ * In either mode commits are grouped: a caller that finds no commit in flight sends its message and commits at once, and
+ * callers arriving meanwhile are sent and committed together in the next transaction. No caller waits for a batch to
+ * fill, so batches only grow with the number of pipeline threads routing at once. route() returns once the transaction
+ * holding its message has committed, so a message reported delivered is never lost. If a commit or send fails the whole
+ * transaction is sent again once on a fresh session; if that fails as well, every message in it fails with an
+ * ActionProcessingException. A message can reach the destination twice if a failed commit had in fact gone through.</li>
+ * 
+ * <li><i>envelope</i>: 
+ * 'serialized' (default) sends the message as selected by 'unwrap'. 'bytes' sends a BytesMessage holding the payload as
+ * normChat frames (2 byte length, including itself, then the payload), one per String or byte[] in the body or in a
+ * List body. A payload too long for a normChat packet is split into fragment frames, as the NormProcessor sends it, so
+ * the frames can be put on the NORM stream as they are. The ESB message is never serialized; its properties are mapped
+ * by the property strategy and the number of frames is set in the '{@value #FRAME_COUNT_PROPERTY}' property.</li>
+ * 
+ * <li><i>routes</i>: 
+ * Content based routing table. Each route names an ESB message property, such as NormChatType or NormChatSender set by
+ * the NormGatewayListener, an optional value it must equal and the jndiName to send to. '{value}' in the jndiName is
+ * replaced by the property value, which must then be made of letters, digits, '_', '-' and '.' only. Messages no route
+ * matches go to the 'jndiName' destination. The JMS message is built once and sent to each chosen destination;
+ * destinations are looked up in JNDI the first time they are used. A route whose destination is not in JNDI does not
+ * match; such names are remembered for a minute and never created. At most 1024 destinations are cached, new names
+ * beyond that don't match either, and at most 256 producers are kept open per session.</li>
+ * 
+ * <li><i>route-mode</i>: 
+ * 'first' (default) sends to the first matching route only, 'all' to every matching route. If a send fails outside a
+ * transaction the message is sent again on a fresh session, but only to the destinations it had not reached.</li>
+ * 
+ * <li><i>destination-ttl-ms</i>: 
+ * Destinations are looked up in JNDI once and cached. Once an entry is this old it is looked up again on a background
+ * thread while the cached one is still used; if that lookup fails the cached one is kept. Only the startup lookup of
+ * 'jndiName' falls back to creating a queue of that name. A send failing with an InvalidDestinationException drops the entry so the
+ * retry looks it up afresh. Default is 300000, 0 never refreshes.</li>
+ * 
  * </ul>
  *
  * @author <a href="mailto:tom.fennelly@jboss.com">tom.fennelly@jboss.com</a>
@@ -139,6 +212,17 @@ public class JMSRouter extends AbstractRouter {
      * Logger.
      */
     private static Logger logger = Logger.getLogger(JMSRouter.class);
+    /**
+     * Charset matching DataOutputStream.writeBytes(), as used by normChat.
+     */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    /**
+     * Time taken by MessageProducer.send(), published through NormMetrics.
+     */
+    private static final NormMetrics.Histogram SEND_LATENCY = NormMetrics.getInstance()
+        .histogram("norm_jms_send_seconds", "Time taken by JMSRouter to send a JMS message");
+    private static final NormMetrics.Counter SEND_FAILURES = NormMetrics.getInstance()
+        .counter("norm_jms_send_failures_total", "JMS sends that failed");
     /**
      * Constant used in configuration
      */
@@ -163,6 +247,127 @@ public class JMSRouter extends AbstractRouter {
 	 * property strategy class.
 	 */
 	public static final String PROPERTY_STRATEGY = "property-strategy" ;
+	/**
+	 * How batched payloads are sent, see {@link #BATCH_MODE_MESSAGE} and {@link #BATCH_MODE_SPLIT}.
+	 */
+	public static final String BATCH_MODE = "batch-mode" ;
+	/**
+	 * Send a batch as one JMS message.
+	 */
+	public static final String BATCH_MODE_MESSAGE = "message" ;
+	/**
+	 * Send each element of a batch as its own JMS message.
+	 */
+	public static final String BATCH_MODE_SPLIT = "split" ;
+	/**
+	 * Whether producers are kept open between sends.
+	 */
+	public static final String CACHE_PRODUCERS = "cache-producers" ;
+	/**
+	 * Number of pooled sessions to keep producers open for.
+	 */
+	public static final String PRODUCER_CACHE_SIZE = "producer-cache-size" ;
+	/**
+	 * Number of messages per transacted commit.
+	 */
+	public static final String COMMIT_BATCH_SIZE = "commit-batch-size" ;
+	/**
+	 * Maximum age, in milliseconds, of an uncommitted message.
+	 */
+	public static final String COMMIT_INTERVAL = "commit-interval-ms" ;
+	/**
+	 * JMS message format, 'serialized' or 'bytes'.
+	 */
+	public static final String ENVELOPE = "envelope" ;
+	/**
+	 * JMS property holding the number of frames in a 'bytes' envelope.
+	 */
+	public static final String FRAME_COUNT_PROPERTY = "NormFrameCount" ;
+	/**
+	 * normChat's packet length, which the NormProcessor frames to as well.
+	 */
+	private static final int MAX_PACKET_LENGTH = 2048 ;
+	/**
+	 * Child element of the 'routes' property declaring one route.
+	 */
+	public static final String ROUTE_TAG = "route" ;
+	/**
+	 * 'first' or 'all' matching routes.
+	 */
+	public static final String ROUTE_MODE = "route-mode" ;
+	/**
+	 * Age, in milliseconds, after which a cached destination is looked up again.
+	 */
+	public static final String DESTINATION_TTL = "destination-ttl-ms" ;
+	/**
+	 * Placeholder in a route's jndiName for the matched property value.
+	 */
+	private static final String VALUE_PLACEHOLDER = "{value}" ;
+	/**
+	 * Most distinct destinations kept in the destination cache.
+	 */
+	private static final int MAX_DESTINATIONS = 1024 ;
+	/**
+	 * Most producers kept open on one pooled session.
+	 */
+	private static final int MAX_SESSION_PRODUCERS = 256 ;
+
+	/**
+	 * Sends made for the message being routed, so a retry skips those that went through.
+	 */
+	private static final class SendProgress {
+		final BitSet sent = new BitSet() ;
+		int next ;
+	}
+
+	/**
+	 * One row of the routing table.
+	 */
+	private static final class Route {
+		final String property ;
+		final String value ;
+		final String jndiName ;
+
+		Route(final String property, final String value, final String jndiName) {
+			this.property = property ;
+			this.value = value ;
+			this.jndiName = jndiName ;
+		}
+
+		/**
+		 * @return the destination name if the message matches, else null.
+		 */
+		String select(final org.jboss.soa.esb.message.Message esbMessage) {
+			final Object actual = esbMessage.getProperties().getProperty(property) ;
+			if (actual == null) {
+				return null ;
+			}
+			final String text = actual.toString() ;
+			if (value != null && !value.equals(text)) {
+				return null ;
+			}
+			if (jndiName.indexOf(VALUE_PLACEHOLDER) < 0) {
+				return jndiName ;
+			}
+			if (!isSafeName(text)) {
+				return null ;
+			}
+			return jndiName.replace(VALUE_PLACEHOLDER, text) ;
+		}
+
+		private static boolean isSafeName(final String text) {
+			if (text.length() == 0) {
+				return false ;
+			}
+			for (int i = 0; i < text.length(); i++) {
+				final char c = text.charAt(i) ;
+				if (!(Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.')) {
+					return false ;
+				}
+			}
+			return true ;
+		}
+	}
     /**
      * Routing properties.
      */
@@ -189,6 +394,26 @@ public class JMSRouter extends AbstractRouter {
      * The time-to-live for messages sent with this router
      */
     private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+    /**
+     * Whether List payloads are sent element by element.
+     */
+    private boolean splitBatches;
+    /**
+     * Messages per commit in micro-batch mode.
+     */
+    private int commitBatchSize = 1;
+    /**
+     * Longest a micro-batch transaction takes in messages, 0 for no limit.
+     */
+    private long commitInterval;
+    /**
+     * Whether payloads are sent as framed bytes rather than by the unwrap setting.
+     */
+    private boolean bytesEnvelope;
+    /**
+     * Frames payloads for the 'bytes' envelope, in fragments if need be.
+     */
+    private final NormFrameEncoder frameEncoder = new NormFrameEncoder(MAX_PACKET_LENGTH);
 	private String jndiContextFactory;
 	private String jndiUrl;
 	private String jndiPkgPrefix;
@@ -202,11 +427,47 @@ public class JMSRouter extends AbstractRouter {
      * The jms target destination for routing.
      */
     private Destination jmsDestination ;
+    /**
+     * Whether jmsDestination was not in JNDI at startup and was created as a queue instead.
+     */
+    private volatile boolean jmsDestinationCreated ;
+    /**
+     * Content based routes, in order. Empty when every message goes to jmsDestination.
+     */
+    private final List<Route> routes = new ArrayList<Route>() ;
+    /**
+     * Whether a message goes to every matching route or just the first.
+     */
+    private boolean routeToAll ;
+    /**
+     * Destinations already looked up, by JNDI name.
+     */
+    private final JmsDestinationCache destinationCache ;
     /**
      * Thread local used for passing JmsSession between methods.
      * This is to allow modifications without changing the API.
      */
     private ThreadLocal<JmsSession> SESSION = new ThreadLocal<JmsSession>() ;
+    /**
+     * Thread local holding the sends made for the message being routed, outside micro-batch mode.
+     */
+    private ThreadLocal<SendProgress> PROGRESS = new ThreadLocal<SendProgress>() ;
+    /**
+     * Producers kept open on the pooled sessions, null when a producer is created for each send.
+     */
+    private final JmsProducerCache producerCache ;
+    /**
+     * Reply to queues already created, by name.
+     */
+    private final ConcurrentMap<String, Destination> replyToDestinations = new ConcurrentHashMap<String, Destination>() ;
+    /**
+     * Groups the sends of concurrent callers into shared commits in micro-batch mode, null otherwise.
+     */
+    private JmsGroupCommit groupCommit ;
+    /**
+     * The transacted session held open in micro-batch mode, only used by the group commit's leader.
+     */
+    private JmsSession batchSession ;
     /**
      * The JMS reply to destination.
      */
@@ -243,6 +504,96 @@ public class JMSRouter extends AbstractRouter {
         if ( ttlStr != null )
 	        timeToLive = Long.parseLong( ttlStr );
 
+        final String batchMode = properties.getAttribute(BATCH_MODE, BATCH_MODE_MESSAGE);
+        if (BATCH_MODE_SPLIT.equals(batchMode)) {
+            splitBatches = true;
+        } else if (!BATCH_MODE_MESSAGE.equals(batchMode)) {
+            throw new ConfigurationException("Invalid '" + BATCH_MODE + "' value: " + batchMode);
+        }
+
+        final String producerCacheSize = properties.getAttribute(PRODUCER_CACHE_SIZE, "64");
+        final int maxSessions;
+        try {
+            maxSessions = Integer.parseInt(producerCacheSize);
+        } catch (final NumberFormatException nfe) {
+            throw new ConfigurationException("Invalid '" + PRODUCER_CACHE_SIZE + "' value: " + producerCacheSize, nfe);
+        }
+        if (maxSessions < 1) {
+            throw new ConfigurationException("Invalid '" + PRODUCER_CACHE_SIZE + "' value: " + producerCacheSize + ", must be at least 1");
+        }
+        if (Boolean.valueOf(properties.getAttribute(CACHE_PRODUCERS, "true"))) {
+            producerCache = new JmsProducerCache(maxSessions, MAX_SESSION_PRODUCERS);
+        } else {
+            producerCache = null;
+        }
+
+        final String envelope = properties.getAttribute(ENVELOPE, "serialized");
+        if ("bytes".equals(envelope)) {
+            bytesEnvelope = true;
+        } else if (!"serialized".equals(envelope)) {
+            throw new ConfigurationException("Invalid '" + ENVELOPE + "' value: " + envelope);
+        }
+
+        final ConfigTree[] routeConfigs = properties.getChildren(ROUTE_TAG);
+        if (routeConfigs != null) {
+            for (ConfigTree routeConfig : routeConfigs) {
+                routes.add(new Route(routeConfig.getRequiredAttribute("property"),
+                        routeConfig.getAttribute("value"),
+                        routeConfig.getRequiredAttribute("jndiName")));
+            }
+        }
+        final String routeMode = properties.getAttribute(ROUTE_MODE, "first");
+        if ("all".equals(routeMode)) {
+            routeToAll = true;
+        } else if (!"first".equals(routeMode)) {
+            throw new ConfigurationException("Invalid '" + ROUTE_MODE + "' value: " + routeMode);
+        }
+
+        final String destinationTtl = properties.getAttribute(DESTINATION_TTL, "300000");
+        try {
+            destinationCache = new JmsDestinationCache(new JmsDestinationCache.Resolver() {
+                public Destination resolve(final String name, final JmsSession session) throws Exception {
+                    if (!jmsDestinationCreated || !destName.equals(name)) {
+                        // Never create here, a JNDI hiccup would swap the destination for a queue
+                        return lookupJndiDestination(name) ;
+                    }
+                    // Created as a queue at startup, as it was not in JNDI
+                    if (session != null) {
+                        return session.createQueue(name) ;
+                    }
+                    final JmsSession pooled = pool.getSession() ;
+                    try {
+                        return pooled.createQueue(name) ;
+                    } finally {
+                        pool.closeSession(pooled) ;
+                    }
+                }
+            }, Long.parseLong(destinationTtl), MAX_DESTINATIONS, destName) ;
+        } catch (final NumberFormatException nfe) {
+            throw new ConfigurationException("Invalid '" + DESTINATION_TTL + "' value: " + destinationTtl, nfe);
+        }
+
+        final String commitBatchSizeStr = properties.getAttribute(COMMIT_BATCH_SIZE);
+        if ( commitBatchSizeStr != null ) {
+            try {
+                commitBatchSize = Integer.parseInt( commitBatchSizeStr );
+            } catch (final NumberFormatException nfe) {
+                throw new ConfigurationException("Invalid '" + COMMIT_BATCH_SIZE + "' value: " + commitBatchSizeStr, nfe);
+            }
+        }
+        final String commitIntervalStr = properties.getAttribute(COMMIT_INTERVAL);
+        if ( commitIntervalStr != null ) {
+            try {
+                commitInterval = Long.parseLong( commitIntervalStr );
+            } catch (final NumberFormatException nfe) {
+                throw new ConfigurationException("Invalid '" + COMMIT_INTERVAL + "' value: " + commitIntervalStr, nfe);
+            }
+        }
+        if ( commitBatchSize < 1 || commitInterval < 0 )
+            throw new ConfigurationException("'" + COMMIT_BATCH_SIZE + "' must be at least 1 and '" + COMMIT_INTERVAL + "' must not be negative");
+        if ( commitInterval > 0 && commitBatchSizeStr == null )
+            commitBatchSize = Integer.MAX_VALUE;
+
         jndiContextFactory = properties.getAttribute( JMSEpr.JNDI_CONTEXT_FACTORY_TAG, Configuration.getJndiServerContextFactory());
         jndiUrl = properties.getAttribute( JMSEpr.JNDI_URL_TAG, Configuration.getJndiServerURL());
         jndiPkgPrefix = properties.getAttribute( JMSEpr.JNDI_PKG_PREFIX_TAG, Configuration.getJndiServerPkgPrefix());
@@ -286,6 +637,25 @@ public class JMSRouter extends AbstractRouter {
         }
         
 		createDestinationSetup(destName, jndiContextFactory, jndiUrl, jndiPkgPrefix, connectionFactory, securityPrincipal, securityCredential);
+
+        if (isBatchCommitEnabled()) {
+            groupCommit = new JmsGroupCommit(new JmsGroupCommit.Transaction() {
+                public void send(final Object message) throws JMSException, ActionProcessingException {
+                    if (batchSession == null) {
+                        batchSession = getTransactedJmsSession() ;
+                    }
+                    handleRouting(batchSession, message) ;
+                }
+
+                public void commit() throws JMSException {
+                    batchSession.commit() ;
+                }
+
+                public void reset() {
+                    releaseBatchSession() ;
+                }
+            }, commitBatchSize, commitInterval) ;
+        }
     }
 
     /**
@@ -304,17 +674,27 @@ public class JMSRouter extends AbstractRouter {
      * @see org.jboss.soa.esb.actions.routing.AbstractRouter#route(java.lang.Object)
      */
     public void route(Object message) throws ActionProcessingException {
+        if (groupCommit != null) {
+            groupCommit.route(message) ;
+            return ;
+        }
         final JmsSession jmsSession = getJmsSession() ;
+        final SendProgress progress = new SendProgress() ;
+        PROGRESS.set(progress) ;
         try {
             handleRouting(jmsSession, message) ;
         } catch (final JMSException jmse) {
+            if (producerCache != null) {
+                producerCache.evict(jmsSession) ;
+            }
             try {
                 if (jmsSession.getTransacted()) {
                     jmsSession.rollback() ;
                     throw new ActionProcessingException("Unexpected exception routing message", jmse) ;
                 } else {
-                    // Try to acquire again
+                    // Try to acquire again, sending only what didn't go through
                     final JmsSession newJmsSession = getJmsSession() ;
+                    progress.next = 0 ;
                     try {
                         handleRouting(newJmsSession, message) ;
                     } finally {
@@ -325,10 +705,48 @@ public class JMSRouter extends AbstractRouter {
                 throw new ActionProcessingException("Unexpected exception routing message", jmse) ;
             }
         } finally {
+            PROGRESS.set(null) ;
             pool.closeSession(jmsSession) ;
         }
     }
     
+    private boolean isBatchCommitEnabled() {
+        return commitBatchSize > 1 || commitInterval > 0 ;
+    }
+
+    /**
+     * Rolls back whatever is uncommitted and returns the batch session to the pool.
+     */
+    private void releaseBatchSession() {
+        if (batchSession == null) {
+            return ;
+        }
+        if (producerCache != null) {
+            producerCache.evict(batchSession) ;
+        }
+        try {
+            batchSession.rollback() ;
+        } catch (final JMSException jmse) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Failed to roll back batch session", jmse) ;
+            }
+        }
+        pool.closeSession(batchSession) ;
+        batchSession = null ;
+    }
+
+    private JmsSession getTransactedJmsSession() throws ActionProcessingException {
+        try {
+            return pool.getTransactedSession() ;
+        } catch (final ConnectionException ce) {
+            throw new ActionProcessingException("Unexpected ConnectionException acquiring transacted JMS session", ce) ;
+        } catch (NamingException ne) {
+            throw new ActionProcessingException("Unexpected NamingException acquiring transacted JMS session", ne) ;
+        } catch (JMSException jmse) {
+            throw new ActionProcessingException("Unexpected JMSException acquiring transacted JMS session", jmse) ;
+        }
+    }
+
     private void handleRouting(final JmsSession jmsSession, Object message) throws JMSException, ActionProcessingException {
         SESSION.set(jmsSession) ;
         try {
@@ -339,20 +757,22 @@ public class JMSRouter extends AbstractRouter {
             final org.jboss.soa.esb.message.Message esbMessage = (org.jboss.soa.esb.message.Message)message;
 
             try {
-                Message jmsMessage = null;
-                
-                if ( unwrap ) {
+                if ( bytesEnvelope ) {
+                    sendMessage( esbMessage, createFramedBytesMessage( getPayloadProxy().getPayload(esbMessage) ) );
+                }
+                else if ( unwrap ) {
                     Object objectFromBody = getPayloadProxy().getPayload(esbMessage);
-                    jmsMessage = createJMSMessageWithObjectType( objectFromBody );
+                    if ( splitBatches && objectFromBody instanceof List ) {
+                        for ( Object item : (List<?>) objectFromBody ) {
+                            sendMessage( esbMessage, createJMSMessageWithObjectType( item ) );
+                        }
+                    } else {
+                        sendMessage( esbMessage, createJMSMessageWithObjectType( objectFromBody ) );
+                    }
                 } 
                 else  {
-                    jmsMessage = createObjectMessage(Util.serialize(esbMessage));
+                    sendMessage( esbMessage, createObjectMessage(Util.serialize(esbMessage)) );
                 }
-                
-                setStringProperties(jmsMessage);
-                setJMSProperties( esbMessage, jmsMessage );
-                setJMSReplyTo( jmsMessage, esbMessage );
-                send( jmsMessage );
             } catch (JMSException jmse) {
                 throw jmse ;
             } catch(Exception e) {
@@ -365,6 +785,32 @@ public class JMSRouter extends AbstractRouter {
         }
     }
 
+    private void sendMessage(final org.jboss.soa.esb.message.Message esbMessage, final Message jmsMessage) throws Exception {
+        setStringProperties(jmsMessage);
+        setJMSProperties( esbMessage, jmsMessage );
+        setJMSReplyTo( jmsMessage, esbMessage );
+        if ( routes.isEmpty() ) {
+            send( jmsMessage );
+            return;
+        }
+        boolean routed = false;
+        for ( Route route : routes ) {
+            final String name = route.select(esbMessage);
+            // Names can come from remote peers, so one not in JNDI is no match
+            final Destination destination = name == null ? null : destinationCache.find(name, SESSION.get());
+            if ( destination != null ) {
+                sendTo( jmsMessage, name, destination );
+                routed = true;
+                if ( !routeToAll ) {
+                    break;
+                }
+            }
+        }
+        if ( !routed ) {
+            send( jmsMessage );
+        }
+    }
+
     private JmsSession getJmsSession() throws ActionProcessingException {
         try {
             return pool.getSession() ;
@@ -403,25 +849,155 @@ public class JMSRouter extends AbstractRouter {
 		return jmsMessage;
 	}
 
+	/**
+	 * Builds a BytesMessage holding the payload as normChat frames.
+	 */
+	protected Message createFramedBytesMessage( Object payload ) throws JMSException, ActionProcessingException
+	{
+		final BytesMessage jmsMessage = SESSION.get().createBytesMessage();
+		int frames = 0;
+		if (payload instanceof List) {
+			for (Object item : (List<?>) payload) {
+				frames += writeFrames(jmsMessage, item);
+			}
+		} else {
+			frames += writeFrames(jmsMessage, payload);
+		}
+		jmsMessage.setIntProperty(FRAME_COUNT_PROPERTY, frames);
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("Sending " + frames + " framed byte[] messages to destination [" + destName + "].");
+		}
+		return jmsMessage;
+	}
+
+	/**
+	 * Writes the payload as one frame, or as fragments if it is too long for a packet.
+	 * @return the number of frames written.
+	 */
+	private int writeFrames( final BytesMessage jmsMessage, final Object item ) throws JMSException, ActionProcessingException
+	{
+		final byte[] bytes;
+		if (item instanceof byte[]) {
+			bytes = (byte[]) item;
+		} else if (item instanceof String) {
+			bytes = ((String) item).getBytes(ISO_8859_1);
+		} else {
+			throw new ActionProcessingException("Cannot frame Object [" + (item == null ? null : item.getClass().getName()) + "] for destination [" + destName + "]. Payload must be a String or byte[].");
+		}
+		final int frames;
+		try {
+			frames = frameEncoder.frameCount(bytes, 0, bytes.length);
+		} catch (final IllegalArgumentException iae) {
+			throw new ActionProcessingException("Payload of " + bytes.length + " bytes is too long to frame for destination [" + destName + "].", iae);
+		}
+		jmsMessage.writeBytes(frameEncoder.encode(bytes, 0, bytes.length));
+		return frames;
+	}
+
 	protected void send( Message jmsMessage ) throws JMSException
 	{
-		final MessageProducer jmsProducer = SESSION.get().createProducer(jmsDestination) ;
+		sendTo( jmsMessage, destName ) ;
+	}
+
+	private void sendTo( Message jmsMessage, String name ) throws JMSException
+	{
+		sendTo( jmsMessage, name, destinationCache.get(name, SESSION.get()) ) ;
+	}
+
+	/**
+	 * Sends to the named destination, dropping it from the cache if the send shows it is stale. Skips a send that
+	 * went through before the message was retried.
+	 */
+	private void sendTo( Message jmsMessage, String name, Destination destination ) throws JMSException
+	{
+		final SendProgress progress = PROGRESS.get() ;
+		final int ordinal = progress == null ? -1 : progress.next++ ;
+		if (ordinal >= 0 && progress.sent.get(ordinal)) {
+			return ;
+		}
 		try {
+			send( jmsMessage, destination ) ;
+		} catch (final InvalidDestinationException ide) {
+			destinationCache.invalidate(name) ;
+			throw ide ;
+		}
+		if (ordinal >= 0) {
+			progress.sent.set(ordinal) ;
+		}
+	}
+
+	/**
+	 * Sends on the cached producer for the destination, creating it if need be.
+	 * Without the cache the producer is closed again after the send.
+	 */
+	protected void send( Message jmsMessage, Destination destination ) throws JMSException
+	{
+		final JmsSession jmsSession = SESSION.get() ;
+		MessageProducer jmsProducer = producerCache == null ? null : producerCache.get(jmsSession, destination) ;
+		if (jmsProducer == null) {
+			jmsProducer = jmsSession.createProducer(destination) ;
 			jmsProducer.setPriority(priority) ;
 			jmsProducer.setDeliveryMode(deliveryMode) ;
 			jmsProducer.setTimeToLive(timeToLive) ;
-			
-			// The following seems to be broken but is copied for now.
-			if (jmsReplyToName != null) {
-				final Destination jmsReplyToDestination = SESSION.get().createQueue(jmsReplyToName);
-				
-				jmsMessage.setJMSReplyTo(jmsReplyToDestination);
+			if (producerCache != null) {
+				producerCache.put(jmsSession, destination, jmsProducer) ;
+			}
+		}
+		try {
+			send(jmsSession, jmsProducer, jmsMessage) ;
+		} finally {
+			if (producerCache == null) {
+				jmsProducer.close() ;
 			}
-			
+		}
+	}
+
+	private void send( final JmsSession jmsSession, final MessageProducer jmsProducer, final Message jmsMessage ) throws JMSException
+	{
+
+		// The following seems to be broken but is copied for now.
+		if (jmsReplyToName != null) {
+			jmsMessage.setJMSReplyTo(getReplyToDestination(jmsSession, jmsReplyToName));
+		}
+
+		final long start = System.nanoTime() ;
+		boolean sent = false ;
+		try {
 			jmsProducer.send(jmsMessage);
+			sent = true ;
 		} finally {
-			jmsProducer.close() ;
+			SEND_LATENCY.recordSince(start) ;
+			if (!sent) {
+				SEND_FAILURES.increment() ;
+			}
+		}
+	}
+
+	private Destination getReplyToDestination( final JmsSession jmsSession, final String name ) throws JMSException
+	{
+		Destination jmsReplyToDestination = replyToDestinations.get(name) ;
+		if (jmsReplyToDestination == null) {
+			jmsReplyToDestination = jmsSession.createQueue(name) ;
+			replyToDestinations.putIfAbsent(name, jmsReplyToDestination) ;
 		}
+		return jmsReplyToDestination ;
+	}
+
+	/**
+	 * Waits for a commit in flight, then releases the batch session and closes the cached producers.
+	 */
+	@Override
+	public void destroy() throws ActionLifecycleException
+	{
+		if (groupCommit != null) {
+			groupCommit.close() ;
+		}
+		if (producerCache != null) {
+			producerCache.clear() ;
+		}
+		destinationCache.close() ;
+		super.destroy() ;
 	}
 
 	/**
@@ -481,29 +1057,23 @@ public class JMSRouter extends AbstractRouter {
     		String securityPrincipal,
     		String securityCredential) throws ConfigurationException
 	{
-        final Properties environment = getEnvironment() ;
 		try 
 		{
             final JmsSession jmsSession = pool.getSession();
             try {
-                Context oCtx = NamingContextPool.getNamingContext(environment);
-                try {
-                    try {
-                        jmsDestination = (Destination) oCtx.lookup(destName);
-                    } catch (NamingException ne) {
+                jmsDestination = lookupDestination(jmsSession, destName);
+                destinationCache.put(destName, jmsDestination);
+                for (Route route : routes) {
+                    if (route.jndiName.indexOf(VALUE_PLACEHOLDER) < 0) {
                         try {
-                            oCtx = NamingContextPool.replaceNamingContext(oCtx, environment);
-                            jmsDestination = (Destination) oCtx.lookup(destName);
-                        } catch (NamingException nex) {
-                            //ActiveMQ
-                            jmsDestination = jmsSession.createQueue(destName);
+                            destinationCache.prefetch(route.jndiName, jmsSession);
+                        } catch (final JMSException jmse) {
+                            logger.warn("Route destination [" + route.jndiName + "] not available yet: " + jmse);
                         }
                     }
-                    final MessageProducer jmsProducer = jmsSession.createProducer(jmsDestination);
-                    jmsProducer.close() ;
-                } finally {
-                    NamingContextPool.releaseNamingContext(oCtx) ;
                 }
+                final MessageProducer jmsProducer = jmsSession.createProducer(jmsDestination);
+                jmsProducer.close() ;
             } finally {
                 pool.closeSession(jmsSession) ;
             }
@@ -514,6 +1084,39 @@ public class JMSRouter extends AbstractRouter {
 		}
     }
     
+    /**
+     * Looks the destination up in JNDI and falls back to creating a queue. Only used for the startup lookup of jndiName.
+     */
+    private Destination lookupDestination( final JmsSession jmsSession, final String name ) throws NamingContextException, JMSException
+    {
+        try {
+            return lookupJndiDestination(name);
+        } catch (NamingException nex) {
+            //ActiveMQ
+            jmsDestinationCreated = true;
+            return jmsSession.createQueue(name);
+        }
+    }
+
+    /**
+     * Looks the destination up in JNDI, retrying once on a fresh context.
+     */
+    private Destination lookupJndiDestination( final String name ) throws NamingContextException, NamingException
+    {
+        final Properties environment = getEnvironment() ;
+        Context oCtx = NamingContextPool.getNamingContext(environment);
+        try {
+            try {
+                return (Destination) oCtx.lookup(name);
+            } catch (NamingException ne) {
+                oCtx = NamingContextPool.replaceNamingContext(oCtx, environment);
+                return (Destination) oCtx.lookup(name);
+            }
+        } finally {
+            NamingContextPool.releaseNamingContext(oCtx) ;
+        }
+    }
+
     Properties getEnvironment()
     {
         return environment ;
@@ -0,0 +1,301 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+
+import org.apache.log4j.Logger;
+import org.jboss.internal.soa.esb.rosetta.pooling.JmsSession;
+
+/**
+ * Keeps JMS destinations looked up by JNDI name so the lookup stays off the
+ * send path.
+ * <p/>
+ * Only the first use of a name resolves it on the calling thread. Once an
+ * entry is older than the time to live it is still returned, and a
+ * background thread looks it up again and swaps the result in. An entry is
+ * dropped by {@link #invalidate(String)} when a send shows the destination
+ * has gone stale, so the next use resolves it afresh.
+ * <p/>
+ * {@link #find(String, JmsSession)} is for names that come from message
+ * content. A name that can't be resolved is remembered for a minute, so it
+ * is not looked up on every message, and no new name is looked up once the
+ * cache is full.
+ * <p/>
+ * Hits, misses, refreshes and the rest are counted in NormMetrics as
+ * norm_jms_destination_cache_*, next to norm_jms_send_seconds.
+ */
+public class JmsDestinationCache {
+
+	private static Logger logger = Logger.getLogger(JmsDestinationCache.class);
+
+	/**
+	 * Looks a destination up. The session may be null when called from the
+	 * refresh thread. A failed refresh keeps the old entry, so a resolver
+	 * should fail rather than fall back to creating a destination.
+	 */
+	public interface Resolver {
+		Destination resolve(String name, JmsSession session) throws Exception;
+	}
+
+	/* Published through NormMetrics, summed over every router's cache */
+	private static final NormMetrics.Counter HITS = NormMetrics
+			.getInstance().counter("norm_jms_destination_cache_hits_total",
+					"Destinations found in a JMSRouter destination cache");
+	private static final NormMetrics.Counter MISSES = NormMetrics
+			.getInstance().counter("norm_jms_destination_cache_misses_total",
+					"Destinations looked up in JNDI on the send path");
+	private static final NormMetrics.Counter REFRESHES = NormMetrics
+			.getInstance().counter(
+					"norm_jms_destination_cache_refreshes_total",
+					"Cached destinations looked up again in the background");
+	private static final NormMetrics.Counter REFRESH_FAILURES = NormMetrics
+			.getInstance().counter(
+					"norm_jms_destination_cache_refresh_failures_total",
+					"Background lookups that failed, keeping the old entry");
+	private static final NormMetrics.Counter INVALIDATIONS = NormMetrics
+			.getInstance().counter(
+					"norm_jms_destination_cache_invalidations_total",
+					"Cached destinations dropped after a failed send");
+	private static final NormMetrics.Counter UNRESOLVED = NormMetrics
+			.getInstance().counter(
+					"norm_jms_destination_cache_unresolved_total",
+					"Route destinations that could not be resolved");
+	private static final NormMetrics.Counter OVERFLOWS = NormMetrics
+			.getInstance().counter(
+					"norm_jms_destination_cache_overflows_total",
+					"Route destinations not looked up as the cache was full");
+
+	/* How long a name that could not be resolved is remembered */
+	private static final long UNRESOLVED_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+	/* A resolved destination, or null for a name that could not be */
+	private static final class Entry {
+		final Destination destination;
+		final long resolved;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Entry(Destination destination) {
+			this.destination = destination;
+			this.resolved = System.nanoTime();
+		}
+	}
+
+	private final Resolver resolver;
+	private final long ttlNanos;
+	private final int maxEntries;
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ExecutorService refresher;
+
+	private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+	/**
+	 * @param ttlMillis
+	 *            age after which an entry is refreshed in the background, 0
+	 *            to never refresh.
+	 * @param maxEntries
+	 *            most names kept; beyond that they are resolved on every
+	 *            use.
+	 */
+	public JmsDestinationCache(Resolver resolver, long ttlMillis,
+			int maxEntries, final String name) {
+		this.resolver = resolver;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.maxEntries = maxEntries;
+		this.refresher = ttlMillis <= 0 ? null : Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable,
+								"JMS destination refresh [" + name + "]");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * @return the destination, resolving it on this thread only if it has
+	 *         never been resolved.
+	 */
+	public Destination get(String name, JmsSession session)
+			throws JMSException {
+		Entry entry = entries.get(name);
+		if (entry == null || entry.destination == null) {
+			MISSES.increment();
+			Destination destination = resolve(name, session);
+			if (entries.size() < maxEntries) {
+				entries.put(name, new Entry(destination));
+			}
+			return destination;
+		}
+		HITS.increment();
+		if (refresher != null && System.nanoTime() - entry.resolved > ttlNanos
+				&& entry.refreshing.compareAndSet(false, true)) {
+			refresh(name, entry);
+		}
+		return entry.destination;
+	}
+
+	/**
+	 * @return the destination, or null if the name can't be resolved or the
+	 *         cache has no room for another name.
+	 */
+	public Destination find(String name, JmsSession session) {
+		Entry entry = entries.get(name);
+		if (entry != null) {
+			if (entry.destination != null) {
+				HITS.increment();
+				if (refresher != null
+						&& System.nanoTime() - entry.resolved > ttlNanos
+						&& entry.refreshing.compareAndSet(false, true)) {
+					refresh(name, entry);
+				}
+				return entry.destination;
+			}
+			if (System.nanoTime() - entry.resolved < UNRESOLVED_NANOS) {
+				UNRESOLVED.increment();
+				return null;
+			}
+			entries.remove(name, entry);
+		}
+		if (entries.size() >= maxEntries && !sweep()) {
+			OVERFLOWS.increment();
+			return null;
+		}
+		MISSES.increment();
+		Destination destination;
+		try {
+			destination = resolver.resolve(name, session);
+		} catch (Exception e) {
+			UNRESOLVED.increment();
+			if (logger.isDebugEnabled()) {
+				logger.debug("Can't resolve destination [" + name + "]: " + e);
+			}
+			destination = null;
+		}
+		entries.put(name, new Entry(destination));
+		return destination;
+	}
+
+	/*
+	 * Drops the names that could not be resolved and have been remembered
+	 * long enough, at most once a second. Returns true if that made room.
+	 */
+	private boolean sweep() {
+		long now = System.nanoTime();
+		long last = lastSweep.get();
+		if (now - last < TimeUnit.SECONDS.toNanos(1)
+				|| !lastSweep.compareAndSet(last, now)) {
+			return false;
+		}
+		for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+			Entry entry = candidate.getValue();
+			if (entry.destination == null
+					&& now - entry.resolved >= UNRESOLVED_NANOS) {
+				entries.remove(candidate.getKey(), entry);
+			}
+		}
+		return entries.size() < maxEntries;
+	}
+
+	/**
+	 * Resolves the name now and caches it, so the first send doesn't have to.
+	 */
+	public void prefetch(String name, JmsSession session) throws JMSException {
+		entries.put(name, new Entry(resolve(name, session)));
+	}
+
+	/**
+	 * Caches a destination resolved by the caller.
+	 */
+	public void put(String name, Destination destination) {
+		entries.put(name, new Entry(destination));
+	}
+
+	/**
+	 * Drops the entry after a send showed it to be stale.
+	 */
+	public void invalidate(String name) {
+		if (entries.remove(name) != null) {
+			INVALIDATIONS.increment();
+			if (logger.isDebugEnabled()) {
+				logger.debug("Invalidated cached destination [" + name + "]");
+			}
+		}
+	}
+
+	public void close() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+		}
+		entries.clear();
+	}
+
+	private void refresh(final String name, final Entry stale) {
+		try {
+			refresher.execute(new Runnable() {
+				public void run() {
+					try {
+						Destination destination = resolver.resolve(name, null);
+						entries.replace(name, stale, new Entry(destination));
+						REFRESHES.increment();
+					} catch (Exception e) {
+						// Keep using the old one and try again on the next use
+						REFRESH_FAILURES.increment();
+						stale.refreshing.set(false);
+						logger.warn("Failed to refresh destination [" + name
+								+ "]: " + e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			stale.refreshing.set(false);
+		}
+	}
+
+	private Destination resolve(String name, JmsSession session)
+			throws JMSException {
+		try {
+			return resolver.resolve(name, session);
+		} catch (JMSException jmse) {
+			throw jmse;
+		} catch (Exception e) {
+			final JMSException jmse = new JMSException(
+					"Failed to look up destination [" + name + "]");
+			jmse.setLinkedException(e);
+			throw jmse;
+		}
+	}
+}
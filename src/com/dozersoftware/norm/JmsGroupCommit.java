@@ -0,0 +1,291 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.jms.JMSException;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.actions.ActionProcessingException;
+
+/**
+ * Sends messages from many callers in shared transactions, each caller
+ * returning once the transaction holding its message has committed.
+ * <p/>
+ * A caller that finds no commit in flight leads: it sends its own message
+ * and any others queued, commits at once and returns. Callers arriving
+ * while a commit is in flight queue their messages and wait; once it ends,
+ * one of them leads the next transaction with everything queued by then.
+ * Nobody waits for a batch to fill, so a lone caller pays one commit per
+ * message, and batches grow with the number of callers routing at once.
+ * A leader stops taking queued messages once it has sent the most allowed
+ * in one transaction or has been sending for the longest allowed, and
+ * those left over go in the next.
+ * <p/>
+ * If a send or commit fails with a JMSException the transaction is reset
+ * and every message in it sent again once on a fresh one; if that fails
+ * too, each of those callers fails. A message the transaction refuses with
+ * an ActionProcessingException, having sent nothing, only fails its own
+ * caller.
+ */
+public class JmsGroupCommit {
+
+	private static Logger logger = Logger.getLogger(JmsGroupCommit.class);
+
+	/**
+	 * The transacted session the messages are sent on. Only called by the
+	 * leader, so by one thread at a time.
+	 */
+	public interface Transaction {
+		void send(Object message) throws JMSException,
+				ActionProcessingException;
+
+		void commit() throws JMSException;
+
+		/* Rolls back and drops the session; the next send opens another */
+		void reset();
+	}
+
+	private static final class Pending {
+		final Object message;
+		boolean done;
+		ActionProcessingException failure;
+
+		Pending(Object message) {
+			this.message = message;
+		}
+	}
+
+	private final Transaction transaction;
+	private final int maxMessages;
+	private final long maxMillis;
+	private final Object lock = new Object();
+	/* Messages waiting for the next leader, guarded by lock */
+	private final LinkedList<Pending> queued = new LinkedList<Pending>();
+	private boolean committing;
+	private long commits;
+	private long committed;
+
+	/**
+	 * @param maxMessages
+	 *            most messages in one transaction, at least 1.
+	 * @param maxMillis
+	 *            longest a leader keeps taking queued messages before it
+	 *            commits, 0 for no limit.
+	 */
+	public JmsGroupCommit(final Transaction transaction,
+			final int maxMessages, final long maxMillis) {
+		if (maxMessages < 1 || maxMillis < 0) {
+			throw new IllegalArgumentException(
+					"maxMessages must be at least 1 and maxMillis not negative");
+		}
+		this.transaction = transaction;
+		this.maxMessages = maxMessages;
+		this.maxMillis = maxMillis;
+	}
+
+	/**
+	 * Sends the message and returns once it has been committed.
+	 */
+	public void route(final Object message) throws ActionProcessingException {
+		final Pending pending = new Pending(message);
+		boolean interrupted = false;
+		try {
+			synchronized (lock) {
+				queued.add(pending);
+			}
+			while (true) {
+				synchronized (lock) {
+					while (committing && !pending.done) {
+						try {
+							lock.wait();
+						} catch (final InterruptedException ie) {
+							// The leader always finishes, so the wait is bounded by one commit
+							interrupted = true;
+						}
+					}
+					if (pending.done) {
+						break;
+					}
+					committing = true;
+				}
+				try {
+					lead();
+				} finally {
+					synchronized (lock) {
+						committing = false;
+						lock.notifyAll();
+					}
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (pending.failure != null) {
+			throw new ActionProcessingException(pending.failure.getMessage(),
+					pending.failure.getCause());
+		}
+	}
+
+	/**
+	 * Sends queued messages in one transaction and commits it. Called with
+	 * committing set, so by one thread at a time.
+	 */
+	private void lead() {
+		final List<Pending> batch = new ArrayList<Pending>();
+		final long started = System.currentTimeMillis();
+		try {
+			Pending next;
+			while ((next = next(batch.size(), started)) != null) {
+				batch.add(next);
+				try {
+					transaction.send(next.message);
+				} catch (final ActionProcessingException ape) {
+					// Nothing was sent for this message, the rest of the batch carries on
+					batch.remove(batch.size() - 1);
+					complete(next, ape);
+				}
+			}
+			if (batch.isEmpty()) {
+				return;
+			}
+			transaction.commit();
+			complete(batch, null);
+		} catch (final JMSException jmse) {
+			resend(batch, jmse);
+		}
+	}
+
+	private Pending next(final int sent, final long started) {
+		synchronized (lock) {
+			if (sent >= maxMessages
+					|| (sent > 0 && maxMillis > 0 && System.currentTimeMillis()
+							- started >= maxMillis)) {
+				return null;
+			}
+			return queued.poll();
+		}
+	}
+
+	/**
+	 * Sends the batch again once on a fresh session, failing every message
+	 * in it if that does not work either.
+	 */
+	private void resend(final List<Pending> batch, final JMSException cause) {
+		transaction.reset();
+		try {
+			for (Pending pending : batch) {
+				transaction.send(pending.message);
+			}
+			transaction.commit();
+			complete(batch, null);
+			return;
+		} catch (final JMSException jmse) {
+			logger.error("Failed to resend batch of " + batch.size()
+					+ " messages", jmse);
+		} catch (final ActionProcessingException ape) {
+			logger.error("Failed to resend batch of " + batch.size()
+					+ " messages", ape);
+		}
+		transaction.reset();
+		complete(batch, new ActionProcessingException(
+				"Unexpected exception routing batch of " + batch.size()
+						+ " messages", cause));
+	}
+
+	private void complete(final Pending pending,
+			final ActionProcessingException failure) {
+		synchronized (lock) {
+			pending.done = true;
+			pending.failure = failure;
+			lock.notifyAll();
+		}
+	}
+
+	private void complete(final List<Pending> batch,
+			final ActionProcessingException failure) {
+		synchronized (lock) {
+			for (Pending pending : batch) {
+				pending.done = true;
+				pending.failure = failure;
+			}
+			if (failure == null) {
+				commits++;
+				committed += batch.size();
+			}
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for a commit in flight to end, then resets the transaction.
+	 * Callers still routing lead their own commits afterwards.
+	 */
+	public void close() {
+		boolean interrupted = false;
+		synchronized (lock) {
+			while (committing) {
+				try {
+					lock.wait();
+				} catch (final InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+			committing = true;
+		}
+		try {
+			transaction.reset();
+		} finally {
+			synchronized (lock) {
+				committing = false;
+				lock.notifyAll();
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of transactions committed.
+	 */
+	public long getCommits() {
+		synchronized (lock) {
+			return commits;
+		}
+	}
+
+	/**
+	 * @return the number of messages committed.
+	 */
+	public long getCommitted() {
+		synchronized (lock) {
+			return committed;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+
+import org.apache.log4j.Logger;
+import org.jboss.internal.soa.esb.rosetta.pooling.JmsSession;
+
+/**
+ * Keeps the MessageProducers created on pooled JmsSessions open between
+ * sends, keyed by session and destination.
+ * <p/>
+ * A pooled session is only used by one thread at a time, so the producers
+ * for a session need no locking of their own, and are only ever closed by
+ * a thread that holds their session. The cache only guards the session
+ * table. Sessions are held in least recently used order. Once more than
+ * the configured number have been seen the eldest is retired: its
+ * producers are closed by the next thread to use it, or forgotten once as
+ * many sessions again have been retired after it, as the pool has then
+ * most likely discarded it, which closes them. {@link #evict(JmsSession)}
+ * is called after a session turns out to be broken; it closes that
+ * session's producers and retires every other session, as the pool drops
+ * all the sessions of a failed connection.
+ * <p/>
+ * The producers of each session are bounded too, as routes may name
+ * destinations after message content; the least recently used is closed
+ * when another is added.
+ */
+public class JmsProducerCache {
+
+	private static Logger logger = Logger.getLogger(JmsProducerCache.class);
+
+	private final Map<JmsSession, Map<Destination, MessageProducer>> sessions;
+	/* Producers to be closed by the next user of their session, eldest first */
+	private final Map<JmsSession, Map<Destination, MessageProducer>> retired;
+	private final int maxProducers;
+
+	private long hits;
+	private long misses;
+	private long abandoned;
+
+	/**
+	 * @param maxSessions
+	 *            most sessions whose producers are kept, at least 1.
+	 * @param maxProducers
+	 *            most producers kept open on one session, at least 1.
+	 */
+	public JmsProducerCache(final int maxSessions, final int maxProducers) {
+		if (maxSessions < 1 || maxProducers < 1) {
+			throw new IllegalArgumentException(
+					"maxSessions and maxProducers must be at least 1");
+		}
+		this.maxProducers = maxProducers;
+		this.retired = new LinkedHashMap<JmsSession, Map<Destination, MessageProducer>>() {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<JmsSession, Map<Destination, MessageProducer>> eldest) {
+				if (size() > maxSessions) {
+					abandoned++;
+					return true;
+				}
+				return false;
+			}
+		};
+		this.sessions = new LinkedHashMap<JmsSession, Map<Destination, MessageProducer>>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<JmsSession, Map<Destination, MessageProducer>> eldest) {
+				if (size() > maxSessions) {
+					retired.put(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Called by the thread holding the session. First closes the session's
+	 * producers if it was retired.
+	 *
+	 * @return the cached producer or null if there is none yet.
+	 */
+	public MessageProducer get(JmsSession session, Destination destination) {
+		Map<Destination, MessageProducer> stale;
+		MessageProducer producer;
+		synchronized (this) {
+			stale = retired.remove(session);
+			Map<Destination, MessageProducer> producers = sessions
+					.get(session);
+			producer = producers == null ? null : producers.get(destination);
+			if (producer == null) {
+				misses++;
+			} else {
+				hits++;
+			}
+		}
+		if (stale != null) {
+			close(stale);
+		}
+		return producer;
+	}
+
+	/**
+	 * Called by the thread holding the session, which closes the session's
+	 * least recently used producer if it has too many.
+	 */
+	public synchronized void put(JmsSession session, Destination destination,
+			MessageProducer producer) {
+		Map<Destination, MessageProducer> producers = sessions.get(session);
+		if (producers == null) {
+			producers = new LinkedHashMap<Destination, MessageProducer>(16,
+					0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(
+						Map.Entry<Destination, MessageProducer> eldest) {
+					if (size() > maxProducers) {
+						close(eldest.getValue());
+						return true;
+					}
+					return false;
+				}
+			};
+			sessions.put(session, producers);
+		}
+		producers.put(destination, producer);
+	}
+
+	/**
+	 * Closes and forgets every producer created on the session, which the
+	 * calling thread holds, and retires every other session.
+	 */
+	public void evict(JmsSession session) {
+		Map<Destination, MessageProducer> producers;
+		Map<Destination, MessageProducer> stale;
+		synchronized (this) {
+			producers = sessions.remove(session);
+			stale = retired.remove(session);
+			for (Map.Entry<JmsSession, Map<Destination, MessageProducer>> entry : sessions
+					.entrySet()) {
+				retired.put(entry.getKey(), entry.getValue());
+			}
+			sessions.clear();
+		}
+		if (producers != null) {
+			close(producers);
+		}
+		if (stale != null) {
+			close(stale);
+		}
+	}
+
+	/**
+	 * Closes and forgets every producer. Only called once nothing is being
+	 * sent any more.
+	 */
+	public void clear() {
+		List<Map<Destination, MessageProducer>> all;
+		synchronized (this) {
+			all = new ArrayList<Map<Destination, MessageProducer>>(sessions
+					.values());
+			all.addAll(retired.values());
+			sessions.clear();
+			retired.clear();
+		}
+		for (Map<Destination, MessageProducer> producers : all) {
+			close(producers);
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of retired sessions forgotten without their
+	 *         producers being closed.
+	 */
+	public synchronized long getAbandoned() {
+		return abandoned;
+	}
+
+	private static void close(Map<Destination, MessageProducer> producers) {
+		for (Iterator<MessageProducer> it = producers.values().iterator(); it
+				.hasNext();) {
+			close(it.next());
+		}
+	}
+
+	private static void close(MessageProducer producer) {
+		try {
+			producer.close();
+		} catch (JMSException e) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Failed to close cached producer", e);
+			}
+		}
+	}
+}
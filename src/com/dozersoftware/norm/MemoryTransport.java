@@ -0,0 +1,1034 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mil.navy.nrl.norm.enums.NormEventType;
+import mil.navy.nrl.norm.enums.NormFlushMode;
+import mil.navy.nrl.norm.enums.NormObjectType;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link NormTransport} that never leaves the JVM, for running the gateway
+ * and {@link NormLoadGenerator} where the NORM library or multicast is not
+ * available.
+ * <p/>
+ * Transports are named networks: everyone who {@link #acquire(String)}s the
+ * same name is on the same network. Sessions opened on the transport itself
+ * belong to node {@link #LOCAL_NODE_ID}, which is what the gateway listener
+ * and processor use; {@link #node(long)} gives any other node, so many
+ * remote senders can be simulated. As with {@link NormRuntime}, sessions are
+ * shared per group within a node, a node never receives what it sends and
+ * all events are delivered on one thread per network.
+ * <p/>
+ * Writes are cut into segments of the sender's segment-size and sent at its
+ * tx-rate, when one is set. Each segment reaches every other receiver in the
+ * group after the latency of the network's {@link Conditions}, and may be:
+ * <ul>
+ * <li>lost: NORM repairs most loss, so this stands for what it could not
+ * repair. The receiver's stream breaks, a read returns -1 and it has to seek
+ * the next message start.</li>
+ * <li>held back: the segment, and the rest of the stream with it, arrives
+ * after segments other senders sent later. NORM never reorders within a
+ * stream and neither does this.</li>
+ * </ul>
+ * A receiver keeps at most rx-buffer-size unread bytes of each stream; older
+ * segments are dropped as if lost. Files and data objects arrive whole, or
+ * are aborted if any of their segments is lost. Files are read into memory
+ * to be sent and written to the receiver's cache directory.
+ */
+public class MemoryTransport implements NormTransport {
+
+	private static Logger logger = Logger.getLogger(MemoryTransport.class);
+
+	public static final String DEFAULT_NETWORK = "default";
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * Node of the sessions opened on the transport itself.
+	 */
+	public static final long LOCAL_NODE_ID = 1;
+
+	/**
+	 * What happens to segments on their way to each receiver.
+	 */
+	public static final class Conditions {
+		private final double lossRate;
+		private final double reorderRate;
+		private final long reorderNanos;
+		private final long latencyNanos;
+
+		/**
+		 * @param lossRate
+		 *            chance of a segment being lost, from 0 to 1.
+		 * @param reorderRate
+		 *            chance of a segment being held back, from 0 to 1.
+		 * @param reorderMillis
+		 *            how long a segment is held back.
+		 * @param latencyMillis
+		 *            time every segment takes to arrive.
+		 */
+		public Conditions(double lossRate, double reorderRate,
+				long reorderMillis, long latencyMillis) {
+			if (lossRate < 0 || lossRate > 1 || reorderRate < 0
+					|| reorderRate > 1 || reorderMillis < 0
+					|| latencyMillis < 0) {
+				throw new IllegalArgumentException(
+						"Rates must be from 0 to 1 and times must not be negative");
+			}
+			this.lossRate = lossRate;
+			this.reorderRate = reorderRate;
+			this.reorderNanos = TimeUnit.MILLISECONDS.toNanos(reorderMillis);
+			this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+		}
+
+		public double getLossRate() {
+			return lossRate;
+		}
+
+		public double getReorderRate() {
+			return reorderRate;
+		}
+
+		public long getReorderMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(reorderNanos);
+		}
+
+		public long getLatencyMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+		}
+	}
+
+	/**
+	 * No loss, no reordering and no latency.
+	 */
+	public static final Conditions PERFECT = new Conditions(0, 0, 0, 0);
+
+	/* Bytes and message starts sent together, never changed once sent */
+	private static final class Segment {
+		final byte[] data;
+		final int[] starts;
+		final boolean end;
+
+		Segment(byte[] data, int[] starts, boolean end) {
+			this.data = data;
+			this.starts = starts;
+			this.end = end;
+		}
+
+		/* The first message start at or after the position, or -1 */
+		int nextStart(int position) {
+			for (int start : starts) {
+				if (start >= position) {
+					return start;
+				}
+			}
+			return -1;
+		}
+	}
+
+	private static final Segment END = new Segment(new byte[0], new int[0],
+			true);
+
+	/* Something to do on the event thread once it is due */
+	private abstract static class Task implements Comparable<Task> {
+		long due;
+		long sequence;
+
+		abstract void run();
+
+		public int compareTo(Task other) {
+			long order = due - other.due;
+			if (order == 0) {
+				order = sequence - other.sequence;
+			}
+			return order < 0 ? -1 : order > 0 ? 1 : 0;
+		}
+	}
+
+	private static final class MemoryEvent implements NormTransport.Event {
+		private final NormEventType type;
+		private final long nodeId;
+		private final NormTransport.Received object;
+
+		MemoryEvent(NormEventType type, long nodeId,
+				NormTransport.Received object) {
+			this.type = type;
+			this.nodeId = nodeId;
+			this.object = object;
+		}
+
+		public NormEventType getType() {
+			return type;
+		}
+
+		public long getNodeId() {
+			return nodeId;
+		}
+
+		public NormTransport.Received getObject() {
+			return object;
+		}
+	}
+
+	/* The receive side of a remote sender's stream */
+	private static final class RxStream implements NormTransport.Received,
+			NormFrameDecoder.Source {
+		final long nodeId;
+		final long capacity;
+		/* Event thread only */
+		boolean announced;
+		/* Guarded by the network */
+		long lastDue;
+
+		/* Guarded by this */
+		private final LinkedList<Segment> segments = new LinkedList<Segment>();
+		/* Segments that follow a break, until it is read or skipped */
+		private final List<Segment> breaks = new ArrayList<Segment>(2);
+		private boolean broken;
+		private int position;
+		private long buffered;
+		private long size;
+
+		RxStream(long nodeId, long capacity) {
+			this.nodeId = nodeId;
+			this.capacity = capacity;
+		}
+
+		/* @return the number of segments dropped for lack of room */
+		synchronized int append(Segment segment) {
+			segments.add(segment);
+			if (broken) {
+				breaks.add(segment);
+				broken = false;
+			}
+			buffered += segment.data.length;
+			size += segment.data.length;
+			int dropped = 0;
+			while (buffered > capacity && segments.size() > 1) {
+				Segment oldest = segments.removeFirst();
+				breaks.remove(oldest);
+				buffered -= oldest.data.length - position;
+				position = 0;
+				if (!breaks.contains(segments.getFirst())) {
+					breaks.add(segments.getFirst());
+				}
+				dropped++;
+			}
+			return dropped;
+		}
+
+		/* The next segment to arrive follows a break */
+		synchronized void lose() {
+			broken = true;
+		}
+
+		public synchronized boolean seekMsgStart() {
+			while (!segments.isEmpty()) {
+				Segment first = segments.getFirst();
+				breaks.remove(first);
+				int start = first.nextStart(position);
+				if (start >= 0) {
+					buffered -= start - position;
+					position = start;
+					return true;
+				}
+				buffered -= first.data.length - position;
+				segments.removeFirst();
+				position = 0;
+			}
+			return false;
+		}
+
+		public synchronized int read(byte[] buffer, int offset, int length) {
+			int total = 0;
+			while (total < length && !segments.isEmpty()) {
+				Segment first = segments.getFirst();
+				if (position == 0 && breaks.remove(first)) {
+					if (total > 0) {
+						// Hand over what came before the break first
+						breaks.add(first);
+						break;
+					}
+					return -1;
+				}
+				int count = Math.min(length - total, first.data.length
+						- position);
+				System.arraycopy(first.data, position, buffer, offset + total,
+						count);
+				position += count;
+				total += count;
+				buffered -= count;
+				if (position == first.data.length) {
+					segments.removeFirst();
+					position = 0;
+				}
+			}
+			return total;
+		}
+
+		public NormObjectType getType() {
+			return NormObjectType.NORM_OBJECT_STREAM;
+		}
+
+		public byte[] getInfo() {
+			return null;
+		}
+
+		public synchronized long getSize() {
+			return size;
+		}
+
+		public NormFrameDecoder.Source getStream() {
+			return this;
+		}
+
+		public String getFileName() {
+			throw new UnsupportedOperationException("Not a file object");
+		}
+
+		public byte[] getData() {
+			throw new UnsupportedOperationException("Not a data object");
+		}
+	}
+
+	/* A received file or data object */
+	private static final class MemoryObject implements NormTransport.Received {
+		final NormObjectType type;
+		final byte[] info;
+		final byte[] data;
+		String fileName;
+
+		MemoryObject(NormObjectType type, byte[] info, byte[] data) {
+			this.type = type;
+			this.info = info;
+			this.data = data;
+		}
+
+		public NormObjectType getType() {
+			return type;
+		}
+
+		public byte[] getInfo() {
+			return info;
+		}
+
+		public long getSize() {
+			return data.length;
+		}
+
+		public NormFrameDecoder.Source getStream() {
+			throw new UnsupportedOperationException("Not a stream object");
+		}
+
+		public String getFileName() throws IOException {
+			if (fileName == null) {
+				throw new IOException("Not a file object");
+			}
+			return fileName;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+	}
+
+	/* A node's view of the network */
+	private final class Node implements NormTransport {
+		final long id;
+		/* Guarded by the network */
+		final Map<String, MemorySession> sessions = new HashMap<String, MemorySession>();
+
+		Node(long id) {
+			this.id = id;
+		}
+
+		public NormTransport.Session openSession(String address, int port) {
+			String key = address + ":" + port;
+			synchronized (MemoryTransport.this) {
+				MemorySession session = sessions.get(key);
+				if (session == null) {
+					session = new MemorySession(this, key);
+					sessions.put(key, session);
+					List<MemorySession> members = groups.get(key);
+					if (members == null) {
+						members = new ArrayList<MemorySession>();
+						groups.put(key, members);
+					}
+					members.add(session);
+				}
+				session.references++;
+				return session;
+			}
+		}
+
+		public void release() {
+			MemoryTransport.this.release();
+		}
+	}
+
+	private final class MemorySession implements NormTransport.Session {
+		final Node node;
+		final String key;
+		volatile EventHandler sender;
+		volatile EventHandler receiver;
+
+		/* Guarded by the network */
+		int references;
+		boolean receiving;
+		long rxBufferSize;
+		String cacheDirectory;
+		boolean sending;
+		int segmentSize;
+		double txRate;
+		long nextTxNanos;
+		final Map<Object, RxStream> rxStreams = new HashMap<Object, RxStream>();
+
+		MemorySession(Node node, String key) {
+			this.node = node;
+			this.key = key;
+		}
+
+		public long getLocalNodeId() {
+			return node.id;
+		}
+
+		public void setSender(EventHandler handler) {
+			sender = handler;
+		}
+
+		public void setReceiver(EventHandler handler) {
+			receiver = handler;
+		}
+
+		public void startReceiver(NormSessionConfig config) {
+			synchronized (MemoryTransport.this) {
+				receiving = true;
+				rxBufferSize = config.getRxBufferSize();
+				cacheDirectory = config.getCacheDirectory();
+			}
+		}
+
+		public void stopReceiver() {
+			synchronized (MemoryTransport.this) {
+				receiving = false;
+				rxStreams.clear();
+			}
+		}
+
+		public void startSender(NormSessionConfig config, int sessionId) {
+			synchronized (MemoryTransport.this) {
+				sending = true;
+				segmentSize = config.getSegmentSize();
+				txRate = config.getTxRate();
+			}
+		}
+
+		public void stopSender() {
+			synchronized (MemoryTransport.this) {
+				sending = false;
+			}
+		}
+
+		public NormTransport.Stream openStream(long bufferSize)
+				throws IOException {
+			synchronized (MemoryTransport.this) {
+				if (!sending) {
+					throw new IOException("Sender is not started");
+				}
+				return new TxStream(this, bufferSize);
+			}
+		}
+
+		public void enqueueFile(String path, byte[] info) throws IOException {
+			File file = new File(path);
+			byte[] data = new byte[(int) file.length()];
+			InputStream in = new FileInputStream(file);
+			try {
+				int read = 0;
+				while (read < data.length) {
+					int count = in.read(data, read, data.length - read);
+					if (count < 0) {
+						throw new IOException("File shrank while reading: "
+								+ path);
+					}
+					read += count;
+				}
+			} finally {
+				in.close();
+			}
+			enqueue(NormObjectType.NORM_OBJECT_FILE, data, info);
+		}
+
+		public void enqueueData(byte[] data, int offset, int length,
+				byte[] info) throws IOException {
+			byte[] copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
+			enqueue(NormObjectType.NORM_OBJECT_DATA, copy, info);
+		}
+
+		private void enqueue(NormObjectType type, byte[] data, byte[] info)
+				throws IOException {
+			synchronized (MemoryTransport.this) {
+				if (!sending) {
+					throw new IOException("Sender is not started");
+				}
+				long sent = transmit(data.length);
+				schedule(new SenderEvent(this,
+						NormEventType.NORM_TX_OBJECT_SENT), sent);
+				int segments = Math.max(1, (data.length + segmentSize - 1)
+						/ segmentSize);
+				double lossRate = 1 - Math.pow(1 - conditions.lossRate,
+						segments);
+				for (MemorySession member : groups.get(key)) {
+					if (member.node == node || !member.receiving) {
+						continue;
+					}
+					boolean lost = random.nextDouble() < lossRate;
+					schedule(new ObjectDelivery(member, node.id,
+							new MemoryObject(type, info, data), lost),
+							arrival(sent));
+				}
+			}
+		}
+
+		public void setWatermark(NormTransport.Stream stream) {
+			synchronized (MemoryTransport.this) {
+				schedule(new SenderEvent(this,
+						NormEventType.NORM_TX_WATERMARK_COMPLETED),
+						((TxStream) stream).lastSentNanos);
+			}
+		}
+
+		public void close() {
+			synchronized (MemoryTransport.this) {
+				if (references == 0 || --references > 0) {
+					return;
+				}
+				node.sessions.remove(key);
+				List<MemorySession> members = groups.get(key);
+				members.remove(this);
+				if (members.isEmpty()) {
+					groups.remove(key);
+				}
+				receiving = false;
+				sending = false;
+			}
+		}
+
+		/*
+		 * Takes the bytes at the sender's rate, returning when the last of
+		 * them is sent. Guarded by the network.
+		 */
+		long transmit(int length) {
+			long start = Math.max(System.nanoTime(), nextTxNanos);
+			if (txRate > 0) {
+				nextTxNanos = start + (long) (length * 8 * 1e9 / txRate);
+				return nextTxNanos;
+			}
+			return start;
+		}
+	}
+
+	/* The transmit side of a stream; guarded by the network */
+	private final class TxStream implements NormTransport.Stream {
+		final MemorySession session;
+		final long capacity;
+		byte[] segment;
+		int fill;
+		int[] starts = new int[8];
+		int startCount;
+		boolean messageStart = true;
+		long pending;
+		boolean wantVacancy;
+		long lastSentNanos = System.nanoTime();
+		boolean closed;
+
+		TxStream(MemorySession session, long capacity) {
+			this.session = session;
+			this.capacity = capacity;
+		}
+
+		public int write(byte[] buffer, int offset, int length) {
+			synchronized (MemoryTransport.this) {
+				if (closed || !session.sending) {
+					return 0;
+				}
+				int accepted = (int) Math.min(length, capacity - pending);
+				if (accepted < length) {
+					wantVacancy = true;
+				}
+				int copied = 0;
+				while (copied < accepted) {
+					if (segment == null) {
+						segment = new byte[session.segmentSize];
+						fill = 0;
+						startCount = 0;
+					}
+					if (messageStart) {
+						if (startCount == starts.length) {
+							starts = Arrays.copyOf(starts, startCount * 2);
+						}
+						starts[startCount++] = fill;
+						messageStart = false;
+					}
+					int count = Math.min(accepted - copied, segment.length
+							- fill);
+					System.arraycopy(buffer, offset + copied, segment, fill,
+							count);
+					fill += count;
+					copied += count;
+					if (fill == segment.length) {
+						submit();
+					}
+				}
+				pending += accepted;
+				return accepted;
+			}
+		}
+
+		public void flush(boolean eom, NormFlushMode mode) {
+			synchronized (MemoryTransport.this) {
+				if (eom) {
+					messageStart = true;
+				}
+				if (fill > 0) {
+					submit();
+				}
+				schedule(new SenderEvent(session,
+						NormEventType.NORM_TX_FLUSH_COMPLETED), lastSentNanos);
+			}
+		}
+
+		public void markEom() {
+			synchronized (MemoryTransport.this) {
+				messageStart = true;
+			}
+		}
+
+		public void close() {
+			synchronized (MemoryTransport.this) {
+				if (closed) {
+					return;
+				}
+				if (fill > 0) {
+					submit();
+				}
+				closed = true;
+				deliver(END, session.transmit(0));
+			}
+		}
+
+		/* Sends the segment being filled */
+		private void submit() {
+			byte[] data = fill == segment.length ? segment : Arrays.copyOf(
+					segment, fill);
+			Segment sent = new Segment(data, Arrays.copyOf(starts, startCount),
+					false);
+			segment = null;
+			fill = 0;
+			startCount = 0;
+			lastSentNanos = session.transmit(data.length);
+			schedule(new SegmentSent(this, data.length), lastSentNanos);
+			deliver(sent, lastSentNanos);
+			segmentsSent.incrementAndGet();
+		}
+
+		/* Passes a sent segment on to every other receiver in the group */
+		private void deliver(Segment sent, long sentNanos) {
+			for (MemorySession member : groups.get(session.key)) {
+				if (member.node == session.node || !member.receiving) {
+					continue;
+				}
+				RxStream rx = member.rxStreams.get(this);
+				if (rx == null) {
+					if (sent.end) {
+						continue;
+					}
+					rx = new RxStream(session.node.id, member.rxBufferSize);
+					member.rxStreams.put(this, rx);
+				}
+				long due = Math.max(arrival(sentNanos), rx.lastDue);
+				rx.lastDue = due;
+				boolean lost = !sent.end
+						&& random.nextDouble() < conditions.lossRate;
+				schedule(new SegmentDelivery(member, this, rx, sent, lost), due);
+			}
+		}
+	}
+
+	private final class SegmentSent extends Task {
+		final TxStream stream;
+		final int length;
+
+		SegmentSent(TxStream stream, int length) {
+			this.stream = stream;
+			this.length = length;
+		}
+
+		void run() {
+			boolean vacancy;
+			synchronized (MemoryTransport.this) {
+				stream.pending -= length;
+				vacancy = stream.wantVacancy && stream.pending < stream.capacity;
+				if (vacancy) {
+					stream.wantVacancy = false;
+				}
+			}
+			if (vacancy) {
+				dispatch(stream.session.sender,
+						NormEventType.NORM_TX_QUEUE_VACANCY, 0, null);
+			}
+		}
+	}
+
+	private final class SenderEvent extends Task {
+		final MemorySession session;
+		final NormEventType type;
+
+		SenderEvent(MemorySession session, NormEventType type) {
+			this.session = session;
+			this.type = type;
+		}
+
+		void run() {
+			dispatch(session.sender, type, 0, null);
+		}
+	}
+
+	private final class SegmentDelivery extends Task {
+		final MemorySession member;
+		final TxStream stream;
+		final RxStream rx;
+		final Segment segment;
+		final boolean lost;
+
+		SegmentDelivery(MemorySession member, TxStream stream, RxStream rx,
+				Segment segment, boolean lost) {
+			this.member = member;
+			this.stream = stream;
+			this.rx = rx;
+			this.segment = segment;
+			this.lost = lost;
+		}
+
+		void run() {
+			if (segment.end) {
+				synchronized (MemoryTransport.this) {
+					member.rxStreams.remove(stream);
+				}
+				dispatch(member.receiver,
+						NormEventType.NORM_RX_OBJECT_COMPLETED, rx.nodeId, rx);
+				return;
+			}
+			if (lost) {
+				rx.lose();
+				segmentsLost.incrementAndGet();
+				return;
+			}
+			segmentsOverflowed.addAndGet(rx.append(segment));
+			if (!rx.announced) {
+				rx.announced = true;
+				dispatch(member.receiver, NormEventType.NORM_RX_OBJECT_NEW,
+						rx.nodeId, rx);
+			}
+			dispatch(member.receiver, NormEventType.NORM_RX_OBJECT_UPDATED,
+					rx.nodeId, rx);
+		}
+	}
+
+	private final class ObjectDelivery extends Task {
+		final MemorySession member;
+		final long nodeId;
+		final MemoryObject object;
+		final boolean lost;
+
+		ObjectDelivery(MemorySession member, long nodeId, MemoryObject object,
+				boolean lost) {
+			this.member = member;
+			this.nodeId = nodeId;
+			this.object = object;
+			this.lost = lost;
+		}
+
+		void run() {
+			boolean aborted = lost;
+			if (!aborted && object.type == NormObjectType.NORM_OBJECT_FILE) {
+				try {
+					object.fileName = store(object);
+				} catch (IOException e) {
+					logger.warn("NORM: Memory transport can't store file: "
+							+ e);
+					aborted = true;
+				}
+			}
+			if (aborted) {
+				objectsAborted.incrementAndGet();
+			}
+			dispatch(member.receiver,
+					aborted ? NormEventType.NORM_RX_OBJECT_ABORTED
+							: NormEventType.NORM_RX_OBJECT_COMPLETED, nodeId,
+					object);
+		}
+
+		/* Writes a received file to the cache directory, as NORM does */
+		private String store(MemoryObject object) throws IOException {
+			String name = object.info == null ? "" : new String(object.info,
+					ISO_8859_1).replaceAll("[^A-Za-z0-9._-]", "_");
+			File file = new File(member.cacheDirectory, "memory-" + nodeId
+					+ "-" + fileSequence.incrementAndGet() + "-" + name);
+			OutputStream out = new FileOutputStream(file);
+			try {
+				out.write(object.data);
+			} finally {
+				out.close();
+			}
+			return file.getPath();
+		}
+	}
+
+	/* Guarded by itself */
+	private static final Map<String, MemoryTransport> networks = new HashMap<String, MemoryTransport>();
+
+	private final String name;
+	private final Node localNode;
+	private final Thread eventThread;
+	/* Guarded by networks */
+	private int references;
+
+	/* Guarded by this */
+	private final Map<Long, Node> nodes = new HashMap<Long, Node>();
+	private final Map<String, List<MemorySession>> groups = new HashMap<String, List<MemorySession>>();
+	private final PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+	private final Random random = new Random();
+	private long taskSequence;
+	private boolean running = true;
+	private Conditions conditions = PERFECT;
+
+	private final AtomicLong segmentsSent = new AtomicLong();
+	private final AtomicLong segmentsLost = new AtomicLong();
+	private final AtomicLong segmentsHeld = new AtomicLong();
+	private final AtomicLong segmentsOverflowed = new AtomicLong();
+	private final AtomicLong objectsAborted = new AtomicLong();
+	private final AtomicLong fileSequence = new AtomicLong();
+
+	/**
+	 * Returns the named network, creating it on first use. Each call must be
+	 * matched by {@link #release()}.
+	 */
+	public static MemoryTransport acquire(String name) {
+		synchronized (networks) {
+			MemoryTransport network = networks.get(name);
+			if (network == null) {
+				network = new MemoryTransport(name);
+				networks.put(name, network);
+			}
+			network.references++;
+			return network;
+		}
+	}
+
+	private MemoryTransport(String name) {
+		this.name = name;
+		this.localNode = new Node(LOCAL_NODE_ID);
+		nodes.put(Long.valueOf(LOCAL_NODE_ID), localNode);
+
+		eventThread = new Thread(new Runnable() {
+			public void run() {
+				processTasks();
+			}
+		}, "NORM memory events " + name);
+		eventThread.setDaemon(true);
+		eventThread.start();
+	}
+
+	/**
+	 * Returns the view of the network of another node, taking a reference
+	 * to the network that is dropped by the returned transport's
+	 * {@link NormTransport#release()}.
+	 */
+	public NormTransport node(long nodeId) {
+		synchronized (networks) {
+			if (references == 0) {
+				throw new IllegalStateException("Network " + name
+						+ " is released");
+			}
+			references++;
+		}
+		synchronized (this) {
+			Node node = nodes.get(Long.valueOf(nodeId));
+			if (node == null) {
+				node = new Node(nodeId);
+				nodes.put(Long.valueOf(nodeId), node);
+			}
+			return node;
+		}
+	}
+
+	public NormTransport.Session openSession(String address, int port) {
+		return localNode.openSession(address, port);
+	}
+
+	/**
+	 * Drops a reference. The last one stops the event thread; whatever is
+	 * still on its way is lost.
+	 */
+	public void release() {
+		synchronized (networks) {
+			if (references == 0 || --references > 0) {
+				return;
+			}
+			networks.remove(name);
+		}
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		try {
+			eventThread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (logger.isInfoEnabled()) {
+			logger.info("NORM: Memory network " + name + " stopped. segments="
+					+ segmentsSent.get() + " lost=" + segmentsLost.get()
+					+ " held=" + segmentsHeld.get() + " overflowed=" + segmentsOverflowed.get()
+					+ " objectsAborted=" + objectsAborted.get());
+		}
+	}
+
+	/**
+	 * Sets what happens to segments sent from now on.
+	 */
+	public synchronized void setConditions(Conditions conditions) {
+		this.conditions = conditions;
+	}
+
+	public synchronized Conditions getConditions() {
+		return conditions;
+	}
+
+	/* When something sent at the given time arrives. Guarded by this */
+	private long arrival(long sentNanos) {
+		long due = sentNanos + conditions.latencyNanos;
+		if (conditions.reorderRate > 0
+				&& random.nextDouble() < conditions.reorderRate) {
+			due += conditions.reorderNanos;
+			segmentsHeld.incrementAndGet();
+		}
+		return due;
+	}
+
+	/* Guarded by this */
+	private void schedule(Task task, long due) {
+		task.due = due;
+		task.sequence = taskSequence++;
+		tasks.add(task);
+		if (tasks.peek() == task) {
+			notifyAll();
+		}
+	}
+
+	private static void dispatch(EventHandler handler, NormEventType type,
+			long nodeId, NormTransport.Received object) {
+		if (handler != null) {
+			handler.onNormEvent(new MemoryEvent(type, nodeId, object));
+		}
+	}
+
+	private void processTasks() {
+		while (true) {
+			Task task;
+			synchronized (this) {
+				while (true) {
+					if (!running) {
+						return;
+					}
+					task = tasks.peek();
+					long wait = task == null ? 0 : task.due - System.nanoTime();
+					if (task != null && wait <= 0) {
+						tasks.poll();
+						break;
+					}
+					try {
+						if (task == null) {
+							wait();
+						} else {
+							TimeUnit.NANOSECONDS.timedWait(this, wait);
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.error("NORM: Memory network event handler failed", e);
+			}
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSegmentsSent() {
+		return segmentsSent.get();
+	}
+
+	public long getSegmentsLost() {
+		return segmentsLost.get();
+	}
+
+	public long getSegmentsHeld() {
+		return segmentsHeld.get();
+	}
+
+	public long getSegmentsOverflowed() {
+		return segmentsOverflowed.get();
+	}
+
+	public long getObjectsAborted() {
+		return objectsAborted.get();
+	}
+}
@@ -0,0 +1,297 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.nio.charset.Charset;
+
+/**
+ * Reads and writes the normChat {@code <MESSAGE type="..." sender="...">}
+ * envelope.
+ * <p/>
+ * {@link #parse} makes a single pass over a received frame and records where
+ * the type and sender attributes and the body are, as offsets into the
+ * caller's buffer; nothing is copied and no DOM is built. Attribute values
+ * are turned into Strings only when asked for, and the most recent ones are
+ * kept and compared byte for byte, so the handful of distinct types and
+ * senders on a channel cost no allocation per message. Entities in attribute
+ * values are decoded; the body is left as it was sent.
+ * <p/>
+ * An instance holds the state of the last frame parsed and is not thread
+ * safe.
+ */
+public class NormChatEnvelope {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final byte[] MESSAGE = ascii("MESSAGE");
+	private static final byte[] END_TAG = ascii("</MESSAGE>");
+	private static final byte[] TYPE = ascii("type");
+	private static final byte[] SENDER = ascii("sender");
+
+	private static final int VALUE_CACHE_SIZE = 16;
+
+	private byte[] buffer;
+	private int typeOffset;
+	private int typeLength = -1;
+	private int senderOffset;
+	private int senderLength = -1;
+	private int bodyOffset;
+	private int bodyLength;
+
+	/* Recently seen attribute values, by their encoded bytes */
+	private final byte[][] cachedBytes = new byte[VALUE_CACHE_SIZE][];
+	private final String[] cachedValues = new String[VALUE_CACHE_SIZE];
+	private int cacheNext;
+
+	/**
+	 * Parses the envelope of one frame. The buffer must not change while the
+	 * results are in use.
+	 *
+	 * @return false if the frame isn't a MESSAGE envelope.
+	 */
+	public boolean parse(byte[] buf, int offset, int length) {
+		buffer = buf;
+		typeLength = senderLength = -1;
+		bodyOffset = bodyLength = 0;
+
+		int end = offset + length;
+		int i = skipWhitespace(buf, offset, end);
+		if (i + 1 < end && buf[i] == '<' && buf[i + 1] == '?') {
+			// XML declaration
+			while (i + 1 < end && !(buf[i] == '?' && buf[i + 1] == '>')) {
+				i++;
+			}
+			i = skipWhitespace(buf, i + 2, end);
+		}
+		if (i >= end || buf[i] != '<' || !matches(buf, i + 1, end, MESSAGE)) {
+			return false;
+		}
+		i += 1 + MESSAGE.length;
+		if (i >= end || !(isWhitespace(buf[i]) || buf[i] == '>' || buf[i] == '/')) {
+			return false;
+		}
+
+		while (true) {
+			i = skipWhitespace(buf, i, end);
+			if (i >= end) {
+				return false;
+			}
+			if (buf[i] == '>') {
+				i++;
+				break;
+			}
+			if (buf[i] == '/') {
+				// <MESSAGE ... />
+				return i + 1 < end && buf[i + 1] == '>';
+			}
+
+			int nameStart = i;
+			while (i < end && buf[i] != '=' && buf[i] != '>'
+					&& buf[i] != '/' && !isWhitespace(buf[i])) {
+				i++;
+			}
+			int nameLength = i - nameStart;
+			i = skipWhitespace(buf, i, end);
+			if (i >= end || buf[i] != '=') {
+				return false;
+			}
+			i = skipWhitespace(buf, i + 1, end);
+			if (i >= end || (buf[i] != '"' && buf[i] != '\'')) {
+				return false;
+			}
+			byte quote = buf[i++];
+			int valueStart = i;
+			while (i < end && buf[i] != quote) {
+				i++;
+			}
+			if (i >= end) {
+				return false;
+			}
+			if (equals(buf, nameStart, nameLength, TYPE)) {
+				typeOffset = valueStart;
+				typeLength = i - valueStart;
+			} else if (equals(buf, nameStart, nameLength, SENDER)) {
+				senderOffset = valueStart;
+				senderLength = i - valueStart;
+			}
+			i++;
+		}
+
+		// The body runs up to the closing tag, looked for from the end
+		int close = end - END_TAG.length;
+		while (close >= i && !matches(buf, close, end, END_TAG)) {
+			close--;
+		}
+		bodyOffset = i;
+		bodyLength = (close >= i ? close : end) - i;
+		return true;
+	}
+
+	/**
+	 * @return the type attribute of the last frame parsed, or null.
+	 */
+	public String getType() {
+		return typeLength < 0 ? null : value(typeOffset, typeLength);
+	}
+
+	/**
+	 * @return the sender attribute of the last frame parsed, or null.
+	 */
+	public String getSender() {
+		return senderLength < 0 ? null : value(senderOffset, senderLength);
+	}
+
+	/**
+	 * @return true if the type attribute is exactly the given ASCII string,
+	 *         without creating a String.
+	 */
+	public boolean isType(String type) {
+		if (typeLength != type.length()) {
+			return false;
+		}
+		for (int i = 0; i < typeLength; i++) {
+			if (buffer[typeOffset + i] != type.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getBodyOffset() {
+		return bodyOffset;
+	}
+
+	public int getBodyLength() {
+		return bodyLength;
+	}
+
+	/**
+	 * @return a copy of the body of the last frame parsed.
+	 */
+	public String getBody() {
+		return new String(buffer, bodyOffset, bodyLength, ISO_8859_1);
+	}
+
+	/**
+	 * Builds an envelope, escaping the attribute values. The body is added as
+	 * it is.
+	 */
+	public static String format(String type, String sender, String body) {
+		StringBuilder xml = new StringBuilder(40 + type.length()
+				+ sender.length() + (body == null ? 0 : body.length()));
+		xml.append("<MESSAGE type=\"");
+		escape(xml, type);
+		xml.append("\" sender=\"");
+		escape(xml, sender);
+		xml.append("\">");
+		if (body != null) {
+			xml.append(body);
+		}
+		xml.append("</MESSAGE>");
+		return xml.toString();
+	}
+
+	/* Returns a cached String for the bytes or makes and caches one */
+	private String value(int offset, int length) {
+		for (int i = 0; i < VALUE_CACHE_SIZE; i++) {
+			byte[] cached = cachedBytes[i];
+			if (cached != null && equals(buffer, offset, length, cached)) {
+				return cachedValues[i];
+			}
+		}
+		byte[] bytes = new byte[length];
+		System.arraycopy(buffer, offset, bytes, 0, length);
+		String value = unescape(new String(bytes, ISO_8859_1));
+		cachedBytes[cacheNext] = bytes;
+		cachedValues[cacheNext] = value;
+		cacheNext = (cacheNext + 1) % VALUE_CACHE_SIZE;
+		return value;
+	}
+
+	private static void escape(StringBuilder xml, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				xml.append("&amp;");
+				break;
+			case '<':
+				xml.append("&lt;");
+				break;
+			case '>':
+				xml.append("&gt;");
+				break;
+			case '"':
+				xml.append("&quot;");
+				break;
+			case '\'':
+				xml.append("&apos;");
+				break;
+			default:
+				xml.append(c);
+			}
+		}
+	}
+
+	private static String unescape(String value) {
+		if (value.indexOf('&') < 0) {
+			return value;
+		}
+		return value.replace("&lt;", "<").replace("&gt;", ">").replace(
+				"&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+	}
+
+	private static boolean matches(byte[] buf, int offset, int end,
+			byte[] token) {
+		return end - offset >= token.length
+				&& equals(buf, offset, token.length, token);
+	}
+
+	private static boolean equals(byte[] buf, int offset, int length,
+			byte[] token) {
+		if (length != token.length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (buf[offset + i] != token[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int skipWhitespace(byte[] buf, int i, int end) {
+		while (i < end && isWhitespace(buf[i])) {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(ISO_8859_1);
+	}
+}
@@ -0,0 +1,164 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers recently delivered chat frames so copies arriving again within
+ * the window can be dropped.
+ * <p/>
+ * A frame is identified by a 64 bit key made from its origin and a hash of
+ * its bytes. Keys and the time they were first seen are kept in two
+ * parallel long arrays used as an open addressed table, so nothing is
+ * allocated per frame. A lookup probes a few slots from the key's home
+ * slot; a slot whose entry is older than the window is free. When every
+ * probed slot is still inside the window the oldest of them is overwritten,
+ * so a full table forgets early rather than growing. Not thread safe; only
+ * used on the runtime's event thread.
+ */
+public class NormDuplicateFilter {
+
+	private static final int MAX_PROBES = 8;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final long[] keys;
+	private final long[] seen;
+	private final int mask;
+	private final long windowNanos;
+
+	private long checked;
+	private long duplicates;
+	private long forgotten;
+
+	/**
+	 * @param capacity
+	 *            number of frames remembered, rounded up to a power of two.
+	 * @param windowMillis
+	 *            how long a frame is remembered.
+	 */
+	public NormDuplicateFilter(int capacity, long windowMillis) {
+		if (capacity < 1 || windowMillis < 1) {
+			throw new IllegalArgumentException(
+					"capacity and window must be at least 1");
+		}
+		int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+		this.keys = new long[size];
+		this.seen = new long[size];
+		this.mask = size - 1;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+	}
+
+	/**
+	 * Records the frame.
+	 *
+	 * @return true if the same frame from the same origin was already seen
+	 *         within the window.
+	 */
+	public boolean isDuplicate(long origin, byte[] buffer, int offset,
+			int length) {
+		return isDuplicate(key(origin, buffer, offset, length), System
+				.nanoTime());
+	}
+
+	boolean isDuplicate(long key, long now) {
+		checked++;
+		int slot = (int) (key ^ (key >>> 32)) & mask;
+		int free = -1;
+		int oldest = slot;
+		for (int i = 0; i < MAX_PROBES; i++, slot = (slot + 1) & mask) {
+			boolean live = keys[slot] != 0 && now - seen[slot] < windowNanos;
+			if (live && keys[slot] == key) {
+				duplicates++;
+				return true;
+			}
+			if (!live) {
+				if (free < 0) {
+					free = slot;
+				}
+			} else if (seen[slot] - seen[oldest] < 0) {
+				oldest = slot;
+			}
+		}
+		if (free < 0) {
+			forgotten++;
+			free = oldest;
+		}
+		keys[free] = key;
+		seen[free] = now;
+		return false;
+	}
+
+	/**
+	 * FNV-1a over the origin and the frame bytes, with a final mix so the
+	 * low bits used for the home slot depend on every input byte. Never 0,
+	 * which marks an empty slot.
+	 */
+	static long key(long origin, byte[] buffer, int offset, int length) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < 8; i++) {
+			h = (h ^ ((origin >>> (i * 8)) & 0xFF)) * FNV_PRIME;
+		}
+		for (int i = offset, end = offset + length; i < end; i++) {
+			h = (h ^ (buffer[i] & 0xFF)) * FNV_PRIME;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * A stable origin for a name, such as the sender attribute of a chat
+	 * envelope.
+	 */
+	static long origin(String name) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < name.length(); i++) {
+			h = (h ^ name.charAt(i)) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	public int capacity() {
+		return keys.length;
+	}
+
+	public long getChecked() {
+		return checked;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Frames overwritten while still inside the window because the table
+	 * was full around them.
+	 */
+	public long getForgotten() {
+		return forgotten;
+	}
+}
@@ -0,0 +1,294 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Retention and read access for the files NORM writes into its cache
+ * directory.
+ * <p/>
+ * Received files are registered with {@link #add(File)} and kept in least
+ * recently used order. Once they take up more than the configured number of
+ * bytes the oldest are deleted. Files are mapped read-only on first use, so
+ * {@link #read} serves a chunk straight from the page cache and the checksum
+ * is computed without loading the file on to the heap.
+ * <p/>
+ * There is one cache per directory, shared by everything in the deployment
+ * that uses it.
+ */
+public class NormFileCache {
+
+	private static Logger logger = Logger.getLogger(NormFileCache.class);
+
+	/* A registered file and its mapping, once made */
+	private static final class Entry {
+		final File file;
+		final long size;
+		MappedByteBuffer buffer;
+		long checksum = -1;
+
+		Entry(File file) {
+			this.file = file;
+			this.size = file.length();
+		}
+	}
+
+	private static final Map<String, NormFileCache> caches = new HashMap<String, NormFileCache>();
+
+	private final File directory;
+	private final String directoryPath;
+	private long maxBytes;
+
+	/* Guarded by this, in access order */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private long bytes;
+
+	private long evicted;
+	private long reads;
+	private long misses;
+
+	/**
+	 * Returns the cache for the directory, creating it, and registering the
+	 * files already there oldest first, on first use.
+	 */
+	public static synchronized NormFileCache getInstance(String directory)
+			throws IOException {
+		File dir = new File(directory).getCanonicalFile();
+		NormFileCache cache = caches.get(dir.getPath());
+		if (cache == null) {
+			cache = new NormFileCache(dir);
+			caches.put(dir.getPath(), cache);
+		}
+		return cache;
+	}
+
+	private NormFileCache(File directory) throws IOException {
+		this.directory = directory;
+		this.directoryPath = directory.getPath() + File.separator;
+
+		File[] existing = directory.listFiles();
+		if (existing != null) {
+			Arrays.sort(existing, new Comparator<File>() {
+				public int compare(File a, File b) {
+					long diff = a.lastModified() - b.lastModified();
+					return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+				}
+			});
+			for (File file : existing) {
+				if (file.isFile()) {
+					add(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the most bytes kept, 0 for no limit, evicting at once if need be.
+	 * With several users the largest limit wins.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		if (this.maxBytes == 0 || maxBytes == 0 || maxBytes > this.maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+		evict();
+	}
+
+	/**
+	 * Registers a file written into the directory.
+	 *
+	 * @return the file's canonical path, which identifies it from now on.
+	 */
+	public synchronized String add(File file) throws IOException {
+		String path = resolve(file.getPath()).getPath();
+		Entry previous = entries.remove(path);
+		if (previous != null) {
+			bytes -= previous.size;
+		}
+		Entry entry = new Entry(new File(path));
+		entries.put(path, entry);
+		bytes += entry.size;
+		evict();
+		return path;
+	}
+
+	/**
+	 * @return the file's size or -1 if it isn't in the cache.
+	 */
+	public synchronized long size(String path) throws IOException {
+		Entry entry = entries.get(resolve(path).getPath());
+		return entry == null ? -1 : entry.size;
+	}
+
+	/**
+	 * @return the CRC-32 of the file's contents.
+	 */
+	public long checksum(String path) throws IOException {
+		MappedByteBuffer buffer;
+		Entry entry;
+		synchronized (this) {
+			entry = get(path);
+			if (entry.checksum >= 0) {
+				return entry.checksum;
+			}
+			buffer = map(entry);
+		}
+
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[8192];
+		ByteBuffer view = buffer.duplicate();
+		view.clear();
+		while (view.hasRemaining()) {
+			int n = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+
+		synchronized (this) {
+			entry.checksum = crc.getValue();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Copies up to length bytes from the offset in the file into the array.
+	 *
+	 * @return the number of bytes copied, -1 at the end of the file.
+	 */
+	public int read(String path, long offset, byte[] dst, int dstOffset,
+			int length) throws IOException {
+		MappedByteBuffer buffer;
+		synchronized (this) {
+			buffer = map(get(path));
+			reads++;
+		}
+		if (offset >= buffer.capacity()) {
+			return -1;
+		}
+		ByteBuffer view = buffer.duplicate();
+		view.clear();
+		view.position((int) offset);
+		int n = Math.min(length, view.remaining());
+		view.get(dst, dstOffset, n);
+		return n;
+	}
+
+	private Entry get(String path) throws IOException {
+		Entry entry = entries.get(resolve(path).getPath());
+		if (entry == null) {
+			misses++;
+			throw new IOException("Not in the NORM cache: " + path);
+		}
+		return entry;
+	}
+
+	/* Maps the file read-only, once */
+	private static MappedByteBuffer map(Entry entry) throws IOException {
+		if (entry.buffer == null) {
+			if (entry.size > Integer.MAX_VALUE) {
+				throw new IOException("Too large to map: " + entry.file);
+			}
+			RandomAccessFile file = new RandomAccessFile(entry.file, "r");
+			try {
+				entry.buffer = file.getChannel().map(
+						FileChannel.MapMode.READ_ONLY, 0, entry.size);
+			} finally {
+				file.close();
+			}
+		}
+		return entry.buffer;
+	}
+
+	/* Rejects anything outside the cache directory */
+	private File resolve(String path) throws IOException {
+		File file = new File(path);
+		if (!file.isAbsolute()) {
+			file = new File(directory, path);
+		}
+		file = file.getCanonicalFile();
+		if (!file.getPath().startsWith(directoryPath)) {
+			throw new IOException("Not in the NORM cache directory: " + path);
+		}
+		return file;
+	}
+
+	/*
+	 * Deletes least recently used files until under the limit, always
+	 * keeping the newest.
+	 */
+	private void evict() {
+		if (maxBytes <= 0) {
+			return;
+		}
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > maxBytes && entries.size() > 1) {
+			Entry entry = it.next();
+			it.remove();
+			bytes -= entry.size;
+			entry.buffer = null;
+			if (!entry.file.delete()) {
+				logger.warn("NORM: Can't delete cached file " + entry.file);
+			}
+			evicted++;
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public synchronized int getFiles() {
+		return entries.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getEvicted() {
+		return evicted;
+	}
+
+	public synchronized long getReads() {
+		return reads;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,156 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.io.IOException;
+
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.actions.AbstractActionPipelineProcessor;
+import org.jboss.soa.esb.actions.ActionLifecycleException;
+import org.jboss.soa.esb.actions.ActionProcessingException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Serves chunks of files received by the NormGatewayListener in descriptor
+ * mode.
+ * <p/>
+ * A consumer that got a file descriptor from the norm_in topic asks for the
+ * bytes it wants with a request carrying these properties:
+ * <ul>
+ * <li><i>NormFilePath</i>: the path from the descriptor (required).</li>
+ * <li><i>NormChunkOffset</i>: where to start, default 0.</li>
+ * <li><i>NormChunkLength</i>: how many bytes, default and maximum
+ * chunk-size.</li>
+ * </ul>
+ * The reply body is a byte[] read from the mapped file, empty past the end.
+ * NormChunkOffset, NormObjectSize and NormFileChecksum are set on it. Only
+ * files in the cache directory can be read.
+ * <p/>
+ * Sample Action Configuration:
+ * <pre>{@code
+ * <action name="files" class="com.dozersoftware.norm.NormFileReader">
+ *     <property name="cache-directory" value="/tmp/norm"/>
+ *     <property name="chunk-size" value="65536"/>
+ * </action>
+ * }</pre>
+ */
+public class NormFileReader extends AbstractActionPipelineProcessor {
+
+	public static final String CHUNK_SIZE = "chunk-size";
+
+	public static final String PATH_PROPERTY = "NormFilePath";
+	public static final String OFFSET_PROPERTY = "NormChunkOffset";
+	public static final String LENGTH_PROPERTY = "NormChunkLength";
+	public static final String CHECKSUM_PROPERTY = "NormFileChecksum";
+
+	private final String cacheDirectory;
+	private final int chunkSize;
+	private NormFileCache cache;
+
+	public NormFileReader(ConfigTree config) throws ConfigurationException {
+		this.cacheDirectory = config.getAttribute(
+				NormSessionConfig.CACHE_DIRECTORY, "/tmp/norm");
+		String size = config.getAttribute(CHUNK_SIZE, "65536");
+		try {
+			this.chunkSize = Integer.parseInt(size.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '" + CHUNK_SIZE
+					+ "' value: " + size, e);
+		}
+		if (chunkSize < 1) {
+			throw new ConfigurationException("'" + CHUNK_SIZE
+					+ "' must be at least 1");
+		}
+	}
+
+	public void initialise() throws ActionLifecycleException {
+		try {
+			cache = NormFileCache.getInstance(cacheDirectory);
+		} catch (IOException e) {
+			throw new ActionLifecycleException("NORM: Can't open cache "
+					+ cacheDirectory, e);
+		}
+	}
+
+	public Message process(final Message message)
+			throws ActionProcessingException {
+		Object path = message.getProperties().getProperty(PATH_PROPERTY);
+		if (path == null) {
+			throw new ActionProcessingException("NORM: Missing '"
+					+ PATH_PROPERTY + "' property");
+		}
+		long offset = getLong(message, OFFSET_PROPERTY, 0);
+		long length = Math.min(getLong(message, LENGTH_PROPERTY, chunkSize),
+				chunkSize);
+		if (offset < 0 || length < 0) {
+			throw new ActionProcessingException("NORM: Negative '"
+					+ OFFSET_PROPERTY + "' or '" + LENGTH_PROPERTY + "'");
+		}
+
+		try {
+			String file = path.toString();
+			long size = cache.size(file);
+			if (size < 0) {
+				throw new ActionProcessingException("NORM: Not in the cache: "
+						+ file);
+			}
+			byte[] chunk = new byte[(int) Math.max(0, Math.min(length, size
+					- offset))];
+			if (chunk.length > 0) {
+				cache.read(file, offset, chunk, 0, chunk.length);
+			}
+
+			message.getBody().add(chunk);
+			message.getProperties().setProperty(OFFSET_PROPERTY,
+					Long.valueOf(offset));
+			message.getProperties().setProperty(
+					NormGatewayListener.OBJECT_SIZE_PROPERTY, Long.valueOf(size));
+			message.getProperties().setProperty(CHECKSUM_PROPERTY,
+					Long.valueOf(cache.checksum(file)));
+		} catch (IOException e) {
+			throw new ActionProcessingException("NORM: Can't read " + path, e);
+		}
+		return message;
+	}
+
+	private static long getLong(Message message, String name, long defaultValue)
+			throws ActionProcessingException {
+		Object value = message.getProperties().getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		try {
+			return Long.parseLong(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new ActionProcessingException("NORM: Invalid '" + name
+					+ "' value: " + value, e);
+		}
+	}
+
+	public void destroy() throws ActionLifecycleException {
+	}
+}
@@ -0,0 +1,178 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import mil.navy.nrl.norm.NormStream;
+
+/**
+ * Decodes normChat frames (a 2 byte big-endian length, which includes itself,
+ * followed by the payload) from a NORM stream.
+ * <p/>
+ * One decoder is kept per remote sender stream. It owns a single receive
+ * buffer and keeps the partial frame state between calls, so a frame that
+ * straddles two NORM_RX_OBJECT_UPDATED events is completed on the next one.
+ * Frames are handed to the {@link FrameHandler} as a view over the receive
+ * buffer; nothing is allocated per frame.
+ */
+public class NormFrameDecoder {
+
+	public static final int HEADER_LENGTH = 2;
+
+	/**
+	 * Where the decoder reads from. Mirrors the parts of {@link NormStream}
+	 * used on the receive side.
+	 */
+	public interface Source {
+		boolean seekMsgStart();
+
+		/**
+		 * @return the number of bytes read, 0 if none are available or a
+		 *         negative value if the stream is broken.
+		 */
+		int read(byte[] buffer, int offset, int length);
+	}
+
+	/**
+	 * Receives each completed frame. The buffer is only valid for the
+	 * duration of the call.
+	 */
+	public interface FrameHandler {
+		void onFrame(byte[] buffer, int offset, int length);
+	}
+
+	/**
+	 * {@link Source} backed by a {@link NormStream}.
+	 */
+	public static class StreamSource implements Source {
+		private final NormStream stream;
+
+		public StreamSource(NormStream stream) {
+			this.stream = stream;
+		}
+
+		public boolean seekMsgStart() {
+			return stream.seekMsgStart();
+		}
+
+		public int read(byte[] buffer, int offset, int length) {
+			return stream.read(buffer, offset, length);
+		}
+	}
+
+	private final Source source;
+	private final int maxPacketLength;
+	private final byte[] rxBuffer;
+
+	private int rxIndex;
+	private int rxPacketLength;
+	private boolean msgSync;
+
+	private long frames;
+	private long resyncs;
+	private long oversized;
+
+	public NormFrameDecoder(Source source, int maxPacketLength) {
+		this.source = source;
+		this.maxPacketLength = maxPacketLength;
+		this.rxBuffer = new byte[maxPacketLength];
+	}
+
+	/**
+	 * Reads everything currently available from the stream, handing each
+	 * completed frame to the handler.
+	 *
+	 * @return the number of frames decoded.
+	 */
+	public int decode(FrameHandler handler) {
+		int decoded = 0;
+		while (true) {
+			if (!msgSync) {
+				msgSync = source.seekMsgStart();
+				if (!msgSync) {
+					break;
+				}
+				resyncs++;
+			}
+
+			int wanted = rxPacketLength != 0 ? rxPacketLength - rxIndex
+					: HEADER_LENGTH - rxIndex;
+			int read = source.read(rxBuffer, rxIndex, wanted);
+			if (read < 0) {
+				// Stream break, drop the partial frame and resync
+				reset();
+				continue;
+			}
+			if (read == 0) {
+				break;
+			}
+			rxIndex += read;
+
+			if (rxPacketLength == 0) {
+				if (rxIndex < HEADER_LENGTH) {
+					continue;
+				}
+				rxPacketLength = ((rxBuffer[0] & 0xFF) << 8)
+						| (rxBuffer[1] & 0xFF);
+				if (rxPacketLength < HEADER_LENGTH
+						|| rxPacketLength > maxPacketLength) {
+					oversized++;
+					reset();
+					continue;
+				}
+			}
+
+			if (rxIndex >= rxPacketLength) {
+				handler.onFrame(rxBuffer, HEADER_LENGTH, rxPacketLength
+						- HEADER_LENGTH);
+				rxIndex = rxPacketLength = 0;
+				frames++;
+				decoded++;
+			}
+		}
+		return decoded;
+	}
+
+	/**
+	 * Drops any partial frame and forces a resync on the next read.
+	 */
+	public void reset() {
+		msgSync = false;
+		rxIndex = rxPacketLength = 0;
+	}
+
+	public boolean isMidFrame() {
+		return rxIndex != 0;
+	}
+
+	public long getFrames() {
+		return frames;
+	}
+
+	public long getResyncs() {
+		return resyncs;
+	}
+
+	public long getOversized() {
+		return oversized;
+	}
+}
@@ -0,0 +1,186 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes payloads as normChat frames, splitting those too long for one
+ * frame into numbered fragments.
+ * <p/>
+ * A payload that fits is sent exactly as normChat would send it. A longer
+ * one becomes a run of ordinary frames, each starting with a fragment
+ * header:
+ * <pre>
+ * 0x00 'F' | message id (4) | fragment index (2) | fragment count (2) | data
+ * </pre>
+ * The length prefix is unchanged, so stock normChat peers keep their framing
+ * and see each fragment as a separate line. Chat text never starts with a
+ * NUL; a payload that does is sent as a single fragment so it can't be
+ * mistaken for one. {@link NormReassembler} puts fragments back together.
+ * All numbers are big-endian.
+ */
+public class NormFrameEncoder {
+
+	public static final int FRAGMENT_HEADER_LENGTH = 10;
+	public static final int MAX_FRAGMENTS = 0xFFFF;
+
+	static final byte FRAGMENT_MARKER = 0;
+	static final byte FRAGMENT_TYPE = 'F';
+
+	private final int maxPacketLength;
+	private final int maxFragmentData;
+	private final AtomicInteger messageIds = new AtomicInteger();
+
+	public NormFrameEncoder(int maxPacketLength) {
+		if (maxPacketLength <= NormFrameDecoder.HEADER_LENGTH
+				+ FRAGMENT_HEADER_LENGTH) {
+			throw new IllegalArgumentException("maxPacketLength too small: "
+					+ maxPacketLength);
+		}
+		this.maxPacketLength = maxPacketLength;
+		this.maxFragmentData = maxPacketLength - NormFrameDecoder.HEADER_LENGTH
+				- FRAGMENT_HEADER_LENGTH;
+	}
+
+	/**
+	 * @return true if the frame payload is a fragment header plus data.
+	 */
+	public static boolean isFragment(byte[] buffer, int offset, int length) {
+		return length >= FRAGMENT_HEADER_LENGTH
+				&& buffer[offset] == FRAGMENT_MARKER
+				&& buffer[offset + 1] == FRAGMENT_TYPE;
+	}
+
+	/**
+	 * @return the number of frames the payload is sent as.
+	 */
+	public int frameCount(byte[] payload, int offset, int length) {
+		if (!needsFragments(payload, offset, length)) {
+			return 1;
+		}
+		int count = Math.max(1, (length + maxFragmentData - 1)
+				/ maxFragmentData);
+		if (count > MAX_FRAGMENTS) {
+			throw new IllegalArgumentException("Payload of " + length
+					+ " bytes needs more than " + MAX_FRAGMENTS + " fragments");
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes {@link #encode} writes for the payload.
+	 */
+	public int encodedLength(byte[] payload, int offset, int length) {
+		if (!needsFragments(payload, offset, length)) {
+			return NormFrameDecoder.HEADER_LENGTH + length;
+		}
+		return length + frameCount(payload, offset, length)
+				* (NormFrameDecoder.HEADER_LENGTH + FRAGMENT_HEADER_LENGTH);
+	}
+
+	/**
+	 * Writes the frames for the payload into the buffer, which must have
+	 * room for {@link #encodedLength} bytes.
+	 *
+	 * @return the position after the last frame.
+	 */
+	public int encode(byte[] payload, int offset, int length, byte[] buffer,
+			int position) {
+		if (!needsFragments(payload, offset, length)) {
+			putLength(buffer, position, NormFrameDecoder.HEADER_LENGTH + length);
+			System.arraycopy(payload, offset, buffer, position
+					+ NormFrameDecoder.HEADER_LENGTH, length);
+			return position + NormFrameDecoder.HEADER_LENGTH + length;
+		}
+
+		int count = frameCount(payload, offset, length);
+		int messageId = messageIds.incrementAndGet();
+		for (int index = 0; index < count; index++) {
+			int dataLength = Math.min(maxFragmentData, length - index
+					* maxFragmentData);
+			putLength(buffer, position, NormFrameDecoder.HEADER_LENGTH
+					+ FRAGMENT_HEADER_LENGTH + dataLength);
+			int p = position + NormFrameDecoder.HEADER_LENGTH;
+			buffer[p] = FRAGMENT_MARKER;
+			buffer[p + 1] = FRAGMENT_TYPE;
+			buffer[p + 2] = (byte) (messageId >>> 24);
+			buffer[p + 3] = (byte) (messageId >>> 16);
+			buffer[p + 4] = (byte) (messageId >>> 8);
+			buffer[p + 5] = (byte) messageId;
+			buffer[p + 6] = (byte) (index >>> 8);
+			buffer[p + 7] = (byte) index;
+			buffer[p + 8] = (byte) (count >>> 8);
+			buffer[p + 9] = (byte) count;
+			System.arraycopy(payload, offset + index * maxFragmentData,
+					buffer, p + FRAGMENT_HEADER_LENGTH, dataLength);
+			position = p + FRAGMENT_HEADER_LENGTH + dataLength;
+		}
+		return position;
+	}
+
+	/**
+	 * @return a new array holding the frames for the payload.
+	 */
+	public byte[] encode(byte[] payload, int offset, int length) {
+		byte[] frames = new byte[encodedLength(payload, offset, length)];
+		encode(payload, offset, length, frames, 0);
+		return frames;
+	}
+
+	/**
+	 * @return true if every frame in the buffer fits a packet, so it can be
+	 *         sent as it is.
+	 */
+	public boolean fits(byte[] frames, int offset, int length) {
+		int end = offset + length;
+		while (offset < end) {
+			if (end - offset < NormFrameDecoder.HEADER_LENGTH) {
+				return false;
+			}
+			int frameLength = ((frames[offset] & 0xFF) << 8)
+					| (frames[offset + 1] & 0xFF);
+			if (frameLength < NormFrameDecoder.HEADER_LENGTH
+					|| frameLength > maxPacketLength
+					|| frameLength > end - offset) {
+				return false;
+			}
+			offset += frameLength;
+		}
+		return true;
+	}
+
+	public int getMaxPacketLength() {
+		return maxPacketLength;
+	}
+
+	private boolean needsFragments(byte[] payload, int offset, int length) {
+		return length > maxPacketLength - NormFrameDecoder.HEADER_LENGTH
+				|| (length > 0 && payload[offset] == FRAGMENT_MARKER);
+	}
+
+	private static void putLength(byte[] buffer, int position, int length) {
+		buffer[position] = (byte) (length >>> 8);
+		buffer[position + 1] = (byte) length;
+	}
+}
@@ -23,18 +23,28 @@
 package com.dozersoftware.norm;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-import mil.navy.nrl.norm.NormEvent;
-import mil.navy.nrl.norm.NormInstance;
-import mil.navy.nrl.norm.NormNode;
-import mil.navy.nrl.norm.NormObject;
-import mil.navy.nrl.norm.NormSession;
-import mil.navy.nrl.norm.NormStream;
 import mil.navy.nrl.norm.enums.NormEventType;
 import mil.navy.nrl.norm.enums.NormObjectType;
 
+import org.apache.log4j.Logger;
 import org.jboss.soa.esb.ConfigurationException;
 import org.jboss.soa.esb.Service;
 import org.jboss.soa.esb.client.ServiceInvoker;
@@ -49,15 +59,372 @@ import org.jboss.soa.esb.message.format.MessageFactory;
 
 public class NormGatewayListener extends AbstractThreadedManagedLifecycle {
 
+	private static Logger logger = Logger.getLogger(NormGatewayListener.class);
+
+	/**
+	 * Capacity of the hand-off queue between the NORM event thread and the
+	 * delivery workers.
+	 */
+	public static final String DELIVERY_QUEUE_SIZE = "delivery-queue-size";
+	/**
+	 * Number of threads delivering decoded frames to the ESB. The default of
+	 * 1 delivers frames in the order they arrived; with more, frames taken
+	 * by different workers, even from the same stream, can reach the bus in
+	 * either order.
+	 */
+	public static final String DELIVERY_WORKERS = "delivery-workers";
+	/**
+	 * What to do when the hand-off queue is full: block, drop-oldest or
+	 * drop-newest. Only chat frames go through it; received file and data
+	 * objects have a queue of their own and are never dropped. How often
+	 * each policy acted is published as norm_delivery_queue_blocked,
+	 * norm_delivery_queue_dropped_oldest and
+	 * norm_delivery_queue_dropped_newest.
+	 */
+	public static final String OVERFLOW_POLICY = "overflow-policy";
+	/**
+	 * Maximum number of frames grouped into one ESB message. 1 (the
+	 * default) delivers every frame on its own.
+	 */
+	public static final String BATCH_SIZE = "batch-size";
+	/**
+	 * How long, in milliseconds, a worker waits for a batch to fill before
+	 * delivering what it has.
+	 */
+	public static final String BATCH_LINGER = "batch-linger-ms";
+	/**
+	 * Body type of the delivered ESB messages: text (a String per frame, the
+	 * default) or bytes (the raw frame payload as a byte[]).
+	 */
+	public static final String PAYLOAD_TYPE = "payload-type";
+	/**
+	 * Largest payload, in bytes, put back together from fragments.
+	 */
+	public static final String MAX_MESSAGE_SIZE = "max-message-size";
+	/**
+	 * Most fragmented messages being put back together at once.
+	 */
+	public static final String REASSEMBLY_BUFFERS = "reassembly-buffers";
+	/**
+	 * How long, in milliseconds, a fragmented message may take to complete.
+	 */
+	public static final String REASSEMBLY_TIMEOUT = "reassembly-timeout-ms";
+	/**
+	 * How received files are published: path (the default) or descriptor,
+	 * which also maps the file and adds its checksum so consumers can fetch
+	 * it in chunks through a NormFileReader.
+	 */
+	public static final String FILE_MODE = "file-mode";
+	/**
+	 * Most bytes of received files kept in the cache directory; the least
+	 * recently used are deleted beyond that. 0 (the default) keeps them all.
+	 */
+	public static final String CACHE_MAX_BYTES = "cache-max-bytes";
+	/**
+	 * When true (the default), the MESSAGE envelope of each chat frame is
+	 * parsed and its type and sender set as message properties, so they can
+	 * be used for routing and in JMS selectors.
+	 */
+	public static final String PARSE_ENVELOPE = "parse-envelope";
+	/**
+	 * How long, in milliseconds, a delivered chat frame is remembered so
+	 * that copies of it are dropped. Copies come from NORM repair, from
+	 * resyncing a stream and from other nodes relaying the line. A frame
+	 * that is legitimately sent again within the window is dropped as well,
+	 * such as a line typed twice or a connect, disconnect, connect from the
+	 * same handle, so the filter is only worth turning on where relays are
+	 * known to duplicate traffic. 0 (the default) turns it off.
+	 */
+	public static final String DEDUP_WINDOW = "dedup-window-ms";
+	/**
+	 * Most chat frames remembered by the duplicate filter.
+	 */
+	public static final String DEDUP_CAPACITY = "dedup-capacity";
+	/**
+	 * Directory of the spool that chat frames are written to when the ESB
+	 * refuses them or the hand-off queue is full. They are replayed on to
+	 * the bus, in order and before any newer frame, once it takes them
+	 * again, and kept there over a restart, so it belongs on persistent
+	 * storage rather than a tmpfs such as /tmp. Unset (the default) turns
+	 * the spool off. Each listener needs a directory of its own, and keeps
+	 * its sessions in the same order while frames are spooled.
+	 */
+	public static final String SPOOL_DIRECTORY = "spool-directory";
+	/**
+	 * Size, in bytes, of each spool segment file. The default is 16 MB.
+	 */
+	public static final String SPOOL_SEGMENT_SIZE = "spool-segment-size";
+	/**
+	 * Most bytes of segment files in the spool; frames that don't fit go to
+	 * the hand-off queue as usual. The default is 1 GB.
+	 */
+	public static final String SPOOL_MAX_BYTES = "spool-max-bytes";
+	/**
+	 * How often, in milliseconds, spooled frames are forced to disk, all
+	 * those written since the last time at once. The default is 100.
+	 */
+	public static final String SPOOL_COMMIT = "spool-commit-ms";
+	/**
+	 * How long, in milliseconds, to wait before replaying a frame the ESB
+	 * refused again. The default is 1000.
+	 */
+	public static final String SPOOL_RETRY = "spool-retry-ms";
+	/**
+	 * Multicast group of the single session used when no session elements
+	 * are configured.
+	 */
+	public static final String ADDRESS = "address";
+	/**
+	 * Port of the single session used when no session elements are
+	 * configured.
+	 */
+	public static final String PORT = "port";
+	/**
+	 * Child element declaring one NORM session:
+	 * <pre>
+	 * &lt;property name="sessions"&gt;
+	 *     &lt;session address="224.1.2.3" port="6003"
+	 *         service-category="NormIn" service-name="Room1" /&gt;
+	 * &lt;/property&gt;
+	 * </pre>
+	 * The target service defaults to the listener's own.
+	 */
+	public static final String SESSION_TAG = "session";
+
+	/**
+	 * ESB message properties set on received NORM file and data objects. The
+	 * body of a file object is its path in the cache directory, that of a
+	 * data object its bytes.
+	 */
+	public static final String OBJECT_TYPE_PROPERTY = "NormObjectType";
+	public static final String OBJECT_INFO_PROPERTY = "NormObjectInfo";
+	public static final String OBJECT_SIZE_PROPERTY = "NormObjectSize";
+
+	/**
+	 * ESB message properties holding the type and sender attributes of a
+	 * chat frame's envelope. Not set on batches.
+	 */
+	public static final String CHAT_TYPE_PROPERTY = "NormChatType";
+	public static final String CHAT_SENDER_PROPERTY = "NormChatSender";
+	public static final String SERVICE_CATEGORY = "service-category";
+	public static final String SERVICE_NAME = "service-name";
+
 	private ConfigTree listenerConfig;
 	private Service service;
-	private ServiceInvoker serviceInvoker;
+	private final NormSessionConfig sessionConfig;
 
-	private NormInstance instance;
-	private NormSession session;
+	/* Shared with any NormProcessor in the deployment */
+	private NormTransport transport;
+	private CountDownLatch stopped;
+
+	/* One receive session per configured multicast group */
+	private final List<RxSession> rxSessions = new ArrayList<RxSession>();
 	
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
 	private int MAX_PACKET_LENGTH = 2048;
 
+	/*
+	 * Frame and fragment reassembly state for each remote sender stream. Only
+	 * used on the runtime's event thread.
+	 */
+	private final Map<NormTransport.Received, RxStream> rxStreams = new HashMap<NormTransport.Received, RxStream>();
+	private final NormReassembler reassembler;
+
+	/* Decoder and reassembly state of one remote sender stream */
+	private final class RxStream implements NormFrameDecoder.FrameHandler {
+		final RxSession rxSession;
+		final long node;
+		final NormFrameDecoder decoder;
+		final NormReassembler.Stream frames;
+
+		RxStream(RxSession rxSession, long node, NormFrameDecoder.Source source) {
+			this.rxSession = rxSession;
+			this.node = node;
+			this.decoder = new NormFrameDecoder(source, MAX_PACKET_LENGTH);
+			this.frames = reassembler.open(this);
+		}
+
+		public void onFrame(byte[] buffer, int offset, int length) {
+			rxSession.onFrame(node, buffer, offset, length);
+		}
+	}
+
+	/* Hands messages to a service; a ServiceInvoker in the server */
+	interface Invoker {
+		void deliverAsync(Message message) throws MessageDeliverException;
+	}
+
+	/* A NORM session and the ESB service its frames are delivered to */
+	private class RxSession implements NormTransport.EventHandler {
+		final String address;
+		final int port;
+		final Service service;
+		Invoker serviceInvoker;
+		NormTransport.Session session;
+
+		RxSession(String address, int port, Service service) {
+			this.address = address;
+			this.port = port;
+			this.service = service;
+		}
+
+		public void onNormEvent(NormTransport.Event event) {
+			handleEvent(this, event);
+		}
+
+		void onFrame(long node, byte[] buffer, int offset, int length) {
+			BYTES_IN.add(length);
+			String type = null;
+			String sender = null;
+			if (envelope != null && envelope.parse(buffer, offset, length)) {
+				type = envelope.getType();
+				sender = envelope.getSender();
+			}
+			// Relayed copies arrive from other nodes, so the envelope's
+			// sender is the better origin when there is one
+			if (duplicates != null
+					&& duplicates.isDuplicate(sender != null ? NormDuplicateFilter
+							.origin(sender) : node, buffer, offset, length)) {
+				return;
+			}
+
+			Serializable payload;
+			if (rawPayload) {
+				byte[] bytes = new byte[length];
+				System.arraycopy(buffer, offset, bytes, 0, length);
+				payload = bytes;
+			} else {
+				payload = new String(buffer, offset, length, US_ASCII);
+			}
+			Delivery delivery = new Delivery(this, payload, type, sender);
+			// Behind a backlog or a full queue, keep the frame on disk
+			if ((hasBacklog() || spool != null
+					&& deliveryQueue.size() >= deliveryQueue.capacity())
+					&& spool(delivery)) {
+				return;
+			}
+			try {
+				deliveryQueue.offer(delivery);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/* A decoded frame or received object and the session it arrived on */
+	private static final class Delivery {
+		final RxSession target;
+		final Serializable payload;
+		/* ESB message properties, only set for objects */
+		final Map<String, Object> properties;
+		/* Envelope attributes, only set for chat frames */
+		final String chatType;
+		final String chatSender;
+
+		Delivery(RxSession target, Serializable payload, String chatType,
+				String chatSender) {
+			this.target = target;
+			this.payload = payload;
+			this.properties = null;
+			this.chatType = chatType;
+			this.chatSender = chatSender;
+		}
+
+		Delivery(RxSession target, Serializable payload,
+				Map<String, Object> properties) {
+			this.target = target;
+			this.payload = payload;
+			this.properties = properties;
+			this.chatType = null;
+			this.chatSender = null;
+		}
+	}
+
+	/* Envelope parser, only used on the runtime's event thread */
+	private final NormChatEnvelope envelope;
+
+	/* Drops repeated chat frames, only used on the runtime's event thread */
+	private final NormDuplicateFilter duplicates;
+
+	/* Retention and mapping of received files */
+	private NormFileCache fileCache;
+	private final boolean describeFiles;
+	private final long cacheMaxBytes;
+
+	/* Decoded frames waiting for the delivery workers */
+	private final DeliveryQueue<Delivery> deliveryQueue;
+	/*
+	 * Received objects waiting for the object worker. Unbounded so the event
+	 * thread, shared with the processor, never waits on the bus: the files
+	 * are bounded by the file cache and the data objects by NORM's receive
+	 * cache.
+	 */
+	private final BlockingQueue<Delivery> objectQueue = new LinkedBlockingQueue<Delivery>();
+	private final boolean rawPayload;
+	private final int workerCount;
+	private final int batchSize;
+	private final long batchLingerNanos;
+	private ExecutorService deliveryWorkers;
+	private volatile boolean delivering;
+
+	/* Chat frames the ESB couldn't take yet, null without a spool directory */
+	private final String spoolDirectory;
+	private final int spoolSegmentSize;
+	private final long spoolMaxBytes;
+	private final int spoolCommit;
+	private final int spoolRetry;
+	private volatile NormSpool spool;
+	private final String spoolBacklogMetric;
+
+	/* Published through NormMetrics */
+	private static final NormMetrics.Counter FRAMES = NormMetrics
+			.getInstance().counter("norm_rx_frames_total",
+					"Frames decoded from NORM streams");
+	private static final NormMetrics.Counter RESYNCS = NormMetrics
+			.getInstance().counter("norm_rx_resyncs_total",
+					"Times a stream decoder searched for a message start");
+	private static final NormMetrics.Counter OVERSIZED = NormMetrics
+			.getInstance().counter("norm_rx_oversized_frames_total",
+					"Frames dropped for an invalid length");
+	private static final NormMetrics.Counter TRUNCATED = NormMetrics
+			.getInstance().counter("norm_rx_truncated_frames_total",
+					"Frames cut short by the end of their stream");
+	private static final NormMetrics.Counter BYTES_IN = NormMetrics
+			.getInstance().counter("norm_rx_bytes_total",
+					"Bytes of frames and objects received");
+	private static final NormMetrics.Counter DELIVERY_FAILURES = NormMetrics
+			.getInstance().counter("norm_esb_delivery_failures_total",
+					"ESB messages that could not be delivered");
+	private static final NormMetrics.Histogram DELIVERY_LATENCY = NormMetrics
+			.getInstance().histogram("norm_esb_delivery_seconds",
+					"Time taken by ServiceInvoker.deliverAsync()");
+	private static final NormMetrics.Counter SPOOLED = NormMetrics
+			.getInstance().counter("norm_spool_frames_total",
+					"Chat frames written to the spool");
+	private static final NormMetrics.Counter REPLAYED = NormMetrics
+			.getInstance().counter("norm_spool_replayed_total",
+					"Spooled chat frames delivered to the ESB");
+	private static final NormMetrics.Counter SPOOL_FULL = NormMetrics
+			.getInstance().counter("norm_spool_full_total",
+					"Chat frames the spool had no room for");
+	private final int metricsPort;
+	/* Labels this listener's metrics with its service */
+	private final String serviceLabel;
+	private final List<String> queueMetrics = new ArrayList<String>();
+
+	/* Warnings that can come with every frame, logged as summaries */
+	private final NormLogging.Summary resyncWarnings = new NormLogging.Summary(
+			logger, "stream resyncs", NormLogging.SUMMARY_MILLIS);
+	private final NormLogging.Summary truncatedWarnings = new NormLogging.Summary(
+			logger, "streams ended with a partial frame",
+			NormLogging.SUMMARY_MILLIS);
+	private final NormLogging.Summary deliveryWarnings = new NormLogging.Summary(
+			logger, "ESB deliveries failed", NormLogging.SUMMARY_MILLIS);
+	private final NormLogging.Summary spoolWarnings = new NormLogging.Summary(
+			logger, "spool writes failed", NormLogging.SUMMARY_MILLIS);
+
 	public NormGatewayListener(final ConfigTree config)
 			throws ConfigurationException {
 		super(config);
@@ -69,183 +436,757 @@ public class NormGatewayListener extends AbstractThreadedManagedLifecycle {
 				.getRequiredAttribute(ListenerTagNames.TARGET_SERVICE_NAME_TAG);
 
 		service = new Service(serviceCategory, serviceName);
+		sessionConfig = new NormSessionConfig(listenerConfig);
 
+		ConfigTree[] sessionConfigs = listenerConfig.getChildren(SESSION_TAG);
+		if (sessionConfigs == null || sessionConfigs.length == 0) {
+			rxSessions.add(new RxSession(listenerConfig.getAttribute(ADDRESS,
+					"224.1.2.3"), getIntAttribute(listenerConfig, PORT, 6003),
+					service));
+		} else {
+			for (ConfigTree sessionConfig : sessionConfigs) {
+				String address = sessionConfig.getRequiredAttribute(ADDRESS);
+				int port = getIntAttribute(sessionConfig, PORT, 6003);
+				Service target = new Service(sessionConfig.getAttribute(
+						SERVICE_CATEGORY, serviceCategory), sessionConfig
+						.getAttribute(SERVICE_NAME, serviceName));
+				rxSessions.add(new RxSession(address, port, target));
+			}
+		}
+
+		int queueSize = getIntAttribute(DELIVERY_QUEUE_SIZE, 4096);
+		workerCount = getIntAttribute(DELIVERY_WORKERS, 1);
+		if (queueSize < 1 || workerCount < 1) {
+			throw new ConfigurationException("'" + DELIVERY_QUEUE_SIZE
+					+ "' and '" + DELIVERY_WORKERS + "' must be at least 1");
+		}
+
+		batchSize = getIntAttribute(BATCH_SIZE, 1);
+		int batchLinger = getIntAttribute(BATCH_LINGER, 10);
+		if (batchSize < 1 || batchLinger < 0) {
+			throw new ConfigurationException("'" + BATCH_SIZE
+					+ "' must be at least 1 and '" + BATCH_LINGER
+					+ "' must not be negative");
+		}
+		batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(batchLinger);
+
+		String payloadType = listenerConfig.getAttribute(PAYLOAD_TYPE, "text");
+		if (!"text".equals(payloadType) && !"bytes".equals(payloadType)) {
+			throw new ConfigurationException("Invalid '" + PAYLOAD_TYPE
+					+ "' value: " + payloadType);
+		}
+		rawPayload = "bytes".equals(payloadType);
+
+		int maxMessageSize = getIntAttribute(MAX_MESSAGE_SIZE, 1024 * 1024);
+		int reassemblyBuffers = getIntAttribute(REASSEMBLY_BUFFERS, 64);
+		int reassemblyTimeout = getIntAttribute(REASSEMBLY_TIMEOUT, 30000);
+		if (maxMessageSize < 1 || reassemblyBuffers < 1
+				|| reassemblyTimeout < 1) {
+			throw new ConfigurationException("'" + MAX_MESSAGE_SIZE + "', '"
+					+ REASSEMBLY_BUFFERS + "' and '" + REASSEMBLY_TIMEOUT
+					+ "' must be at least 1");
+		}
+		reassembler = new NormReassembler(reassemblyBuffers, maxMessageSize,
+				reassemblyTimeout);
+
+		envelope = Boolean.parseBoolean(listenerConfig.getAttribute(
+				PARSE_ENVELOPE, "true")) ? new NormChatEnvelope() : null;
+
+		int dedupWindow = getIntAttribute(DEDUP_WINDOW, 0);
+		int dedupCapacity = getIntAttribute(DEDUP_CAPACITY, 4096);
+		if (dedupWindow < 0 || dedupCapacity < 1) {
+			throw new ConfigurationException("'" + DEDUP_WINDOW
+					+ "' must not be negative and '" + DEDUP_CAPACITY
+					+ "' must be at least 1");
+		}
+		duplicates = dedupWindow == 0 ? null : new NormDuplicateFilter(
+				dedupCapacity, dedupWindow);
+
+		String fileMode = listenerConfig.getAttribute(FILE_MODE, "path");
+		if (!"path".equals(fileMode) && !"descriptor".equals(fileMode)) {
+			throw new ConfigurationException("Invalid '" + FILE_MODE
+					+ "' value: " + fileMode);
+		}
+		describeFiles = "descriptor".equals(fileMode);
+		String maxBytes = listenerConfig.getAttribute(CACHE_MAX_BYTES, "0");
+		try {
+			cacheMaxBytes = Long.parseLong(maxBytes.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '" + CACHE_MAX_BYTES
+					+ "' value: " + maxBytes, e);
+		}
+
+		spoolDirectory = listenerConfig.getAttribute(SPOOL_DIRECTORY);
+		spoolSegmentSize = getIntAttribute(SPOOL_SEGMENT_SIZE,
+				16 * 1024 * 1024);
+		spoolMaxBytes = getLongAttribute(SPOOL_MAX_BYTES, 1024L * 1024 * 1024);
+		spoolCommit = getIntAttribute(SPOOL_COMMIT, 100);
+		spoolRetry = getIntAttribute(SPOOL_RETRY, 1000);
+		if (spoolSegmentSize < 4096 || spoolMaxBytes < spoolSegmentSize
+				|| spoolCommit < 1 || spoolRetry < 1) {
+			throw new ConfigurationException("'" + SPOOL_SEGMENT_SIZE
+					+ "' must be at least 4096, '" + SPOOL_MAX_BYTES
+					+ "' at least that and '" + SPOOL_COMMIT + "' and '"
+					+ SPOOL_RETRY + "' at least 1");
+		}
+
+		metricsPort = getIntAttribute(NormMetricsEndpoint.PORT, 0);
+		serviceLabel = "{service=\"" + serviceCategory + ":" + serviceName
+				+ "\"}";
+		spoolBacklogMetric = "norm_spool_backlog" + serviceLabel;
+
+		String policy = listenerConfig.getAttribute(OVERFLOW_POLICY,
+				"drop-oldest");
+		try {
+			deliveryQueue = new DeliveryQueue<Delivery>(queueSize,
+					DeliveryQueue.OverflowPolicy.fromString(policy));
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationException("Invalid '" + OVERFLOW_POLICY
+					+ "' value: " + policy, e);
+		}
+	}
+
+	private int getIntAttribute(String name, int defaultValue)
+			throws ConfigurationException {
+		return getIntAttribute(listenerConfig, name, defaultValue);
+	}
+
+	private static int getIntAttribute(ConfigTree config, String name,
+			int defaultValue) throws ConfigurationException {
+		String value = config.getAttribute(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '" + name + "' value: "
+					+ value, e);
+		}
+	}
+
+	private long getLongAttribute(String name, long defaultValue)
+			throws ConfigurationException {
+		String value = listenerConfig.getAttribute(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '" + name + "' value: "
+					+ value, e);
+		}
 	}
 
 	protected void doInitialise() throws ManagedLifecycleException {
-		// Create the ServiceInvoker instance for the target service....
+		RxSession current = null;
 		try {
+			// Create the ServiceInvoker instances for the target services....
+			for (RxSession rxSession : rxSessions) {
+				current = rxSession;
+				rxSession.serviceInvoker = createInvoker(rxSession.service);
+			}
 
-			serviceInvoker = new ServiceInvoker(service);
-			instance = new NormInstance();
-			instance.setCacheDirectory("/tmp/norm");
+			if (spoolDirectory != null) {
+				openSpool();
+			}
 
-			session = instance.createSession("224.1.2.3", 6003,
-					NormNode.NORM_NODE_ANY);
+			delivering = true;
+			deliveryWorkers = Executors.newFixedThreadPool(workerCount + 1);
+			for (int i = 0; i < workerCount; i++) {
+				deliveryWorkers.execute(new DeliveryWorker());
+			}
+			deliveryWorkers.execute(new ObjectWorker());
+
+			fileCache = NormFileCache.getInstance(sessionConfig
+					.getCacheDirectory());
+			fileCache.setMaxBytes(cacheMaxBytes);
+
+			publishQueueMetrics();
+			NormMetrics.acquire();
+			if (metricsPort > 0) {
+				NormMetricsEndpoint.acquire(metricsPort);
+			}
 
-			session.setRxPortReuse(true, false);
+			stopped = new CountDownLatch(1);
+			transport = sessionConfig.acquireTransport();
 
-			session.startReceiver(1024 * 1024);
+			// All sessions share the transport and its event thread
+			for (RxSession rxSession : rxSessions) {
+				NormTransport.Session session = transport.openSession(
+						rxSession.address, rxSession.port);
+				rxSession.session = session;
+				session.setReceiver(rxSession);
+
+				session.startReceiver(sessionConfig);
+			}
 
 		} catch (MessageDeliverException e) {
 			throw new ManagedLifecycleException(
-					"Failed to create ServiceInvoker for Service '" + service
-							+ "'.");
+					"Failed to create ServiceInvoker for Service '"
+							+ current.service + "'.");
+		} catch (ManagedLifecycleException e) {
+			throw e;
 		} catch (Exception e) {
-			e.printStackTrace();
+			logger.error("NORM: Failed to start receiving", e);
 		}
 	}
 
+	/*
+	 * Publishes the hand-off queue's depth and what its overflow policy did,
+	 * labelled with the service. The counts only ever grow.
+	 */
+	private void publishQueueMetrics() {
+		queueGauge("norm_delivery_queue_depth",
+				"Frames waiting for the delivery workers",
+				new NormMetrics.Gauge() {
+					public long value() {
+						return deliveryQueue.size();
+					}
+				});
+		queueGauge("norm_delivery_queue_offered",
+				"Frames offered to the delivery queue",
+				new NormMetrics.Gauge() {
+					public long value() {
+						return deliveryQueue.getOffered();
+					}
+				});
+		queueGauge("norm_delivery_queue_blocked",
+				"Offers that waited for room under the block policy",
+				new NormMetrics.Gauge() {
+					public long value() {
+						return deliveryQueue.getBlocked();
+					}
+				});
+		queueGauge("norm_delivery_queue_dropped_oldest",
+				"Queued frames discarded under the drop-oldest policy",
+				new NormMetrics.Gauge() {
+					public long value() {
+						return deliveryQueue.getDroppedOldest();
+					}
+				});
+		queueGauge("norm_delivery_queue_dropped_newest",
+				"Frames refused under the drop-newest policy",
+				new NormMetrics.Gauge() {
+					public long value() {
+						return deliveryQueue.getDroppedNewest();
+					}
+				});
+	}
+
+	private void queueGauge(String name, String description,
+			NormMetrics.Gauge gauge) {
+		String metric = name + serviceLabel;
+		NormMetrics.getInstance().gauge(metric, description, gauge);
+		queueMetrics.add(metric);
+	}
+
+	/*
+	 * The invoker for a target service. Tests, which run without a
+	 * registry, deliver elsewhere.
+	 */
+	Invoker createInvoker(Service target) throws MessageDeliverException {
+		final ServiceInvoker invoker = new ServiceInvoker(target);
+		return new Invoker() {
+			public void deliverAsync(Message message)
+					throws MessageDeliverException {
+				invoker.deliverAsync(message);
+			}
+		};
+	}
+
 	protected void doRun() {
+		// NORM events are handled on the transport's event thread
 		while (isRunning()) {
-
 			try {
-				NormEvent event;
-				while ((event = instance.getNextEvent()) != null) {
-					NormEventType eventType = event.getType();
-					NormObject normObject = event.getObject();
-
-					System.out.println("NORM EVENT: " + eventType);
-
-					switch (eventType) {
-					case NORM_RX_OBJECT_INFO:
-						byte[] info = normObject.getInfo();
-						String infoStr = new String(info, "US-ASCII");
-						System.out.println("Info: " + infoStr);
-						break;
-
-					case NORM_RX_OBJECT_UPDATED:
-						int readLength,
-						rxPacketLength = 0,
-						rxIndex = 0;
-
-						byte[] rxStreamBuffer = new byte[MAX_PACKET_LENGTH + 1];
-						if (normObject.getType() == NormObjectType.NORM_OBJECT_STREAM) {
-							// Process incoming chat
-							boolean msgSync = false;
-
-							while (true) {
-								if (!msgSync) {
-									System.out
-											.println("normChat: ProcessNormEvent msgSync = false, trying to sync");
-									msgSync = ((NormStream) normObject)
-											.seekMsgStart();
-
-									if (!msgSync) {
-										break;
-									}
-									System.out
-											.println("normChat: ProcessNormEvent resync successful.");
-								}
-
-								readLength = rxPacketLength != 0 ? (rxPacketLength - rxIndex)
-										: 2 - rxIndex;
-
-								if (((NormStream) normObject).read(
-										rxStreamBuffer, rxIndex, readLength) != 0) {
-									System.out
-											.println("Inside NORMStreamRead check - readLength:"
-													+ readLength);
-									if (readLength > 0) {
-										rxIndex += readLength;
-
-										if (rxPacketLength == 0) {
-											if (rxIndex >= 2) {
-
-												DataInputStream in = new DataInputStream(
-														new ByteArrayInputStream(
-																rxStreamBuffer));
-												rxPacketLength = in.readChar();
-												// System.out.println("Packet Length: "
-												// + rxPacketLength);
-
-												if (rxPacketLength < 2
-														|| rxPacketLength > MAX_PACKET_LENGTH) {
-
-													msgSync = false;
-													rxIndex = rxPacketLength = 0;
-													break;
-												}
-											} else {
-
-											}
-										}
-									} else {
-										System.out
-												.println("normChat: ProcessNormEvent read in 0 bytes");
-										break;
-									}
-								} else {
-									msgSync = false;
-									rxIndex = rxPacketLength = 0;
-									System.out
-											.println("normChat: Stream end, request resync/reset");
-
-								}
-
-								if (rxPacketLength > 0
-										&& (rxIndex >= rxPacketLength)) {
-									rxStreamBuffer[rxIndex] = '\0';
-
-									DataInputStream in = new DataInputStream(
-											new ByteArrayInputStream(
-													rxStreamBuffer));
-									byte[] payload = new byte[rxPacketLength - 2];
-									in.skipBytes(2);
-									in.read(payload, 0, rxPacketLength - 2);
-
-									String text = new String(payload,
-											"US-ASCII");
-									// System.out.println("Message: " + text);
-									processMessage(text);
-
-									rxIndex = rxPacketLength = 0;
-								}
-							}
-						}
-						break;
+				stopped.await(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("NORM: Have stopped running");
+		}
+	}
+
+	/* Called by the transport for every receive event on the session */
+	private void handleEvent(RxSession rxSession, NormTransport.Event event) {
+		NormEventType eventType = event.getType();
+		NormTransport.Received normObject = event.getObject();
 
+		switch (eventType) {
+		case NORM_RX_OBJECT_UPDATED:
+			if (normObject.getType() == NormObjectType.NORM_OBJECT_STREAM) {
+				// Process incoming chat
+				RxStream rxStream = rxStreams.get(normObject);
+				if (rxStream == null) {
+					rxStream = new RxStream(rxSession, event.getNodeId(),
+							normObject.getStream());
+					rxStreams.put(normObject, rxStream);
+				}
+				NormFrameDecoder decoder = rxStream.decoder;
+				long resyncs = decoder.getResyncs();
+				long oversized = decoder.getOversized();
+				FRAMES.add(decoder.decode(rxStream.frames));
+				if (decoder.getResyncs() != resyncs) {
+					RESYNCS.add(decoder.getResyncs() - resyncs);
+					// The first sync of a stream is not worth a warning
+					if (decoder.getResyncs() > 1) {
+						resyncWarnings.record(decoder.getResyncs()
+								- Math.max(resyncs, 1), null);
 					}
 				}
+				if (decoder.getOversized() != oversized) {
+					OVERSIZED.add(decoder.getOversized() - oversized);
+				}
+			}
+			break;
+
+		case NORM_RX_OBJECT_COMPLETED:
+			if (normObject.getType() == NormObjectType.NORM_OBJECT_FILE
+					|| normObject.getType() == NormObjectType.NORM_OBJECT_DATA) {
+				receiveObject(rxSession, normObject);
+				break;
+			}
+			// Fall through, a stream has ended
+		case NORM_RX_OBJECT_ABORTED:
+			RxStream closed = rxStreams.remove(normObject);
+			if (closed != null) {
+				boolean midFrame = closed.decoder.isMidFrame();
+				if (reassembler.close(closed.frames) || midFrame) {
+					TRUNCATED.increment();
+					truncatedWarnings.record(1, eventType.toString());
+				}
+			}
+			break;
 
+		}
+	}
+
+	/*
+	 * Queues a completed file or data object for delivery. Files are passed
+	 * by path and stay in the cache directory; they are registered with the
+	 * cache here, so its limit covers them even if they are never delivered.
+	 */
+	private void receiveObject(RxSession rxSession,
+			NormTransport.Received normObject) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		byte[] info = normObject.getInfo();
+		properties.put(OBJECT_INFO_PROPERTY, info == null ? "" : new String(
+				info, US_ASCII));
+		properties.put(OBJECT_SIZE_PROPERTY, Long.valueOf(normObject
+				.getSize()));
+		BYTES_IN.add(normObject.getSize());
+
+		Serializable payload;
+		if (normObject.getType() == NormObjectType.NORM_OBJECT_FILE) {
+			String path;
+			try {
+				path = normObject.getFileName();
 			} catch (IOException e) {
-				
-				setRunning(ManagedLifecycleThreadState.STOPPING);
-				System.out.println("NORM: ERROR Processing Incoming Message");
+				logger.warn("NORM: Can't get received file name: " + e);
+				return;
+			}
+			try {
+				path = fileCache.add(new File(path));
+			} catch (IOException e) {
+				logger.warn("NORM: Can't cache received file " + path + ": "
+						+ e);
+			}
+			payload = path;
+			properties.put(OBJECT_TYPE_PROPERTY, "file");
+		} else {
+			payload = normObject.getData();
+			properties.put(OBJECT_TYPE_PROPERTY, "data");
+		}
+
+		objectQueue.add(new Delivery(rxSession, payload, properties));
+	}
 
+	/* Drains the hand-off queue on to the bus */
+	private class DeliveryWorker implements Runnable {
+		public void run() {
+			while (delivering || deliveryQueue.size() > 0) {
+				try {
+					Delivery delivery = deliveryQueue.poll(500,
+							TimeUnit.MILLISECONDS);
+					if (delivery == null) {
+						continue;
+					}
+					if (hasBacklog() && spool(delivery)) {
+						// Frames queued before the backlog began
+						continue;
+					}
+					if (batchSize == 1) {
+						processMessage(delivery);
+					} else {
+						processBatches(fillBatch(delivery));
+					}
+				} catch (InterruptedException e) {
+					break;
+				}
 			}
 		}
-		System.out.println("Have Stopped Running.");
 	}
 
-	/* Push the message on to the bus */
-	public void processMessage(String messageText) {
+	/* Delivers received objects, each on its own */
+	private class ObjectWorker implements Runnable {
+		public void run() {
+			while (delivering || objectQueue.size() > 0) {
+				try {
+					Delivery delivery = objectQueue.poll(500,
+							TimeUnit.MILLISECONDS);
+					if (delivery == null) {
+						continue;
+					}
+					describe(delivery);
+					if (!deliver(delivery.target, toMessage(delivery))) {
+						// Not spooled, so say which transfer was lost
+						logger.warn("NORM: Received "
+								+ delivery.properties.get(OBJECT_TYPE_PROPERTY)
+								+ " object "
+								+ delivery.properties.get(OBJECT_INFO_PROPERTY)
+								+ " could not be delivered to "
+								+ delivery.target.service);
+					}
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Collects up to batchSize frames, waiting at most the linger time for
+	 * the batch to fill.
+	 */
+	private List<Delivery> fillBatch(Delivery first)
+			throws InterruptedException {
+		List<Delivery> batch = new ArrayList<Delivery>(batchSize);
+		batch.add(first);
+		long deadline = System.nanoTime() + batchLingerNanos;
+		while (batch.size() < batchSize) {
+			if (deliveryQueue.drainTo(batch, batchSize - batch.size()) > 0) {
+				continue;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				break;
+			}
+			Delivery next = deliveryQueue.poll(remaining,
+					TimeUnit.NANOSECONDS);
+			if (next == null) {
+				break;
+			}
+			batch.add(next);
+		}
+		return batch;
+	}
+
+	/*
+	 * In descriptor mode adds what a NormFileReader needs to serve a
+	 * received file.
+	 */
+	private void describe(Delivery delivery) {
+		if (!describeFiles
+				|| !"file".equals(delivery.properties.get(OBJECT_TYPE_PROPERTY))) {
+			return;
+		}
+		try {
+			String path = (String) delivery.payload;
+			long checksum = fileCache.checksum(path);
+			delivery.properties.put(NormFileReader.PATH_PROPERTY, path);
+			delivery.properties.put(NormFileReader.CHECKSUM_PROPERTY, Long
+					.valueOf(checksum));
+		} catch (IOException e) {
+			logger.warn("NORM: Can't cache received file " + delivery.payload
+					+ ": " + e);
+		}
+	}
+
+	/* Split a batch by target session, keeping arrival order within each */
+	private void processBatches(List<Delivery> deliveries) {
+		RxSession target = deliveries.get(0).target;
+		List<Delivery> batch = new ArrayList<Delivery>(deliveries.size());
+		List<Delivery> others = null;
+		for (Delivery delivery : deliveries) {
+			if (delivery.target == target) {
+				batch.add(delivery);
+			} else {
+				if (others == null) {
+					others = new ArrayList<Delivery>();
+				}
+				others.add(delivery);
+			}
+		}
+		processBatch(target, batch);
+		if (others != null) {
+			processBatches(others);
+		}
+	}
+
+	/* Push a batch of frames on to the bus as a single message */
+	private void processBatch(RxSession target, List<Delivery> frames) {
 
 		Message esbMessage = MessageFactory.getInstance().getMessage();
 
-		esbMessage.getBody().add(new String(messageText));
+		ArrayList<Serializable> batch = new ArrayList<Serializable>(frames
+				.size());
+		for (Delivery frame : frames) {
+			batch.add(frame.payload);
+		}
+		esbMessage.getBody().add(batch);
+		if (!deliver(target, esbMessage)) {
+			for (Delivery frame : frames) {
+				spool(frame);
+			}
+		}
+	}
+
+	/*
+	 * Hands a message to the target service, timing the call. Returns false
+	 * if it could not be delivered.
+	 */
+	private boolean deliver(RxSession target, Message esbMessage) {
+		long start = System.nanoTime();
 		try {
-			serviceInvoker.deliverAsync(esbMessage);
+			target.serviceInvoker.deliverAsync(esbMessage);
+			return true;
 		} catch (MessageDeliverException e) {
-			e.printStackTrace();
+			DELIVERY_FAILURES.increment();
+			deliveryWarnings.record(1, String.valueOf(e));
+			return false;
+		} finally {
+			DELIVERY_LATENCY.recordSince(start);
+		}
+	}
+
+	/* Push the frame on to the bus, spooling it if refused */
+	private void processMessage(Delivery delivery) {
+		if (!deliver(delivery.target, toMessage(delivery))) {
+			spool(delivery);
+		}
+	}
+
+	private Message toMessage(Delivery delivery) {
+
+		Message esbMessage = MessageFactory.getInstance().getMessage();
+
+		esbMessage.getBody().add(delivery.payload);
+		if (delivery.properties != null) {
+			for (Map.Entry<String, Object> property : delivery.properties
+					.entrySet()) {
+				esbMessage.getProperties().setProperty(property.getKey(),
+						property.getValue());
+			}
+		}
+		if (delivery.chatType != null) {
+			esbMessage.getProperties().setProperty(CHAT_TYPE_PROPERTY,
+					delivery.chatType);
+		}
+		if (delivery.chatSender != null) {
+			esbMessage.getProperties().setProperty(CHAT_SENDER_PROPERTY,
+					delivery.chatSender);
+		}
+		return esbMessage;
+	}
+
+	/*
+	 * Opens the spool and starts replaying what the last run left in it,
+	 * once the service invokers exist.
+	 */
+	private void openSpool() throws ManagedLifecycleException {
+		try {
+			spool = new NormSpool(new File(spoolDirectory), spoolSegmentSize,
+					spoolMaxBytes, spoolCommit, spoolRetry);
+		} catch (IOException e) {
+			throw new ManagedLifecycleException("Failed to open the spool in '"
+					+ spoolDirectory + "'", e);
+		}
+		spool.start(new NormSpool.Handler() {
+			public boolean replay(byte[] buffer, int offset, int length) {
+				Delivery delivery = fromRecord(buffer, offset, length);
+				if (delivery == null) {
+					// Nothing to deliver, don't hold up the rest
+					return true;
+				}
+				if (!deliver(delivery.target, toMessage(delivery))) {
+					return false;
+				}
+				REPLAYED.increment();
+				return true;
+			}
+		});
+		NormMetrics.getInstance().gauge(spoolBacklogMetric,
+				"Chat frames in the spool waiting to be delivered",
+				new NormMetrics.Gauge() {
+					public long value() {
+						NormSpool current = spool;
+						return current == null ? 0 : current.getBacklog();
+					}
+				});
+	}
+
+	private boolean hasBacklog() {
+		NormSpool current = spool;
+		return current != null && current.hasBacklog();
+	}
+
+	/*
+	 * Writes a chat frame to the spool. Returns false, with the frame left
+	 * to the caller, if there is no spool or it is full.
+	 */
+	private boolean spool(Delivery delivery) {
+		NormSpool current = spool;
+		if (current == null) {
+			return false;
+		}
+		try {
+			byte[] record = toRecord(delivery);
+			if (current.append(record, 0, record.length)) {
+				SPOOLED.increment();
+				return true;
+			}
+			SPOOL_FULL.increment();
+		} catch (IOException e) {
+			SPOOL_FULL.increment();
+			spoolWarnings.record(1, String.valueOf(e));
+		}
+		return false;
+	}
+
+	/*
+	 * Spool record of a chat frame: the index of its session, whether the
+	 * payload is bytes, the envelope type and sender if set, and the
+	 * payload. Text is kept as UTF-8 so it comes back exactly as it was.
+	 */
+	private byte[] toRecord(Delivery delivery) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(rxSessions.indexOf(delivery.target));
+		out.writeBoolean(delivery.payload instanceof byte[]);
+		out.writeBoolean(delivery.chatType != null);
+		if (delivery.chatType != null) {
+			out.writeUTF(delivery.chatType);
+		}
+		out.writeBoolean(delivery.chatSender != null);
+		if (delivery.chatSender != null) {
+			out.writeUTF(delivery.chatSender);
+		}
+		if (delivery.payload instanceof byte[]) {
+			out.write((byte[]) delivery.payload);
+		} else {
+			out.write(((String) delivery.payload).getBytes(UTF_8));
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/* Reads back a spool record, null if it can't be */
+	private Delivery fromRecord(byte[] buffer, int offset, int length) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					buffer, offset, length));
+			int index = in.readShort();
+			boolean bytes = in.readBoolean();
+			String type = in.readBoolean() ? in.readUTF() : null;
+			String sender = in.readBoolean() ? in.readUTF() : null;
+			byte[] body = new byte[in.available()];
+			in.readFully(body);
+			// The sessions may have changed since the frame was spooled
+			RxSession target = rxSessions.get(index >= 0
+					&& index < rxSessions.size() ? index : 0);
+			Serializable payload = bytes ? body : new String(body, UTF_8);
+			return new Delivery(target, payload, type, sender);
+		} catch (IOException e) {
+			spoolWarnings.record(1, "unreadable record: " + e);
+			return null;
 		}
 	}
 
 	protected void doStop() {
 		super.setRunning(ManagedLifecycleThreadState.STOPPING);
 		setRunning(ManagedLifecycleThreadState.STOPPING);
-		session.stopReceiver();
-		session.destroySession();
-
-		instance.stopInstance();
+		if (stopped != null) {
+			stopped.countDown();
+		}
+		for (RxSession rxSession : rxSessions) {
+			if (rxSession.session != null) {
+				rxSession.session.setReceiver(null);
+				rxSession.session.stopReceiver();
+				rxSession.session.close();
+				rxSession.session = null;
+			}
+		}
+		if (transport != null) {
+			transport.release();
+			transport = null;
+		}
+		for (String name : queueMetrics) {
+			NormMetrics.getInstance().removeGauge(name);
+		}
+		queueMetrics.clear();
+		NormMetrics.release();
+		if (metricsPort > 0) {
+			NormMetricsEndpoint.release();
+		}
 
-		instance.destroyInstance();
+		delivering = false;
+		deliveryWorkers.shutdown();
+		try {
+			if (!deliveryWorkers.awaitTermination(5, TimeUnit.SECONDS)) {
+				deliveryWorkers.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			deliveryWorkers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		NormSpool closing = spool;
+		if (closing != null) {
+			// What is left in it is replayed on the next start
+			closing.close();
+			spool = null;
+			NormMetrics.getInstance().removeGauge(spoolBacklogMetric);
+			if (logger.isInfoEnabled()) {
+				logger.info("NORM: Spool appended=" + closing.getAppended()
+						+ " replayed=" + closing.getReplayed() + " full="
+						+ closing.getDropped() + " commits="
+						+ closing.getCommits() + " backlog="
+						+ closing.getBacklog());
+			}
+		}
+		resyncWarnings.flush();
+		truncatedWarnings.flush();
+		deliveryWarnings.flush();
+		spoolWarnings.flush();
+		if (logger.isInfoEnabled()) {
+			logger.info("NORM: Delivery queue offered="
+					+ deliveryQueue.getOffered() + " blocked="
+					+ deliveryQueue.getBlocked() + " droppedOldest="
+					+ deliveryQueue.getDroppedOldest() + " droppedNewest="
+					+ deliveryQueue.getDroppedNewest() + " pending="
+					+ deliveryQueue.size());
+			logger.info("NORM: Object queue pending=" + objectQueue.size());
+			logger.info("NORM: Reassembly fragments="
+					+ reassembler.getFragments() + " reassembled="
+					+ reassembler.getReassembled() + " incomplete="
+					+ reassembler.getIncomplete() + " timedOut="
+					+ reassembler.getTimedOut() + " tooLarge="
+					+ reassembler.getTooLarge() + " poolExhausted="
+					+ reassembler.getPoolExhausted());
+			if (duplicates != null) {
+				logger.info("NORM: Duplicate filter checked="
+						+ duplicates.getChecked() + " suppressed="
+						+ duplicates.getDuplicates() + " forgotten="
+						+ duplicates.getForgotten());
+			}
+		}
 		
 		try {
 			super.doStop();
 		} catch (ManagedLifecycleException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			logger.error("NORM: Failed to stop", e);
 		}
 
 	}
@@ -254,8 +1195,7 @@ public class NormGatewayListener extends AbstractThreadedManagedLifecycle {
 		try {
 			super.doThreadedDestroy();
 		} catch (ManagedLifecycleException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			logger.error("NORM: Failed to destroy", e);
 		}
 	}
 
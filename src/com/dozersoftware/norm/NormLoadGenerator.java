@@ -0,0 +1,528 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import mil.navy.nrl.norm.enums.NormEventType;
+import mil.navy.nrl.norm.enums.NormObjectType;
+
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+
+/**
+ * Sends chat lines from many simulated senders at a set rate and reports
+ * how long they take to come back.
+ * <p/>
+ * Each sender has its own NORM stream and sender thread; over the memory
+ * transport each is also its own node. Lines go out in bursts, spread over
+ * the senders in turn, and carry their sequence number and the time they
+ * were due to be sent. Latency is measured from that time, so a generator
+ * that falls behind does not hide the delay. Lines are picked up on the
+ * return group, decoded and reassembled the way the gateway listener does
+ * it.
+ * <p/>
+ * With the return group left as the send group, what is measured is the
+ * transport and decoding alone; a gateway on the same memory network
+ * receives the same lines. Pointing the return group at the group a
+ * gateway's processor sends on measures the trip through the gateway. The
+ * norm transport always needs a separate return group, as a node does not
+ * receive its own traffic.
+ * <p/>
+ * Sample configuration (all optional, defaults shown), given as name=value
+ * arguments to {@link #main(String[])}:
+ * <pre>{@code
+ * address=224.1.2.3 port=6003
+ * return-address=<address> return-port=<port>
+ * senders=4 rate=1000 burst=1 message-size=100
+ * warmup-s=2 duration-s=10 drain-ms=2000
+ * loss-rate=0 reorder-rate=0 reorder-ms=20 latency-ms=0
+ * }</pre>
+ * <ul>
+ * <li><i>rate</i>: lines per second over all the senders.</li>
+ * <li><i>burst</i>: lines sent back to back each time, every burst / rate
+ * seconds.</li>
+ * <li><i>message-size</i>: bytes of the line's body. Bodies too long for a
+ * packet are sent in fragments.</li>
+ * <li><i>warmup-s</i>: how long to send before measuring, so the JIT
+ * compiler has done its work. Lines sent meanwhile are not counted.</li>
+ * <li><i>drain-ms</i>: how long to wait for stragglers after the last line
+ * is sent.</li>
+ * <li><i>loss-rate</i>, <i>reorder-rate</i>, <i>reorder-ms</i> and
+ * <i>latency-ms</i>: the {@link MemoryTransport.Conditions} of the memory
+ * network.</li>
+ * </ul>
+ * The {@link NormSessionConfig} properties apply as well; transport defaults
+ * to memory here.
+ */
+public class NormLoadGenerator {
+
+	public static final String ADDRESS = "address";
+	public static final String PORT = "port";
+	public static final String RETURN_ADDRESS = "return-address";
+	public static final String RETURN_PORT = "return-port";
+	public static final String SENDERS = "senders";
+	public static final String RATE = "rate";
+	public static final String BURST = "burst";
+	public static final String MESSAGE_SIZE = "message-size";
+	public static final String WARMUP = "warmup-s";
+	public static final String DURATION = "duration-s";
+	public static final String DRAIN = "drain-ms";
+	public static final String LOSS_RATE = "loss-rate";
+	public static final String REORDER_RATE = "reorder-rate";
+	public static final String REORDER_MILLIS = "reorder-ms";
+	public static final String LATENCY = "latency-ms";
+
+	/**
+	 * Chat type of generated lines; the sender is load-N.
+	 */
+	public static final String CHAT_TYPE = "load";
+	private static final String SENDER_PREFIX = "load-";
+
+	/* Memory transport nodes of the probe and the first sender */
+	private static final long PROBE_NODE_ID = 99;
+	private static final long FIRST_SENDER_NODE_ID = 100;
+
+	private static final int MAX_PACKET_LENGTH = 2048;
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * What a run sent, what came back and how long it took.
+	 */
+	public static final class Report {
+		private final long sent;
+		private final long received;
+		private final long duplicates;
+		private final long resyncs;
+		private final long sendNanos;
+		private final double rate;
+		private final NormMetrics.Snapshot latency;
+		private final String network;
+
+		Report(long sent, long received, long duplicates, long resyncs,
+				long sendNanos, double rate, NormMetrics.Snapshot latency,
+				String network) {
+			this.sent = sent;
+			this.received = received;
+			this.duplicates = duplicates;
+			this.resyncs = resyncs;
+			this.sendNanos = sendNanos;
+			this.rate = rate;
+			this.latency = latency;
+			this.network = network;
+		}
+
+		public long getSent() {
+			return sent;
+		}
+
+		public long getReceived() {
+			return received;
+		}
+
+		public long getLost() {
+			return sent - received;
+		}
+
+		public long getDuplicates() {
+			return duplicates;
+		}
+
+		public long getResyncs() {
+			return resyncs;
+		}
+
+		/**
+		 * @return lines per second actually sent.
+		 */
+		public double getAchievedRate() {
+			return sendNanos == 0 ? 0 : sent * 1e9 / sendNanos;
+		}
+
+		public NormMetrics.Snapshot getLatency() {
+			return latency;
+		}
+
+		public String toString() {
+			StringBuilder text = new StringBuilder(256);
+			text.append("sent=").append(sent).append(" received=").append(
+					received).append(" lost=").append(getLost()).append(
+					" duplicates=").append(duplicates).append(" resyncs=")
+					.append(resyncs).append('\n');
+			text.append("rate offered=").append(Math.round(rate)).append(
+					" achieved=").append(Math.round(getAchievedRate()))
+					.append(" lines/s\n");
+			text.append("latency ms p50=").append(millis(0.5)).append(" p90=")
+					.append(millis(0.9)).append(" p99=").append(millis(0.99))
+					.append(" p99.9=").append(millis(0.999)).append(" max=")
+					.append(latency.getMaxNanos() / 1e6);
+			if (network != null) {
+				text.append('\n').append(network);
+			}
+			return text.toString();
+		}
+
+		private double millis(double quantile) {
+			return latency.getQuantileNanos(quantile) / 1e6;
+		}
+	}
+
+	/* Decodes the lines coming back, on the transport's event thread */
+	private final class Probe implements NormTransport.EventHandler,
+			NormFrameDecoder.FrameHandler {
+		private final Map<NormTransport.Received, NormFrameDecoder> decoders = new HashMap<NormTransport.Received, NormFrameDecoder>();
+		private final Map<NormFrameDecoder, NormReassembler.Stream> frames = new HashMap<NormFrameDecoder, NormReassembler.Stream>();
+		private final List<NormFrameDecoder> all = new ArrayList<NormFrameDecoder>();
+		private final NormReassembler reassembler = new NormReassembler(64,
+				messageSize + 256, 30000);
+		private final NormChatEnvelope envelope = new NormChatEnvelope();
+		private final BitSet seen = new BitSet();
+		private final AtomicLong received = new AtomicLong();
+		private long duplicates;
+
+		public void onNormEvent(NormTransport.Event event) {
+			NormTransport.Received object = event.getObject();
+			if (object == null
+					|| object.getType() != NormObjectType.NORM_OBJECT_STREAM) {
+				return;
+			}
+			if (event.getType() == NormEventType.NORM_RX_OBJECT_UPDATED) {
+				NormFrameDecoder decoder = decoders.get(object);
+				if (decoder == null) {
+					decoder = new NormFrameDecoder(object.getStream(),
+							MAX_PACKET_LENGTH);
+					decoders.put(object, decoder);
+					frames.put(decoder, reassembler.open(this));
+					all.add(decoder);
+				}
+				decoder.decode(frames.get(decoder));
+			} else if (event.getType() == NormEventType.NORM_RX_OBJECT_COMPLETED
+					|| event.getType() == NormEventType.NORM_RX_OBJECT_ABORTED) {
+				NormFrameDecoder decoder = decoders.remove(object);
+				if (decoder != null) {
+					reassembler.close(frames.remove(decoder));
+				}
+			}
+		}
+
+		public void onFrame(byte[] buffer, int offset, int length) {
+			long now = System.nanoTime();
+			if (!envelope.parse(buffer, offset, length)
+					|| !envelope.isType(CHAT_TYPE)) {
+				return;
+			}
+			// The body starts with the sequence number and the due time
+			int position = envelope.getBodyOffset();
+			int end = position + envelope.getBodyLength();
+			long sequence = 0;
+			while (position < end && buffer[position] != ' ') {
+				sequence = sequence * 10 + (buffer[position++] - '0');
+			}
+			position++;
+			boolean negative = position < end && buffer[position] == '-';
+			if (negative) {
+				position++;
+			}
+			long due = 0;
+			while (position < end && buffer[position] != ' ') {
+				due = due * 10 + (buffer[position++] - '0');
+			}
+			if (negative) {
+				due = -due;
+			}
+
+			if (due - measureFrom < 0 || sequence > Integer.MAX_VALUE) {
+				// Sent during the warm up
+				return;
+			}
+			if (seen.get((int) sequence)) {
+				duplicates++;
+				return;
+			}
+			seen.set((int) sequence);
+			latency.record(now - due);
+			received.incrementAndGet();
+		}
+
+		long getResyncs() {
+			long resyncs = 0;
+			for (NormFrameDecoder decoder : all) {
+				// The first sync of a stream is not one
+				resyncs += Math.max(0, decoder.getResyncs() - 1);
+			}
+			return resyncs;
+		}
+	}
+
+	private final ConfigTree config;
+	private final NormSessionConfig sessionConfig;
+	private final String address;
+	private final int port;
+	private final String returnAddress;
+	private final int returnPort;
+	private final int senders;
+	private final double rate;
+	private final int burst;
+	private final int messageSize;
+	private final long warmupNanos;
+	private final long durationNanos;
+	private final long drainNanos;
+	private final MemoryTransport.Conditions conditions;
+
+	private final NormMetrics.Histogram latency = new NormMetrics.Histogram();
+	/* Due time of the first line measured */
+	private volatile long measureFrom;
+	private final NormFrameEncoder encoder = new NormFrameEncoder(
+			MAX_PACKET_LENGTH);
+
+	public NormLoadGenerator(ConfigTree config) throws ConfigurationException {
+		this.config = config;
+		if (config.getAttribute(NormSessionConfig.TRANSPORT) == null) {
+			config.setAttribute(NormSessionConfig.TRANSPORT, "memory");
+		}
+		sessionConfig = new NormSessionConfig(config);
+		address = config.getAttribute(ADDRESS, "224.1.2.3");
+		port = (int) getLong(PORT, 6003);
+		returnAddress = config.getAttribute(RETURN_ADDRESS, address);
+		returnPort = (int) getLong(RETURN_PORT, port);
+		senders = (int) getLong(SENDERS, 4);
+		rate = getDouble(RATE, 1000);
+		burst = (int) getLong(BURST, 1);
+		messageSize = (int) getLong(MESSAGE_SIZE, 100);
+		warmupNanos = TimeUnit.SECONDS.toNanos(getLong(WARMUP, 2));
+		durationNanos = TimeUnit.SECONDS.toNanos(getLong(DURATION, 10));
+		drainNanos = TimeUnit.MILLISECONDS.toNanos(getLong(DRAIN, 2000));
+		if (senders < 1 || rate <= 0 || burst < 1 || messageSize < 40
+				|| durationNanos < 1 || warmupNanos < 0 || drainNanos < 0) {
+			throw new ConfigurationException("'" + SENDERS + "', '" + RATE
+					+ "', '" + BURST + "' and '" + DURATION
+					+ "' must be positive, '" + MESSAGE_SIZE
+					+ "' at least 40 and '" + WARMUP + "' and '" + DRAIN
+					+ "' not negative");
+		}
+		if (sessionConfig.getTransport() == NormSessionConfig.Transport.NORM
+				&& returnAddress.equals(address) && returnPort == port) {
+			throw new ConfigurationException("The norm transport needs a '"
+					+ RETURN_ADDRESS + "' or '" + RETURN_PORT
+					+ "' other than the send group");
+		}
+		try {
+			conditions = new MemoryTransport.Conditions(getDouble(LOSS_RATE,
+					0), getDouble(REORDER_RATE, 0), getLong(REORDER_MILLIS, 20),
+					getLong(LATENCY, 0));
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationException("Invalid network conditions: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	private long getLong(String name, long defaultValue)
+			throws ConfigurationException {
+		String value = config.getAttribute(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '" + name + "' value: "
+					+ value, e);
+		}
+	}
+
+	private double getDouble(String name, double defaultValue)
+			throws ConfigurationException {
+		String value = config.getAttribute(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '" + name + "' value: "
+					+ value, e);
+		}
+	}
+
+	/**
+	 * Sends for the configured duration, waits for the lines still on their
+	 * way and reports.
+	 */
+	public Report run() throws IOException, InterruptedException {
+		List<NormTransport> transports = new ArrayList<NormTransport>();
+		List<NormTransport.Session> sessions = new ArrayList<NormTransport.Session>();
+		List<NormSender> normSenders = new ArrayList<NormSender>();
+		NormTransport transport = sessionConfig.acquireTransport();
+		transports.add(transport);
+		MemoryTransport memory = transport instanceof MemoryTransport ? (MemoryTransport) transport
+				: null;
+		Probe probe = new Probe();
+		NormTransport.Session rxSession = null;
+		try {
+			if (memory != null) {
+				memory.setConditions(conditions);
+			}
+
+			NormTransport probeNode = transport;
+			if (memory != null) {
+				probeNode = memory.node(PROBE_NODE_ID);
+				transports.add(probeNode);
+			}
+			rxSession = probeNode.openSession(returnAddress, returnPort);
+			rxSession.setReceiver(probe);
+			rxSession.startReceiver(sessionConfig);
+
+			// Without the memory transport every sender shares one stream
+			int streams = memory != null ? senders : 1;
+			for (int i = 0; i < streams; i++) {
+				NormTransport node = transport;
+				if (memory != null) {
+					node = memory.node(FIRST_SENDER_NODE_ID + i);
+					transports.add(node);
+				}
+				NormTransport.Session session = node.openSession(address,
+						port);
+				sessions.add(session);
+				session.startSender(sessionConfig, (int) (System.nanoTime()
+						+ i) & 0xFFFF);
+				final NormSender sender = new NormSender(session, session
+						.openStream(sessionConfig.getStreamBufferSize()),
+						NormProcessor.FlushPolicy.IMMEDIATE, sessionConfig
+								.getSegmentSize(), 1, 1024);
+				session.setSender(new NormTransport.EventHandler() {
+					public void onNormEvent(NormTransport.Event event) {
+						sender.onEvent(event);
+					}
+				});
+				sender.start();
+				normSenders.add(sender);
+			}
+
+			long sequence = 0;
+			long sent = 0;
+			long interval = (long) (burst * 1e9 / rate);
+			long start = System.nanoTime();
+			measureFrom = start + warmupNanos;
+			long end = measureFrom + durationNanos;
+			for (long due = start; due - end < 0; due += interval) {
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				boolean measured = due - measureFrom >= 0;
+				for (int i = 0; i < burst; i++) {
+					int index = (int) (sequence % senders);
+					byte[] line = line(index, sequence, due);
+					byte[] frames = encoder.encode(line, 0, line.length);
+					normSenders.get(index % streams).send(frames, 0,
+							frames.length, true);
+					sequence++;
+					if (measured) {
+						sent++;
+					}
+				}
+			}
+			long sendNanos = System.nanoTime() - measureFrom;
+
+			long deadline = System.nanoTime() + drainNanos;
+			while (probe.received.get() < sent
+					&& System.nanoTime() - deadline < 0) {
+				Thread.sleep(10);
+			}
+
+			String network = null;
+			if (memory != null) {
+				network = "network segments=" + memory.getSegmentsSent()
+						+ " lost=" + memory.getSegmentsLost() + " held="
+						+ memory.getSegmentsHeld() + " overflowed="
+						+ memory.getSegmentsOverflowed();
+			}
+			return new Report(sent, probe.received.get(), probe.duplicates,
+					probe.getResyncs(), sendNanos, rate, latency.snapshot(),
+					network);
+		} finally {
+			for (NormSender sender : normSenders) {
+				sender.close(5000);
+			}
+			for (NormTransport.Session session : sessions) {
+				session.setSender(null);
+				session.stopSender();
+				session.close();
+			}
+			if (rxSession != null) {
+				rxSession.setReceiver(null);
+				rxSession.stopReceiver();
+				rxSession.close();
+			}
+			for (NormTransport acquired : transports) {
+				acquired.release();
+			}
+		}
+	}
+
+	/* A chat line from the sender, padded to the message size */
+	private byte[] line(int sender, long sequence, long due) {
+		StringBuilder body = new StringBuilder(messageSize);
+		body.append(sequence).append(' ').append(due).append(' ');
+		while (body.length() < messageSize) {
+			body.append('x');
+		}
+		return NormChatEnvelope.format(CHAT_TYPE, SENDER_PREFIX + sender,
+				body.toString()).getBytes(ISO_8859_1);
+	}
+
+	/**
+	 * Runs once with the name=value arguments as configuration and prints
+	 * the report.
+	 */
+	public static void main(String[] args) throws Exception {
+		ConfigTree config = new ConfigTree("load-generator");
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 1) {
+				System.err.println("Usage: NormLoadGenerator [name=value]...");
+				System.exit(1);
+			}
+			config.setAttribute(arg.substring(0, equals), arg
+					.substring(equals + 1));
+		}
+		NormLoadGenerator generator;
+		try {
+			generator = new NormLoadGenerator(config);
+		} catch (ConfigurationException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+		System.out.println(generator.run());
+	}
+}
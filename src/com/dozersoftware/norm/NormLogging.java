@@ -0,0 +1,114 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Logging helpers for the gateway.
+ * <p/>
+ * Warnings that can repeat for every frame go through a {@link Summary},
+ * which logs the first one straight away and after that at most one line
+ * per interval with the number seen.
+ * <p/>
+ * To keep logging off the NORM event thread and the delivery workers, put
+ * the com.dozersoftware.norm category behind a log4j AsyncAppender in the
+ * server's jboss-log4j.xml; jboss-log4j-norm.xml at the top of the source
+ * tree has the snippet.
+ */
+public final class NormLogging {
+
+	/**
+	 * Interval between two summary lines of the same warning.
+	 */
+	public static final long SUMMARY_MILLIS = 60000;
+
+	private NormLogging() {
+	}
+
+	/**
+	 * Counts a repeated warning and logs it at most once per interval.
+	 */
+	public static final class Summary {
+		private final Logger logger;
+		private final String what;
+		private final long intervalNanos;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong next = new AtomicLong(System.nanoTime());
+		private volatile String last;
+
+		/**
+		 * @param what
+		 *            plural noun phrase for the warning, such as
+		 *            "stream resyncs".
+		 */
+		public Summary(Logger logger, String what, long intervalMillis) {
+			this.logger = logger;
+			this.what = what;
+			this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		}
+
+		public void record() {
+			record(1, null);
+		}
+
+		/**
+		 * @param detail
+		 *            what the latest occurrence was about, may be null.
+		 */
+		public void record(long occurrences, String detail) {
+			count.addAndGet(occurrences);
+			if (detail != null) {
+				last = detail;
+			}
+			long now = System.nanoTime();
+			long due = next.get();
+			if (now - due >= 0 && next.compareAndSet(due, now + intervalNanos)) {
+				report();
+			}
+		}
+
+		/**
+		 * Logs whatever has been counted since the last line, for instance
+		 * when stopping.
+		 */
+		public void flush() {
+			next.set(System.nanoTime() + intervalNanos);
+			report();
+		}
+
+		private void report() {
+			long occurrences = count.getAndSet(0);
+			if (occurrences == 0) {
+				return;
+			}
+			String detail = last;
+			logger.warn("NORM: " + occurrences + " " + what + " in the last "
+					+ TimeUnit.NANOSECONDS.toSeconds(intervalNanos) + "s"
+					+ (detail != null ? ", latest: " + detail : ""));
+		}
+	}
+}
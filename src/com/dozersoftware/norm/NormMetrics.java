@@ -0,0 +1,569 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counters, gauges and latency histograms for the gateway, published as the
+ * attributes of one MBean and in the Prometheus text format by
+ * {@link NormMetricsEndpoint}.
+ * <p/>
+ * Recording never takes a lock. Counters and histograms are striped: each
+ * thread adds to its own cache line picked by thread id, and the stripes
+ * are only summed when the value is read. Latencies go into log-linear
+ * buckets (8 per power of two, so within 12.5%) up to about 18 minutes.
+ * Metric names may carry Prometheus labels, as in
+ * {@code norm_events_total{type="NORM_RX_OBJECT_UPDATED"}}; help text is
+ * kept per name without labels.
+ * <p/>
+ * The listener and the processor {@link #acquire()} the MBean registration
+ * when they start and {@link #release()} it when they stop, so that it is
+ * gone once the gateway is undeployed and doesn't keep the deployment's
+ * class loader reachable from the MBeanServer.
+ */
+public final class NormMetrics implements DynamicMBean {
+
+	private static Logger logger = Logger.getLogger(NormMetrics.class);
+
+	public static final String OBJECT_NAME = "com.dozersoftware.norm:type=Metrics";
+
+	/* Longs per stripe, one 64 byte cache line */
+	private static final int PAD = 8;
+	private static final int STRIPES;
+	static {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() * 2
+				&& stripes < 64) {
+			stripes <<= 1;
+		}
+		STRIPES = stripes;
+	}
+
+	private static int stripe(int stripes) {
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 16)) & (stripes - 1);
+	}
+
+	/**
+	 * Reads a value owned by someone else, such as a queue depth.
+	 */
+	public interface Gauge {
+		long value();
+	}
+
+	/**
+	 * A monotonically increasing count.
+	 */
+	public static final class Counter {
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+				* PAD);
+
+		Counter() {
+		}
+
+		public void increment() {
+			cells.incrementAndGet(stripe(STRIPES) * PAD);
+		}
+
+		public void add(long n) {
+			cells.addAndGet(stripe(STRIPES) * PAD, n);
+		}
+
+		public long get() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				sum += cells.get(i * PAD);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Distribution of durations in nanoseconds.
+	 */
+	public static final class Histogram {
+		private static final int SUB_BITS = 3;
+		private static final int SUB = 1 << SUB_BITS;
+		private static final int MAX_EXPONENT = 40;
+		static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB;
+		/* Buckets, then the count and the sum, then a line of padding */
+		private static final int STRIDE = (BUCKETS + 2 + PAD - 1) / PAD * PAD
+				+ PAD;
+		private static final int STRIPES = Math.min(NormMetrics.STRIPES, 16);
+
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+				* STRIDE);
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram() {
+		}
+
+		public void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			int base = stripe(STRIPES) * STRIDE;
+			cells.incrementAndGet(base + bucket(nanos));
+			cells.incrementAndGet(base + BUCKETS);
+			cells.addAndGet(base + BUCKETS + 1, nanos);
+			long current;
+			while (nanos > (current = max.get())
+					&& !max.compareAndSet(current, nanos)) {
+			}
+		}
+
+		/**
+		 * Records the time since a {@link System#nanoTime()} reading.
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		static int bucket(long nanos) {
+			if (nanos < SUB) {
+				return (int) nanos;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			if (exponent > MAX_EXPONENT) {
+				return BUCKETS - 1;
+			}
+			int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB - 1);
+			return (exponent - SUB_BITS + 1) * SUB + sub;
+		}
+
+		/* Largest value that falls in the bucket */
+		static long upperBound(int bucket) {
+			if (bucket < SUB) {
+				return bucket;
+			}
+			int shift = bucket / SUB - 1;
+			long lower = (long) (SUB + bucket % SUB) << shift;
+			return lower + (1L << shift) - 1;
+		}
+
+		public Snapshot snapshot() {
+			long[] counts = new long[BUCKETS];
+			long count = 0;
+			long sum = 0;
+			for (int s = 0; s < STRIPES; s++) {
+				int base = s * STRIDE;
+				for (int b = 0; b < BUCKETS; b++) {
+					counts[b] += cells.get(base + b);
+				}
+				count += cells.get(base + BUCKETS);
+				sum += cells.get(base + BUCKETS + 1);
+			}
+			return new Snapshot(counts, count, sum, max.get());
+		}
+	}
+
+	/**
+	 * A histogram's values at one point in time. Buckets are read one by one
+	 * while recording goes on, so the count may be slightly off their total.
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getSumNanos() {
+			return sum;
+		}
+
+		public long getMaxNanos() {
+			return max;
+		}
+
+		/**
+		 * @return the upper bound of the bucket holding the quantile, at
+		 *         most the largest value recorded.
+		 */
+		public long getQuantileNanos(double quantile) {
+			long total = 0;
+			for (long c : counts) {
+				total += c;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(quantile * total);
+			long seen = 0;
+			for (int b = 0; b < counts.length; b++) {
+				seen += counts[b];
+				if (seen >= Math.max(1, rank)) {
+					return Math.min(Histogram.upperBound(b), max);
+				}
+			}
+			return max;
+		}
+	}
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private static NormMetrics instance;
+	private static int references;
+
+	/**
+	 * The metrics of this class loader.
+	 */
+	public static synchronized NormMetrics getInstance() {
+		if (instance == null) {
+			instance = new NormMetrics();
+		}
+		return instance;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBeanServer if they aren't,
+	 * replacing whatever is registered under {@link #OBJECT_NAME}, such as
+	 * the metrics of an earlier deployment. Each call must be matched by
+	 * {@link #release()}.
+	 */
+	public static synchronized void acquire() {
+		if (references++ > 0) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(getInstance(), name);
+		} catch (JMException e) {
+			logger.warn("NORM: Can't register metrics MBean: " + e);
+		}
+	}
+
+	/**
+	 * Drops a reference taken by {@link #acquire()}, unregistering the
+	 * MBean with the last one.
+	 */
+	public static synchronized void release() {
+		if (references == 0 || --references > 0) {
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			logger.warn("NORM: Can't unregister metrics MBean: " + e);
+		}
+	}
+
+	/* Metric objects by full name, and help text by name without labels */
+	private final Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+	private final Map<String, String> help = new LinkedHashMap<String, String>();
+
+	private NormMetrics() {
+	}
+
+	/**
+	 * Returns the counter, creating it on first use.
+	 */
+	public synchronized Counter counter(String name, String description) {
+		Object metric = metrics.get(name);
+		if (metric == null) {
+			metric = new Counter();
+			register(name, description, metric);
+		}
+		return (Counter) metric;
+	}
+
+	/**
+	 * Returns the histogram, creating it on first use.
+	 */
+	public synchronized Histogram histogram(String name, String description) {
+		Object metric = metrics.get(name);
+		if (metric == null) {
+			metric = new Histogram();
+			register(name, description, metric);
+		}
+		return (Histogram) metric;
+	}
+
+	/**
+	 * Publishes a gauge, replacing any registered under the same name.
+	 */
+	public synchronized void gauge(String name, String description,
+			Gauge gauge) {
+		register(name, description, gauge);
+	}
+
+	/**
+	 * Stops publishing a gauge, for instance when its owner is stopped.
+	 */
+	public synchronized void removeGauge(String name) {
+		if (metrics.get(name) instanceof Gauge) {
+			metrics.remove(name);
+		}
+	}
+
+	private void register(String name, String description, Object metric) {
+		metrics.put(name, metric);
+		if (!help.containsKey(baseName(name))) {
+			help.put(baseName(name), description);
+		}
+	}
+
+	private static String baseName(String name) {
+		int labels = name.indexOf('{');
+		return labels < 0 ? name : name.substring(0, labels);
+	}
+
+	/* Inserts a label into a name that may already have some */
+	private static String withLabel(String name, String label) {
+		int labels = name.indexOf('{');
+		return labels < 0 ? name + "{" + label + "}" : name.substring(0,
+				labels + 1)
+				+ label + "," + name.substring(labels + 1);
+	}
+
+	private static String withSuffix(String name, String suffix) {
+		int labels = name.indexOf('{');
+		return labels < 0 ? name + suffix : name.substring(0, labels) + suffix
+				+ name.substring(labels);
+	}
+
+	private synchronized List<Map.Entry<String, Object>> entries() {
+		return new ArrayList<Map.Entry<String, Object>>(
+				new LinkedHashMap<String, Object>(metrics).entrySet());
+	}
+
+	/* The entries with those of the same name without labels together */
+	private List<Map.Entry<String, Object>> entriesByName() {
+		Map<String, List<Map.Entry<String, Object>>> names = new LinkedHashMap<String, List<Map.Entry<String, Object>>>();
+		for (Map.Entry<String, Object> entry : entries()) {
+			String base = baseName(entry.getKey());
+			List<Map.Entry<String, Object>> group = names.get(base);
+			if (group == null) {
+				group = new ArrayList<Map.Entry<String, Object>>();
+				names.put(base, group);
+			}
+			group.add(entry);
+		}
+		List<Map.Entry<String, Object>> entries = new ArrayList<Map.Entry<String, Object>>();
+		for (List<Map.Entry<String, Object>> group : names.values()) {
+			entries.addAll(group);
+		}
+		return entries;
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text format, with one HELP and
+	 * TYPE line per name. Histograms are written as summaries in seconds.
+	 */
+	public void writeText(Appendable out) throws IOException {
+		String lastBase = null;
+		for (Map.Entry<String, Object> entry : entriesByName()) {
+			String name = entry.getKey();
+			Object metric = entry.getValue();
+			String base = baseName(name);
+			if (!base.equals(lastBase)) {
+				String description;
+				synchronized (this) {
+					description = help.get(base);
+				}
+				if (description != null) {
+					out.append("# HELP ").append(base).append(' ').append(
+							description).append('\n');
+				}
+				out.append("# TYPE ").append(base).append(' ').append(
+						metric instanceof Counter ? "counter"
+								: metric instanceof Histogram ? "summary"
+										: "gauge").append('\n');
+				lastBase = base;
+			}
+			if (metric instanceof Counter) {
+				line(out, name, ((Counter) metric).get());
+			} else if (metric instanceof Gauge) {
+				line(out, name, ((Gauge) metric).value());
+			} else {
+				Snapshot snapshot = ((Histogram) metric).snapshot();
+				for (double quantile : QUANTILES) {
+					line(out, withLabel(name, "quantile=\"" + quantile + "\""),
+							seconds(snapshot.getQuantileNanos(quantile)));
+				}
+				line(out, withSuffix(name, "_sum"), seconds(snapshot
+						.getSumNanos()));
+				line(out, withSuffix(name, "_count"), snapshot.getCount());
+			}
+		}
+	}
+
+	private static void line(Appendable out, String name, Object value)
+			throws IOException {
+		out.append(name).append(' ').append(String.valueOf(value)).append(
+				'\n');
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	/*
+	 * DynamicMBean: every counter and gauge is a long attribute; a histogram
+	 * becomes _count, _max and one attribute per quantile, in seconds.
+	 */
+
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		for (Map.Entry<String, Object> entry : entries()) {
+			String name = entry.getKey();
+			Object metric = entry.getValue();
+			if (metric instanceof Histogram) {
+				if (attribute.startsWith(name)) {
+					Snapshot snapshot = ((Histogram) metric).snapshot();
+					String suffix = attribute.substring(name.length());
+					if ("_count".equals(suffix)) {
+						return Long.valueOf(snapshot.getCount());
+					}
+					if ("_max".equals(suffix)) {
+						return Double.valueOf(seconds(snapshot.getMaxNanos()));
+					}
+					for (double quantile : QUANTILES) {
+						if (("_p" + quantileName(quantile)).equals(suffix)) {
+							return Double.valueOf(seconds(snapshot
+									.getQuantileNanos(quantile)));
+						}
+					}
+				}
+			} else if (name.equals(attribute)) {
+				return Long.valueOf(metric instanceof Counter ? ((Counter) metric)
+						.get()
+						: ((Gauge) metric).value());
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	private static String quantileName(double quantile) {
+		String digits = String.valueOf(quantile).substring(2);
+		return digits.length() == 1 ? digits + "0" : digits;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// Left out, as the DynamicMBean contract allows
+			}
+		}
+		return list;
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Object> entry : entries()) {
+			String name = entry.getKey();
+			String description;
+			synchronized (this) {
+				description = help.get(baseName(name));
+			}
+			if (entry.getValue() instanceof Histogram) {
+				attributes.add(new MBeanAttributeInfo(name + "_count", "long",
+						description, true, false, false));
+				attributes.add(new MBeanAttributeInfo(name + "_max", "double",
+						description + " (seconds)", true, false, false));
+				for (double quantile : QUANTILES) {
+					attributes.add(new MBeanAttributeInfo(name + "_p"
+							+ quantileName(quantile), "double", description
+							+ " (seconds)", true, false, false));
+				}
+			} else {
+				attributes.add(new MBeanAttributeInfo(name, "long",
+						description, true, false, false));
+			}
+		}
+		return new MBeanInfo(getClass().getName(), "NORM gateway metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, new MBeanOperationInfo[] { new MBeanOperationInfo(
+						"scrape", "The metrics in the Prometheus text format",
+						null, "java.lang.String", MBeanOperationInfo.INFO) },
+				null);
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws ReflectionException {
+		if ("scrape".equals(actionName)) {
+			StringBuilder text = new StringBuilder();
+			try {
+				writeText(text);
+			} catch (IOException e) {
+				// StringBuilder doesn't throw
+			}
+			return text.toString();
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName),
+				"No operation " + actionName);
+	}
+
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only: "
+				+ attribute.getName());
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+}
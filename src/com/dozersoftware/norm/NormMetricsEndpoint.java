@@ -0,0 +1,122 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link NormMetrics} in the Prometheus text format at
+ * {@code http://<host>:<port>/metrics}.
+ * <p/>
+ * The listener and the processor {@link #acquire(int)} the endpoint when a
+ * metrics port is configured and {@link #release()} it when they stop; it
+ * runs while anyone holds a reference. Only one port is served; a second
+ * caller asking for another port shares the first.
+ */
+public class NormMetricsEndpoint {
+
+	private static Logger logger = Logger.getLogger(NormMetricsEndpoint.class);
+
+	public static final String PATH = "/metrics";
+	/**
+	 * Listener and processor property holding the port to serve on. Unset
+	 * or 0 (the default) serves nothing; the MBean is always registered.
+	 */
+	public static final String PORT = "metrics-port";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static HttpServer server;
+	private static ExecutorService executor;
+	private static int references;
+
+	private NormMetricsEndpoint() {
+	}
+
+	/**
+	 * Starts the endpoint if it isn't running. Each call must be matched by
+	 * {@link #release()}.
+	 */
+	public static synchronized void acquire(int port) throws IOException {
+		if (server == null) {
+			HttpServer created = HttpServer.create(new InetSocketAddress(port),
+					0);
+			created.createContext(PATH, new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					StringBuilder text = new StringBuilder(4096);
+					NormMetrics.getInstance().writeText(text);
+					byte[] body = text.toString().getBytes(UTF_8);
+					exchange.getResponseHeaders().set("Content-Type",
+							"text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					try {
+						out.write(body);
+					} finally {
+						out.close();
+					}
+				}
+			});
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "NORM metrics");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			created.setExecutor(executor);
+			created.start();
+			server = created;
+		} else if (server.getAddress().getPort() != port) {
+			logger.warn("NORM: Metrics already served on port "
+					+ server.getAddress().getPort() + ", not " + port);
+		}
+		references++;
+	}
+
+	/**
+	 * Drops a reference taken by {@link #acquire(int)}, stopping the
+	 * endpoint with the last one.
+	 */
+	public static synchronized void release() {
+		if (references == 0 || --references > 0) {
+			return;
+		}
+		server.stop(0);
+		executor.shutdown();
+		server = null;
+		executor = null;
+	}
+}
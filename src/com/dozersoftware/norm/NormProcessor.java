@@ -22,42 +22,190 @@
 
 package com.dozersoftware.norm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
-import mil.navy.nrl.norm.NormInstance;
-import mil.navy.nrl.norm.NormNode;
-import mil.navy.nrl.norm.NormSession;
-import mil.navy.nrl.norm.NormStream;
-import mil.navy.nrl.norm.enums.NormFlushMode;
-
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.ConfigurationException;
 import org.jboss.soa.esb.actions.AbstractActionPipelineProcessor;
 import org.jboss.soa.esb.actions.ActionLifecycleException;
 import org.jboss.soa.esb.actions.ActionProcessingException;
 import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.message.Attachment;
 import org.jboss.soa.esb.message.Message;
 
 public class NormProcessor extends AbstractActionPipelineProcessor {
 
-	private static long TX_BUFFER_SIZE = 1048576;
+	private static Logger logger = Logger.getLogger(NormProcessor.class);
+
+	/**
+	 * Multicast group to send on. A gateway listener in the same deployment
+	 * configured with the same group shares the session.
+	 */
+	public static final String ADDRESS = "address";
+	public static final String PORT = "port";
+
+	/**
+	 * When the NORM stream is flushed: immediate (after every frame, the
+	 * default), size (once flush-size bytes are pending), linger (once the
+	 * oldest pending frame is flush-linger-ms old) or batch (after all the
+	 * frames of one ESB message).
+	 */
+	public static final String FLUSH_POLICY = "flush-policy";
+	/**
+	 * Pending bytes that trigger a flush under the size policy. Defaults to
+	 * the segment size.
+	 */
+	public static final String FLUSH_SIZE = "flush-size";
+	/**
+	 * Maximum age, in milliseconds, of an unflushed frame under the size and
+	 * linger policies.
+	 */
+	public static final String FLUSH_LINGER = "flush-linger-ms";
+
+	/**
+	 * Maximum number of messages queued for the NORM sender thread. Once
+	 * reached, process() blocks until the sender catches up, which slows
+	 * consumption from the norm_out queue instead of losing frames.
+	 */
+	public static final String MAX_PENDING_FRAMES = "max-pending-frames";
+	/**
+	 * When true, process() waits until the message's frames have been
+	 * accepted by the NORM stream, so a failure shows in the pipeline.
+	 */
+	public static final String AWAIT_COMPLETION = "await-completion";
+	/**
+	 * Longest process() waits, in milliseconds, for a message under
+	 * await-completion before failing it. Defaults to 30000.
+	 */
+	public static final String AWAIT_TIMEOUT = "await-timeout-ms";
+	/**
+	 * When true (the default), message attachments are sent as NORM objects:
+	 * a java.io.File as a file object and a byte[] as a data object, with the
+	 * attachment or file name as the object info.
+	 */
+	public static final String SEND_ATTACHMENTS = "send-attachments";
+
+	public enum FlushPolicy {
+		IMMEDIATE, SIZE, LINGER, BATCH
+	}
+
 	private static int MAX_PACKET_LENGTH = 2048;
+	/* Matches DataOutputStream.writeBytes(), as used by normChat */
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/* Splits payloads too long for one packet into fragments */
+	private final NormFrameEncoder encoder = new NormFrameEncoder(
+			MAX_PACKET_LENGTH);
 
 	// private String messageBody;
-	NormInstance instance;
-	NormSession session;
-	NormStream stream;
+	NormTransport transport;
+	NormTransport.Session session;
+	NormTransport.Stream stream;
 
 	private boolean initd = false;
 	
 	private String handle;
 
-	public NormProcessor(ConfigTree config) {
+	private final NormSessionConfig sessionConfig;
+	private final String address;
+	private final int port;
+
+	private final FlushPolicy flushPolicy;
+	private final int flushSize;
+	private final long flushLinger;
+	private final int maxPendingFrames;
+	private final boolean awaitCompletion;
+	private final long awaitTimeout;
+	private final boolean sendAttachments;
+
+	/* Owns the stream; process() only queues frames for it */
+	private NormSender sender;
+	/* What initialise() has acquired, for release() */
+	private boolean senderStarted;
+	private boolean metricsAcquired;
+	private boolean endpointAcquired;
+
+	private final int metricsPort;
+	private final String pendingMetric;
+
+	private final NormLogging.Summary skippedAttachments = new NormLogging.Summary(
+			logger, "attachments skipped as neither File nor byte[]",
+			NormLogging.SUMMARY_MILLIS);
+
+	public NormProcessor(ConfigTree config) throws ConfigurationException {
+		this.sessionConfig = new NormSessionConfig(config);
+		this.address = config.getAttribute(ADDRESS, "224.1.2.3");
+		String portValue = config.getAttribute(PORT, "6003");
+		try {
+			this.port = Integer.parseInt(portValue.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '" + PORT + "' value: "
+					+ portValue, e);
+		}
+
+		String policy = config.getAttribute(FLUSH_POLICY, "immediate");
+		String size = config.getAttribute(FLUSH_SIZE, String
+				.valueOf(sessionConfig.getSegmentSize()));
+		String linger = config.getAttribute(FLUSH_LINGER, "50");
+		try {
+			this.flushPolicy = FlushPolicy.valueOf(policy.trim().toUpperCase());
+			this.flushSize = Integer.parseInt(size.trim());
+			this.flushLinger = Long.parseLong(linger.trim());
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationException("Invalid flush settings: "
+					+ FLUSH_POLICY + "=" + policy + ", " + FLUSH_SIZE + "="
+					+ size + ", " + FLUSH_LINGER + "=" + linger, e);
+		}
+		if (flushSize < 1 || flushLinger < 1) {
+			throw new ConfigurationException("'" + FLUSH_SIZE + "' and '"
+					+ FLUSH_LINGER + "' must be at least 1");
+		}
+
+		String maxPending = config.getAttribute(MAX_PENDING_FRAMES, "1024");
+		try {
+			this.maxPendingFrames = Integer.parseInt(maxPending.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '" + MAX_PENDING_FRAMES
+					+ "' value: " + maxPending, e);
+		}
+		if (maxPendingFrames < 1) {
+			throw new ConfigurationException("'" + MAX_PENDING_FRAMES
+					+ "' must be at least 1");
+		}
+		this.awaitCompletion = Boolean.parseBoolean(config.getAttribute(
+				AWAIT_COMPLETION, "false"));
+		String timeout = config.getAttribute(AWAIT_TIMEOUT, "30000");
+		try {
+			this.awaitTimeout = Long.parseLong(timeout.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '" + AWAIT_TIMEOUT
+					+ "' value: " + timeout, e);
+		}
+		if (awaitTimeout < 1) {
+			throw new ConfigurationException("'" + AWAIT_TIMEOUT
+					+ "' must be at least 1");
+		}
+		this.sendAttachments = Boolean.parseBoolean(config.getAttribute(
+				SEND_ATTACHMENTS, "true"));
+		String metrics = config.getAttribute(NormMetricsEndpoint.PORT, "0");
+		try {
+			this.metricsPort = Integer.parseInt(metrics.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '"
+					+ NormMetricsEndpoint.PORT + "' value: " + metrics, e);
+		}
+		this.pendingMetric = "norm_tx_pending_frames{group=\"" + address + ":"
+				+ port + "\"}";
+
 		String esbFile = "config/snap_esb.properties";
 		InputStream esbIn = NormProcessor.class.getClassLoader().getResourceAsStream(esbFile);
 		String sysFile = "snap.properties";
@@ -65,23 +213,27 @@ public class NormProcessor extends AbstractActionPipelineProcessor {
 		try {
 			
 			if (esbIn == null) {
-				System.out.println("NORM: Can't Read ESB Props File");
+				logger.warn("NORM: Can't read ESB properties file " + esbFile);
 			}
 			Properties esbProps = new java.util.Properties();
 			esbProps.load(esbIn);
 			
 			if (sysIn == null) {
-				System.out.println("NORM: Can't Read System Props File");
+				logger.warn("NORM: Can't read system properties file "
+						+ sysFile);
 			}
 			Properties sysProps = new java.util.Properties();
 			sysProps.load(sysIn);
 			
 			this.handle = sysProps.getProperty("handle");
 			
-			System.out.println("NORM Gateway Version: " + esbProps.getProperty("version"));
+			if (logger.isInfoEnabled()) {
+				logger.info("NORM Gateway Version: "
+						+ esbProps.getProperty("version"));
+			}
 		} catch (Exception e) {
 
-			System.out.println("NORM ERROR: Processing Properties...");
+			logger.error("NORM: Failed to process properties: " + e);
 			this.handle = "UNK";
 			
 			
@@ -90,100 +242,287 @@ public class NormProcessor extends AbstractActionPipelineProcessor {
 	}
 
 	public void initialise() throws ActionLifecycleException {
-		// Initialise resources...
+		if (initd) {
+			return;
+		}
 		try {
-			if (!initd) {
-				this.instance = new NormInstance();
-				this.session = instance.createSession("224.1.2.3", 6003,
-						NormNode.NORM_NODE_ANY);
-				this.session.setRxPortReuse(true, false);
-				this.session.startSender(1, TX_BUFFER_SIZE, 1400, (short) 16,
-						(short) 4);
-				this.stream = session.streamOpen(TX_BUFFER_SIZE);
-				// Report to the network
-				String xml = "<MESSAGE type=\"connect\" sender=\"" + this.handle
-						+ "\"></MESSAGE>";
-				transmit(xml);
-				initd = true;
+			this.transport = sessionConfig.acquireTransport();
+			this.session = transport.openSession(address, port);
+			session.startSender(sessionConfig, 1);
+			senderStarted = true;
+			this.stream = session.openStream(sessionConfig
+					.getStreamBufferSize());
+
+			sender = new NormSender(session, stream, flushPolicy, flushSize,
+					flushLinger, maxPendingFrames);
+			session.setSender(new NormTransport.EventHandler() {
+				public void onNormEvent(NormTransport.Event event) {
+					sender.onEvent(event);
+				}
+			});
+			sender.start();
+			NormMetrics.getInstance().gauge(pendingMetric,
+					"Messages waiting for the NORM sender thread",
+					new NormMetrics.Gauge() {
+						public long value() {
+							return sender.getPending();
+						}
+					});
+			NormMetrics.acquire();
+			metricsAcquired = true;
+			if (metricsPort > 0) {
+				NormMetricsEndpoint.acquire(metricsPort);
+				endpointAcquired = true;
 			}
+
+			// Report to the network
+			String xml = NormChatEnvelope.format("connect", this.handle, null);
+			transmit(xml);
+			initd = true;
 		} catch (IOException e) {
-			e.printStackTrace();
+			release();
+			throw new ActionLifecycleException("NORM: Failed to start sending",
+					e);
+		} catch (InterruptedException e) {
+			release();
+			Thread.currentThread().interrupt();
+			throw new ActionLifecycleException(
+					"NORM: Interrupted announcing connect", e);
 		}
 	}
 
 	public Message process(final Message message)
 			throws ActionProcessingException {
 
-		String msg = (String) message.getBody().get();
+		if (!initd) {
+			throw new ActionProcessingException("NORM: Not sending, "
+					+ "the processor failed to initialise");
+		}
+		Object body = message.getBody().get();
 
 		try {
+			List<NormSender.TxRequest> requests = sendAttachments ? transmitAttachments(message)
+					: new ArrayList<NormSender.TxRequest>(0);
 
-			transmit(msg);
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			NormSender.TxRequest request;
+			if (body == null && !requests.isEmpty()) {
+				// Attachments only
+				request = null;
+			} else if (body instanceof byte[]) {
+				byte[] bytes = (byte[]) body;
+				if (message.getProperties().getProperty(
+						JMSRouter.FRAME_COUNT_PROPERTY) != null) {
+					// Framed by a JMSRouter, through the norm_out_frames gateway
+					request = transmitFramed(bytes);
+				} else {
+					request = transmit(bytes, 0, bytes.length);
+				}
+			} else if (body instanceof String) {
+				request = transmit((String) body);
+			} else if (body instanceof List) {
+				// A batch from the gateway listener
+				request = transmitAll((List<?>) body);
+			} else {
+				throw new ActionProcessingException(
+						"NORM: Can't send body of type "
+								+ (body == null ? null : body.getClass()
+										.getName()));
+			}
+
+			if (request != null) {
+				requests.add(request);
+			}
+			if (awaitCompletion) {
+				long deadline = System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(awaitTimeout);
+				for (NormSender.TxRequest sent : requests) {
+					if (!sent.await(deadline - System.nanoTime(),
+							TimeUnit.NANOSECONDS)) {
+						throw new ActionProcessingException(
+								"NORM: Message dropped or not sent within "
+										+ awaitTimeout + "ms");
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ActionProcessingException(
+					"NORM: Interrupted waiting for the sender", e);
+		} catch (IllegalArgumentException e) {
+			throw new ActionProcessingException("NORM: " + e.getMessage(), e);
+		} catch (IllegalStateException e) {
+			// The sender is closing
+			throw new ActionProcessingException("NORM: " + e.getMessage(), e);
 		}
 
 		return message;
 	}
 
 	public void destroy() throws ActionLifecycleException {
-		// Cleanup resources...
-
-			String text = "<MESSAGE type=\"disconnect\" sender=\"" + this.handle
-					+ "\"></MESSAGE>";
-
-		if (transmit(text)) {
-			this.stream.close();
-			this.session.stopSender();
-			this.session.destroySession();
+		if (!initd) {
+			return;
+		}
+		initd = false;
+		NormSender closing = sender;
+		try {
+			transmit(NormChatEnvelope.format("disconnect", this.handle, null));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		release();
 
-			System.out.println("Shutting Down Norm Processor.");
+		if (logger.isInfoEnabled()) {
+			logger.info("NORM: Shutting down processor. objectsSent="
+					+ closing.getObjectsSent() + " objectsFailed="
+					+ closing.getObjectsFailed());
 		}
-		
 	}
 
-	private boolean transmit(String message) {
-		//System.out.println("NORM: Sending -> " + message);
-		// Write data into an internal byte array
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-		// Write Java data types into the above byte array
-		DataOutputStream das = new DataOutputStream(baos);
+	/*
+	 * Undoes what initialise() did, in reverse order and as far as it got,
+	 * so the shared runtime and the metrics references are only released
+	 * once each.
+	 */
+	private void release() {
+		if (endpointAcquired) {
+			NormMetricsEndpoint.release();
+			endpointAcquired = false;
+		}
+		if (metricsAcquired) {
+			NormMetrics.release();
+			metricsAcquired = false;
+		}
+		NormMetrics.getInstance().removeGauge(pendingMetric);
+		if (sender != null) {
+			try {
+				sender.close(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			session.setSender(null);
+			sender = null;
+		} else if (stream != null) {
+			stream.close();
+		}
+		stream = null;
+		if (senderStarted) {
+			session.stopSender();
+			senderStarted = false;
+		}
+		if (session != null) {
+			session.close();
+			session = null;
+		}
+		if (transport != null) {
+			transport.release();
+			transport = null;
+		}
+	}
 
-		int packetLength;
+	private NormSender.TxRequest transmit(String message)
+			throws InterruptedException {
+		byte[] msgBytes = message.getBytes(ISO_8859_1);
+		return transmit(msgBytes, 0, msgBytes.length);
+	}
 
-		byte[] msgBytes = message.getBytes();
+	/* Frames a single payload, in fragments if need be, and queues it */
+	private NormSender.TxRequest transmit(byte[] payload, int offset,
+			int length) throws InterruptedException {
+		byte[] frames = encoder.encode(payload, offset, length);
+		return sender.send(frames, 0, frames.length, true);
+	}
 
-		if (msgBytes.length > MAX_PACKET_LENGTH - 2) {
-			packetLength = MAX_PACKET_LENGTH;
-			System.out.println("NORM ERROR: Packet too long!");
-		} else {
-			packetLength = msgBytes.length + 2;
+	/* Frames every element of a batch into one buffer and queues it */
+	private NormSender.TxRequest transmitAll(List<?> batch)
+			throws InterruptedException {
+		byte[][] payloads = new byte[batch.size()][];
+		int total = 0;
+		for (int i = 0; i < payloads.length; i++) {
+			Object item = batch.get(i);
+			payloads[i] = item instanceof byte[] ? (byte[]) item : String
+					.valueOf(item).getBytes(ISO_8859_1);
+			total += encoder.encodedLength(payloads[i], 0, payloads[i].length);
 		}
+		byte[] frames = new byte[total];
+		int position = 0;
+		for (byte[] payload : payloads) {
+			position = encoder.encode(payload, 0, payload.length, frames,
+					position);
+		}
+		return sender.send(frames, 0, frames.length, true);
+	}
 
-		try {
-			das.writeChar(packetLength);
-			das.writeBytes(message);
-
-			das.flush();
-
-			//System.out.println("Writing NORM OUT bytes: "	+ baos.toByteArray().length);
-			int msgLeft = packetLength
-					- stream.write(baos.toByteArray(), 0, packetLength);
-			if (msgLeft > 0) {
-				System.out.println("NORM OUT: TX BUFFER FULL!");
-			} else {
-				stream.flush(true, NormFlushMode.NORM_FLUSH_PASSIVE);
+	/* Queues each File or byte[] attachment as a NORM object */
+	private List<NormSender.TxRequest> transmitAttachments(Message message)
+			throws InterruptedException {
+		Attachment attachment = message.getAttachment();
+		List<NormSender.TxRequest> requests = new ArrayList<NormSender.TxRequest>();
+		if (attachment == null) {
+			return requests;
+		}
+		String[] names = attachment.getNames();
+		if (names != null) {
+			for (String name : names) {
+				NormSender.TxRequest request = transmitObject(name, attachment
+						.get(name));
+				if (request != null) {
+					requests.add(request);
+				}
 			}
+		}
+		for (int i = 0; i < attachment.getUnnamedCount(); i++) {
+			NormSender.TxRequest request = transmitObject(null, attachment
+					.itemAt(i));
+			if (request != null) {
+				requests.add(request);
+			}
+		}
+		return requests;
+	}
 
-			das.close();
-			baos.close();
+	private NormSender.TxRequest transmitObject(String name, Object item)
+			throws InterruptedException {
+		if (item instanceof File) {
+			File file = (File) item;
+			String info = name != null ? name : file.getName();
+			return sender.sendFile(file.getAbsolutePath(), info
+					.getBytes(ISO_8859_1));
+		} else if (item instanceof byte[]) {
+			byte[] data = (byte[]) item;
+			String info = name != null ? name : "";
+			return sender.sendData(data, 0, data.length, info
+					.getBytes(ISO_8859_1));
+		}
+		skippedAttachments.record(1, (name != null ? name + " of type "
+				: "type ")
+				+ (item == null ? null : item.getClass().getName()));
+		return null;
+	}
 
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
+	/*
+	 * Passes frames built by JMSRouter straight through, unless one is too
+	 * long for a packet, in which case they are framed again here.
+	 */
+	private NormSender.TxRequest transmitFramed(byte[] bytes)
+			throws InterruptedException, ActionProcessingException {
+		if (encoder.fits(bytes, 0, bytes.length)) {
+			return sender.send(bytes, 0, bytes.length, true);
+		}
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		int position = 0;
+		while (position < bytes.length) {
+			int frameLength = bytes.length - position < 2 ? 0
+					: ((bytes[position] & 0xFF) << 8)
+							| (bytes[position + 1] & 0xFF);
+			if (frameLength < 2 || frameLength > bytes.length - position) {
+				throw new ActionProcessingException(
+						"NORM: Malformed frame at offset " + position);
+			}
+			byte[] payload = new byte[frameLength - 2];
+			System.arraycopy(bytes, position + 2, payload, 0, payload.length);
+			payloads.add(payload);
+			position += frameLength;
 		}
-		return true;
+		return transmitAll(payloads);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,270 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts fragmented payloads written by {@link NormFrameEncoder} back
+ * together.
+ * <p/>
+ * Each remote sender stream gets a {@link Stream}, which sits between its
+ * {@link NormFrameDecoder} and the real {@link NormFrameDecoder.FrameHandler}.
+ * Ordinary frames pass straight through. Fragments are copied into a
+ * buffer taken from a bounded pool, and the whole payload is handed on once
+ * the last fragment arrives. A NORM stream is ordered and the sender writes
+ * a message's fragments back to back, so a stream has at most one message
+ * in progress; a gap in the sequence drops it.
+ * <p/>
+ * Messages that take longer than the timeout to complete, or whose stream
+ * goes quiet, give their buffer back on the next sweep. Not thread safe;
+ * all streams must be driven from one thread.
+ */
+public class NormReassembler {
+
+	/**
+	 * Reassembly state for one remote sender stream.
+	 */
+	public class Stream implements NormFrameDecoder.FrameHandler {
+		private final NormFrameDecoder.FrameHandler downstream;
+
+		private byte[] buffer;
+		private int length;
+		private int messageId;
+		private int nextIndex;
+		private int count;
+		private long started;
+
+		Stream(NormFrameDecoder.FrameHandler downstream) {
+			this.downstream = downstream;
+		}
+
+		public void onFrame(byte[] frame, int offset, int frameLength) {
+			if (!NormFrameEncoder.isFragment(frame, offset, frameLength)) {
+				downstream.onFrame(frame, offset, frameLength);
+				return;
+			}
+			fragments++;
+
+			int id = ((frame[offset + 2] & 0xFF) << 24)
+					| ((frame[offset + 3] & 0xFF) << 16)
+					| ((frame[offset + 4] & 0xFF) << 8)
+					| (frame[offset + 5] & 0xFF);
+			int index = ((frame[offset + 6] & 0xFF) << 8)
+					| (frame[offset + 7] & 0xFF);
+			int total = ((frame[offset + 8] & 0xFF) << 8)
+					| (frame[offset + 9] & 0xFF);
+			int dataOffset = offset + NormFrameEncoder.FRAGMENT_HEADER_LENGTH;
+			int dataLength = frameLength
+					- NormFrameEncoder.FRAGMENT_HEADER_LENGTH;
+
+			if (buffer != null && (id != messageId || index != nextIndex)) {
+				// Lost the rest of the message in progress
+				incomplete++;
+				discard();
+			}
+			if (buffer == null) {
+				if (index != 0 || total == 0) {
+					// Joined mid-message
+					incomplete++;
+					return;
+				}
+				if (!begin(id, total)) {
+					return;
+				}
+			}
+
+			if (length + dataLength > maxMessageSize) {
+				tooLarge++;
+				discard();
+				return;
+			}
+			if (length + dataLength > buffer.length) {
+				byte[] larger = new byte[Math.min(maxMessageSize, Math.max(
+						length + dataLength, buffer.length * 2))];
+				System.arraycopy(buffer, 0, larger, 0, length);
+				buffer = larger;
+			}
+			System.arraycopy(frame, dataOffset, buffer, length, dataLength);
+			length += dataLength;
+			nextIndex++;
+
+			if (nextIndex == count) {
+				reassembled++;
+				try {
+					downstream.onFrame(buffer, 0, length);
+				} finally {
+					discard();
+				}
+			}
+		}
+
+		private boolean begin(int id, int total) {
+			long now = System.nanoTime();
+			if (now - lastSweep > timeoutNanos / 4) {
+				sweep(now);
+			}
+			byte[] pooled = take();
+			if (pooled == null) {
+				sweep(now);
+				pooled = take();
+				if (pooled == null) {
+					poolExhausted++;
+					return false;
+				}
+			}
+			buffer = pooled;
+			length = 0;
+			messageId = id;
+			nextIndex = 0;
+			count = total;
+			started = now;
+			active.add(this);
+			return true;
+		}
+
+		/* Drops any message in progress and returns its buffer */
+		private void discard() {
+			if (buffer != null) {
+				give(buffer);
+				buffer = null;
+				length = 0;
+				active.remove(this);
+			}
+		}
+	}
+
+	private final int maxBuffers;
+	private final int maxMessageSize;
+	private final int initialBufferSize;
+	private final long timeoutNanos;
+
+	private final List<byte[]> free = new ArrayList<byte[]>();
+	private final LinkedList<Stream> active = new LinkedList<Stream>();
+	private int allocated;
+	private long lastSweep = System.nanoTime();
+
+	private long fragments;
+	private long reassembled;
+	private long incomplete;
+	private long timedOut;
+	private long tooLarge;
+	private long poolExhausted;
+
+	/**
+	 * @param maxBuffers
+	 *            most messages being reassembled at once.
+	 * @param maxMessageSize
+	 *            largest payload accepted, in bytes.
+	 * @param timeoutMillis
+	 *            how long a message may take to complete.
+	 */
+	public NormReassembler(int maxBuffers, int maxMessageSize,
+			long timeoutMillis) {
+		if (maxBuffers < 1 || maxMessageSize < 1 || timeoutMillis < 1) {
+			throw new IllegalArgumentException(
+					"maxBuffers, maxMessageSize and timeoutMillis must be positive");
+		}
+		this.maxBuffers = maxBuffers;
+		this.maxMessageSize = maxMessageSize;
+		this.initialBufferSize = Math.min(maxMessageSize, 16 * 1024);
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * @return the handler to pass to the stream's decoder.
+	 */
+	public Stream open(NormFrameDecoder.FrameHandler downstream) {
+		return new Stream(downstream);
+	}
+
+	/**
+	 * Drops the stream's message in progress, if any.
+	 *
+	 * @return true if a partial message was dropped.
+	 */
+	public boolean close(Stream stream) {
+		if (stream.buffer == null) {
+			return false;
+		}
+		incomplete++;
+		stream.discard();
+		return true;
+	}
+
+	/* Times out messages that have taken too long */
+	private void sweep(long now) {
+		lastSweep = now;
+		while (!active.isEmpty()
+				&& now - active.getFirst().started > timeoutNanos) {
+			timedOut++;
+			active.getFirst().discard();
+		}
+	}
+
+	private byte[] take() {
+		if (!free.isEmpty()) {
+			return free.remove(free.size() - 1);
+		}
+		if (allocated < maxBuffers) {
+			allocated++;
+			return new byte[initialBufferSize];
+		}
+		return null;
+	}
+
+	private void give(byte[] buffer) {
+		free.add(buffer);
+	}
+
+	public long getFragments() {
+		return fragments;
+	}
+
+	public long getReassembled() {
+		return reassembled;
+	}
+
+	public long getIncomplete() {
+		return incomplete;
+	}
+
+	public long getTimedOut() {
+		return timedOut;
+	}
+
+	public long getTooLarge() {
+		return tooLarge;
+	}
+
+	public long getPoolExhausted() {
+		return poolExhausted;
+	}
+
+	public int getActive() {
+		return active.size();
+	}
+}
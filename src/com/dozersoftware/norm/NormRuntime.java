@@ -0,0 +1,468 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mil.navy.nrl.norm.NormData;
+import mil.navy.nrl.norm.NormEvent;
+import mil.navy.nrl.norm.NormFile;
+import mil.navy.nrl.norm.NormInstance;
+import mil.navy.nrl.norm.NormNode;
+import mil.navy.nrl.norm.NormObject;
+import mil.navy.nrl.norm.NormSession;
+import mil.navy.nrl.norm.NormStream;
+import mil.navy.nrl.norm.enums.NormEventType;
+import mil.navy.nrl.norm.enums.NormFlushMode;
+import mil.navy.nrl.norm.enums.NormObjectType;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The NormInstance shared by the gateway listener and the processor of a
+ * deployment, and the {@link NormTransport} over the NORM binding.
+ * <p/>
+ * Both {@link #acquire(String)} the runtime and {@link #release()} it when
+ * they are done; the instance is created by the first caller and destroyed
+ * with the last reference. Sessions are shared the same way, one per
+ * multicast group, so the listener receives and the processor sends on the
+ * same NormSession without any port reuse.
+ * <p/>
+ * A single thread drains the instance. Transmit side events are passed to
+ * the session's sender handler and receive side events to its receiver
+ * handler. Receive events raised by our own node are dropped on the node id
+ * before any handler sees them, so what the processor sends never comes back
+ * in through the listener.
+ */
+public class NormRuntime implements NormTransport {
+
+	private static Logger logger = Logger.getLogger(NormRuntime.class);
+
+	/**
+	 * {@link NormTransport.Session} over a NormSession. Used by the runtime
+	 * for its shared sessions; closing one created directly destroys the
+	 * session.
+	 */
+	public static class SessionBinding implements NormTransport.Session {
+		final NormSession session;
+		final long localNodeId;
+		volatile EventHandler sender;
+		volatile EventHandler receiver;
+
+		/*
+		 * Direct buffers handed to dataEnqueue(), kept until NORM purges the
+		 * object. Guarded by itself.
+		 */
+		private final Map<NormObject, ByteBuffer> txData = new HashMap<NormObject, ByteBuffer>();
+
+		public SessionBinding(NormSession session) {
+			this.session = session;
+			this.localNodeId = session.getLocalNodeId();
+		}
+
+		public long getLocalNodeId() {
+			return localNodeId;
+		}
+
+		public void setSender(EventHandler handler) {
+			sender = handler;
+		}
+
+		public void setReceiver(EventHandler handler) {
+			receiver = handler;
+		}
+
+		public void startReceiver(NormSessionConfig config) throws IOException {
+			config.startReceiver(session);
+		}
+
+		public void stopReceiver() {
+			session.stopReceiver();
+		}
+
+		public void startSender(NormSessionConfig config, int sessionId)
+				throws IOException {
+			config.startSender(session, sessionId);
+		}
+
+		public void stopSender() {
+			session.stopSender();
+			synchronized (txData) {
+				txData.clear();
+			}
+		}
+
+		public NormTransport.Stream openStream(long bufferSize)
+				throws IOException {
+			return new StreamBinding(session.streamOpen(bufferSize));
+		}
+
+		public void enqueueFile(String path, byte[] info) throws IOException {
+			session.fileEnqueue(path, info, 0, info.length);
+		}
+
+		public void enqueueData(byte[] data, int offset, int length,
+				byte[] info) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+			buffer.put(data, offset, length);
+			synchronized (txData) {
+				NormObject object = session.dataEnqueue(buffer, 0, length,
+						info, 0, info.length);
+				txData.put(object, buffer);
+			}
+		}
+
+		public void setWatermark(NormTransport.Stream stream)
+				throws IOException {
+			session.setWatermark(((StreamBinding) stream).stream);
+		}
+
+		public void close() {
+			session.destroySession();
+		}
+
+		/* Lets go of the buffer of a purged data object */
+		void purged(NormObject object) {
+			synchronized (txData) {
+				if (!txData.isEmpty()) {
+					txData.remove(object);
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@link NormTransport.Stream} over a NormStream.
+	 */
+	public static class StreamBinding implements NormTransport.Stream {
+		final NormStream stream;
+
+		public StreamBinding(NormStream stream) {
+			this.stream = stream;
+		}
+
+		public int write(byte[] buffer, int offset, int length) {
+			return stream.write(buffer, offset, length);
+		}
+
+		public void flush(boolean eom, NormFlushMode mode) {
+			stream.flush(eom, mode);
+		}
+
+		public void markEom() {
+			stream.markEom();
+		}
+
+		public void close() {
+			stream.close();
+		}
+	}
+
+	/* A received NormObject, equal to any other wrapper of the same object */
+	private static final class ReceivedBinding implements
+			NormTransport.Received {
+		private final NormObject object;
+
+		ReceivedBinding(NormObject object) {
+			this.object = object;
+		}
+
+		public NormObjectType getType() {
+			return object.getType();
+		}
+
+		public byte[] getInfo() {
+			return object.getInfo();
+		}
+
+		public long getSize() {
+			return object.getSize();
+		}
+
+		public NormFrameDecoder.Source getStream() {
+			return new NormFrameDecoder.StreamSource((NormStream) object);
+		}
+
+		public String getFileName() throws IOException {
+			return ((NormFile) object).getName();
+		}
+
+		public byte[] getData() {
+			return ((NormData) object).getData();
+		}
+
+		public int hashCode() {
+			return object.hashCode();
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof ReceivedBinding
+					&& object.equals(((ReceivedBinding) other).object);
+		}
+	}
+
+	private static final class EventBinding implements NormTransport.Event {
+		private final NormEvent event;
+		private final NormEventType type;
+		private final long nodeId;
+		private final boolean received;
+
+		EventBinding(NormEvent event, long nodeId, boolean received) {
+			this.event = event;
+			this.type = event.getType();
+			this.nodeId = nodeId;
+			this.received = received;
+		}
+
+		public NormEventType getType() {
+			return type;
+		}
+
+		public long getNodeId() {
+			return nodeId;
+		}
+
+		public NormTransport.Received getObject() {
+			if (!received) {
+				return null;
+			}
+			NormObject object = event.getObject();
+			return object == null ? null : new ReceivedBinding(object);
+		}
+	}
+
+	/* A session and whoever is sending and receiving on it */
+	private final class SharedSession extends SessionBinding {
+		final String key;
+		int references;
+
+		SharedSession(String key, NormSession session) {
+			super(session);
+			this.key = key;
+		}
+
+		public void close() {
+			closeSession(this);
+		}
+	}
+
+	private static NormRuntime runtime;
+
+	private final NormInstance instance;
+	private final Thread eventThread;
+	private int references;
+
+	/* Guarded by this */
+	private final Map<String, SharedSession> sessionsByKey = new HashMap<String, SharedSession>();
+	/* Copied on write so the event thread can read it without locking */
+	private volatile Map<NormSession, SharedSession> sessions = new HashMap<NormSession, SharedSession>();
+
+	private final AtomicLong events = new AtomicLong();
+	private final AtomicLong ownEvents = new AtomicLong();
+	private final AtomicLong unhandledEvents = new AtomicLong();
+
+	/**
+	 * Returns the deployment's runtime, creating it on first use. The cache
+	 * directory only takes effect when the runtime is created.
+	 */
+	public static synchronized NormRuntime acquire(String cacheDirectory)
+			throws IOException {
+		if (runtime == null) {
+			runtime = new NormRuntime(cacheDirectory);
+		}
+		runtime.references++;
+		return runtime;
+	}
+
+	private NormRuntime(String cacheDirectory) throws IOException {
+		instance = new NormInstance();
+		instance.setCacheDirectory(cacheDirectory);
+
+		eventThread = new Thread(new Runnable() {
+			public void run() {
+				processEvents();
+			}
+		}, "NORM events");
+		eventThread.setDaemon(true);
+		eventThread.start();
+	}
+
+	/**
+	 * Drops a reference taken by {@link #acquire(String)}. The last one
+	 * stops the event thread and destroys the instance.
+	 */
+	public void release() {
+		synchronized (NormRuntime.class) {
+			if (--references > 0) {
+				return;
+			}
+			runtime = null;
+		}
+
+		instance.stopInstance();
+		try {
+			eventThread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		instance.destroyInstance();
+
+		if (logger.isInfoEnabled()) {
+			logger.info("NORM: Runtime stopped. events=" + events.get()
+					+ " own=" + ownEvents.get() + " unhandled="
+					+ unhandledEvents.get());
+		}
+	}
+
+	public synchronized NormTransport.Session openSession(String address,
+			int port) throws IOException {
+		String key = address + ":" + port;
+		SharedSession shared = sessionsByKey.get(key);
+		if (shared == null) {
+			shared = new SharedSession(key, instance.createSession(address,
+					port, NormNode.NORM_NODE_ANY));
+			sessionsByKey.put(key, shared);
+
+			Map<NormSession, SharedSession> copy = new HashMap<NormSession, SharedSession>(
+					sessions);
+			copy.put(shared.session, shared);
+			sessions = copy;
+		}
+		shared.references++;
+		return shared;
+	}
+
+	/* The session is destroyed with the last reference */
+	private synchronized void closeSession(SharedSession shared) {
+		if (shared.references == 0 || --shared.references > 0) {
+			return;
+		}
+		sessionsByKey.remove(shared.key);
+
+		Map<NormSession, SharedSession> copy = new HashMap<NormSession, SharedSession>(
+				sessions);
+		copy.remove(shared.session);
+		sessions = copy;
+
+		shared.session.destroySession();
+	}
+
+	private void processEvents() {
+		NormMetrics metrics = NormMetrics.getInstance();
+		NormEventType[] types = NormEventType.values();
+		NormMetrics.Counter[] eventCounters = new NormMetrics.Counter[types.length];
+		for (int i = 0; i < types.length; i++) {
+			eventCounters[i] = metrics.counter("norm_events_total{type=\""
+					+ types[i] + "\"}", "NORM events by type");
+		}
+		try {
+			NormEvent event;
+			while ((event = instance.getNextEvent()) != null) {
+				events.incrementAndGet();
+				eventCounters[event.getType().ordinal()].increment();
+				dispatch(event);
+			}
+		} catch (IOException e) {
+			logger.error("NORM: Event loop stopped", e);
+		}
+	}
+
+	private void dispatch(NormEvent event) {
+		SharedSession shared = sessions.get(event.getSession());
+		if (shared == null) {
+			unhandledEvents.incrementAndGet();
+			return;
+		}
+
+		EventHandler handler;
+		long nodeId = 0;
+		boolean received = false;
+		switch (event.getType()) {
+		case NORM_TX_OBJECT_PURGED:
+			shared.purged(event.getObject());
+			handler = shared.sender;
+			break;
+
+		case NORM_TX_QUEUE_VACANCY:
+		case NORM_TX_QUEUE_EMPTY:
+		case NORM_TX_FLUSH_COMPLETED:
+		case NORM_TX_WATERMARK_COMPLETED:
+		case NORM_TX_CMD_SENT:
+		case NORM_TX_OBJECT_SENT:
+		case NORM_TX_RATE_CHANGED:
+		case NORM_LOCAL_SENDER_CLOSED:
+		case NORM_CC_ACTIVE:
+		case NORM_CC_INACTIVE:
+		case NORM_GRTT_UPDATED:
+			handler = shared.sender;
+			break;
+
+		case NORM_REMOTE_SENDER_NEW:
+		case NORM_REMOTE_SENDER_ACTIVE:
+		case NORM_REMOTE_SENDER_INACTIVE:
+		case NORM_REMOTE_SENDER_PURGED:
+		case NORM_RX_CMD_NEW:
+		case NORM_RX_OBJECT_NEW:
+		case NORM_RX_OBJECT_INFO:
+		case NORM_RX_OBJECT_UPDATED:
+		case NORM_RX_OBJECT_COMPLETED:
+		case NORM_RX_OBJECT_ABORTED:
+			NormNode node = event.getNode();
+			if (node != null) {
+				nodeId = node.getId();
+				if (nodeId == shared.localNodeId) {
+					ownEvents.incrementAndGet();
+					return;
+				}
+			}
+			handler = shared.receiver;
+			received = true;
+			break;
+
+		default:
+			handler = null;
+		}
+
+		if (handler == null) {
+			unhandledEvents.incrementAndGet();
+			return;
+		}
+		handler.onNormEvent(new EventBinding(event, nodeId, received));
+	}
+
+	public long getEvents() {
+		return events.get();
+	}
+
+	public long getOwnEvents() {
+		return ownEvents.get();
+	}
+
+	public long getUnhandledEvents() {
+		return unhandledEvents.get();
+	}
+}
@@ -0,0 +1,446 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import mil.navy.nrl.norm.enums.NormEventType;
+import mil.navy.nrl.norm.enums.NormFlushMode;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Single writer for a NORM transmit stream.
+ * <p/>
+ * Any number of threads hand framed bytes to {@link #send}, which puts them
+ * on a lock-free queue. One writer thread owns the stream: it
+ * does every write and flush, waits for NORM_TX_QUEUE_VACANCY when the
+ * transmit buffer is full and sets a watermark on close so queued data is
+ * sent before the stream goes away. NORM events reach the writer through
+ * {@link #onEvent(NormEventType)}, called from the transport's event
+ * thread.
+ * <p/>
+ * Files and byte arrays can be queued as NORM file and data objects with
+ * {@link #sendFile} and {@link #sendData}. They are enqueued on the session
+ * by the same thread, in order with the stream writes.
+ * <p/>
+ * The number of queued requests is bounded; once the bound is reached
+ * {@link #send} blocks, which is what slows down the norm_out listener when
+ * the network can't keep up.
+ */
+public class NormSender implements Runnable {
+
+	private static Logger logger = Logger.getLogger(NormSender.class);
+
+	/**
+	 * Framed bytes waiting to be written, or an object waiting to be
+	 * enqueued. Completes once the bytes have been accepted by the NORM
+	 * stream or the object by the session.
+	 */
+	public static final class TxRequest {
+		final byte[] data;
+		final int start;
+		final int end;
+		final boolean endOfMessage;
+		/* Set for file and data objects only */
+		final String path;
+		final byte[] info;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile boolean written;
+
+		TxRequest(byte[] data, int offset, int length, boolean endOfMessage) {
+			this(data, offset, length, endOfMessage, null, null);
+		}
+
+		TxRequest(byte[] data, int offset, int length, boolean endOfMessage,
+				String path, byte[] info) {
+			this.data = data;
+			this.start = offset;
+			this.end = offset + length;
+			this.endOfMessage = endOfMessage;
+			this.path = path;
+			this.info = info;
+		}
+
+		boolean isObject() {
+			return info != null;
+		}
+
+		void complete(boolean written) {
+			this.written = written;
+			done.countDown();
+		}
+
+		boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		/**
+		 * @return true if the frames reached the stream within the timeout.
+		 */
+		public boolean await(long timeout, TimeUnit unit)
+				throws InterruptedException {
+			return done.await(timeout, unit) && written;
+		}
+	}
+
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(100);
+
+	private final NormTransport.Session session;
+	private final NormTransport.Stream stream;
+	private final NormProcessor.FlushPolicy flushPolicy;
+	private final int flushSize;
+	private final long flushLingerNanos;
+
+	private final ConcurrentLinkedQueue<TxRequest> queue = new ConcurrentLinkedQueue<TxRequest>();
+	private final Semaphore capacity;
+	private final int maxPending;
+
+	private volatile Thread writer;
+	private volatile boolean vacancy = true;
+	private volatile boolean watermarkCompleted;
+	private volatile boolean closing;
+
+	/* Writer thread only */
+	private TxRequest current;
+	private int currentOffset;
+	private int unflushed;
+	private long unflushedSince;
+
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong objectsSent = new AtomicLong();
+	private final AtomicLong objectsFailed = new AtomicLong();
+
+	private final NormLogging.Summary bufferFullWarnings = new NormLogging.Summary(
+			logger, "writes found the NORM stream buffer full",
+			NormLogging.SUMMARY_MILLIS);
+
+	private static final NormMetrics.Counter BYTES_OUT = NormMetrics
+			.getInstance().counter("norm_tx_bytes_total",
+					"Bytes handed to NORM for sending");
+	private static final NormMetrics.Counter TX_BUFFER_FULL = NormMetrics
+			.getInstance().counter("norm_tx_buffer_full_total",
+					"Writes that found the NORM stream buffer full");
+	private static final NormMetrics.Histogram STALLS = NormMetrics
+			.getInstance().histogram("norm_tx_queue_stall_seconds",
+					"Time callers waited for room in the sender queue");
+
+	public NormSender(NormTransport.Session session,
+			NormTransport.Stream stream,
+			NormProcessor.FlushPolicy flushPolicy, int flushSize,
+			long flushLingerMillis, int maxPending) {
+		this.session = session;
+		this.stream = stream;
+		this.flushPolicy = flushPolicy;
+		this.flushSize = flushSize;
+		this.flushLingerNanos = TimeUnit.MILLISECONDS
+				.toNanos(flushLingerMillis);
+		this.maxPending = maxPending;
+		this.capacity = new Semaphore(maxPending);
+	}
+
+	public void start() {
+		Thread thread = new Thread(this, "NORM sender");
+		thread.setDaemon(true);
+		writer = thread;
+		thread.start();
+	}
+
+	/**
+	 * Queues framed bytes for the writer thread. The array must not be
+	 * changed afterwards. Blocks while the queue is full.
+	 */
+	public TxRequest send(byte[] frames, int offset, int length,
+			boolean endOfMessage) throws InterruptedException {
+		return enqueue(new TxRequest(frames, offset, length, endOfMessage));
+	}
+
+	/**
+	 * Queues a file to be sent as a NORM file object. The info, by normFileSend
+	 * convention the file name, is sent with it.
+	 */
+	public TxRequest sendFile(String path, byte[] info)
+			throws InterruptedException {
+		return enqueue(new TxRequest(null, 0, 0, true, path, info));
+	}
+
+	/**
+	 * Queues bytes to be sent as a NORM data object. The array must not be
+	 * changed afterwards.
+	 */
+	public TxRequest sendData(byte[] data, int offset, int length, byte[] info)
+			throws InterruptedException {
+		return enqueue(new TxRequest(data, offset, length, true, null, info));
+	}
+
+	private TxRequest enqueue(TxRequest request) throws InterruptedException {
+		if (closing) {
+			throw new IllegalStateException("NORM sender is closed");
+		}
+		if (!capacity.tryAcquire()) {
+			long stallStart = System.nanoTime();
+			try {
+				capacity.acquire();
+			} finally {
+				STALLS.recordSince(stallStart);
+			}
+		}
+		queue.offer(request);
+		if (closing && queue.remove(request)) {
+			// close() started after the check above, and the writer may have
+			// failed what was queued already; it would never see this one
+			capacity.release();
+			throw new IllegalStateException("NORM sender is closed");
+		}
+		LockSupport.unpark(writer);
+		return request;
+	}
+
+	/**
+	 * Passes a transmit event from the transport to the writer.
+	 */
+	public void onEvent(NormTransport.Event event) {
+		onEvent(event.getType());
+	}
+
+	/**
+	 * Passes a transmit event type from the transport to the writer.
+	 */
+	public void onEvent(NormEventType type) {
+		switch (type) {
+		case NORM_TX_QUEUE_VACANCY:
+		case NORM_TX_QUEUE_EMPTY:
+			vacancy = true;
+			LockSupport.unpark(writer);
+			break;
+		case NORM_TX_WATERMARK_COMPLETED:
+			watermarkCompleted = true;
+			LockSupport.unpark(writer);
+			break;
+		case NORM_TX_FLUSH_COMPLETED:
+			flushes.incrementAndGet();
+			break;
+		case NORM_TX_OBJECT_SENT:
+			objectsSent.incrementAndGet();
+			break;
+		}
+	}
+
+	/**
+	 * Stops accepting frames, writes what is queued, flushes and waits for
+	 * the watermark before closing the stream. Once the writer ends every
+	 * request has completed, failed if it was not written; send() throws
+	 * IllegalStateException from the moment close() is called.
+	 *
+	 * @return false if the writer didn't finish within the timeout.
+	 */
+	public boolean close(long timeoutMillis) throws InterruptedException {
+		closing = true;
+		Thread thread = writer;
+		LockSupport.unpark(thread);
+		thread.join(timeoutMillis);
+		if (thread.isAlive()) {
+			thread.interrupt();
+			thread.join(timeoutMillis);
+			return false;
+		}
+		return true;
+	}
+
+	public void run() {
+		boolean interrupted = false;
+		while (true) {
+			writeQueued();
+			if (closing && current == null && queue.isEmpty()) {
+				break;
+			}
+
+			long park = IDLE_PARK_NANOS;
+			if (unflushed > 0) {
+				long age = System.nanoTime() - unflushedSince;
+				if (age >= flushLingerNanos) {
+					flush();
+				} else {
+					park = Math.min(park, flushLingerNanos - age);
+				}
+			}
+
+			if (vacancy && (current != null || !queue.isEmpty())) {
+				continue;
+			}
+			LockSupport.parkNanos(this, park);
+			if (Thread.interrupted()) {
+				// close() gave up waiting for NORM
+				interrupted = true;
+				break;
+			}
+		}
+
+		abandonQueued();
+		flush();
+		if (!interrupted) {
+			try {
+				session.setWatermark(stream);
+				long deadline = System.nanoTime()
+						+ TimeUnit.SECONDS.toNanos(5);
+				while (!watermarkCompleted && System.nanoTime() < deadline
+						&& !Thread.currentThread().isInterrupted()) {
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+			} catch (IOException e) {
+				logger.warn("NORM OUT: Failed to set watermark: " + e);
+			}
+		}
+		stream.close();
+	}
+
+	/* Writes queued requests until the stream is full or the queue empty */
+	private void writeQueued() {
+		while (vacancy) {
+			if (current == null) {
+				current = queue.poll();
+				if (current == null) {
+					return;
+				}
+				currentOffset = current.start;
+				if (current.isObject()) {
+					enqueueObject(current);
+					current = null;
+					continue;
+				}
+			}
+			int length = current.end - currentOffset;
+			vacancy = false;
+			int written = stream.write(current.data, currentOffset, length);
+			BYTES_OUT.add(written);
+			if (written < length) {
+				// Wait for NORM_TX_QUEUE_VACANCY, the rest must follow next
+				if (currentOffset == current.start) {
+					TX_BUFFER_FULL.increment();
+					bufferFullWarnings.record();
+				}
+				currentOffset += written;
+				return;
+			}
+			vacancy = true;
+			written(current);
+			current = null;
+		}
+	}
+
+	/* Hands a file or data object to the session */
+	private void enqueueObject(TxRequest request) {
+		boolean enqueued = false;
+		try {
+			if (request.path != null) {
+				session.enqueueFile(request.path, request.info);
+				BYTES_OUT.add(new File(request.path).length());
+			} else {
+				int length = request.end - request.start;
+				session.enqueueData(request.data, request.start, length,
+						request.info);
+				BYTES_OUT.add(length);
+			}
+			enqueued = true;
+		} catch (IOException e) {
+			objectsFailed.incrementAndGet();
+			logger.warn("NORM OUT: Failed to enqueue "
+					+ (request.path != null ? request.path : "data object")
+					+ ": " + e);
+		}
+		capacity.release();
+		request.complete(enqueued);
+	}
+
+	/* Fails whatever could not be written before close() gave up */
+	private void abandonQueued() {
+		int abandoned = 0;
+		if (current != null) {
+			capacity.release();
+			current.complete(false);
+			current = null;
+			abandoned++;
+		}
+		TxRequest request;
+		while ((request = queue.poll()) != null) {
+			capacity.release();
+			request.complete(false);
+			abandoned++;
+		}
+		if (abandoned > 0) {
+			logger.warn("NORM OUT: Dropping " + abandoned + " pending frames");
+		}
+	}
+
+	private void written(TxRequest request) {
+		int length = request.end - request.start;
+		if (flushPolicy == NormProcessor.FlushPolicy.IMMEDIATE) {
+			stream.flush(true, NormFlushMode.NORM_FLUSH_PASSIVE);
+		} else {
+			// Keep the frame boundary visible to seekMsgStart() without
+			// pushing a partly filled segment on to the wire
+			stream.markEom();
+			if (unflushed == 0) {
+				unflushedSince = System.nanoTime();
+			}
+			unflushed += length;
+			if ((flushPolicy == NormProcessor.FlushPolicy.SIZE && unflushed >= flushSize)
+					|| (flushPolicy == NormProcessor.FlushPolicy.BATCH && request.endOfMessage)) {
+				flush();
+			}
+		}
+		capacity.release();
+		request.complete(true);
+	}
+
+	private void flush() {
+		if (unflushed > 0) {
+			stream.flush(false, NormFlushMode.NORM_FLUSH_PASSIVE);
+			unflushed = 0;
+		}
+	}
+
+	public int getPending() {
+		return maxPending - capacity.availablePermits();
+	}
+
+	public long getFlushesCompleted() {
+		return flushes.get();
+	}
+
+	public long getObjectsSent() {
+		return objectsSent.get();
+	}
+
+	public long getObjectsFailed() {
+		return objectsFailed.get();
+	}
+}
@@ -0,0 +1,276 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.io.IOException;
+
+import mil.navy.nrl.norm.NormSession;
+
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+
+/**
+ * NORM session tuning read from the listener or action configuration.
+ * <p/>
+ * Sample configuration (all optional, defaults shown):
+ * <pre>{@code
+ * <property name="cache-directory" value="/tmp/norm"/>
+ * <property name="rx-buffer-size" value="1048576"/>
+ * <property name="tx-buffer-size" value="1048576"/>
+ * <property name="stream-buffer-size" value="1048576"/>
+ * <property name="segment-size" value="1400"/>
+ * <property name="block-size" value="16"/>
+ * <property name="parity" value="4"/>
+ * <property name="auto-parity" value="0"/>
+ * <property name="tx-rate" value="<NORM default>"/>
+ * <property name="congestion-control" value="none"/>
+ * <property name="rx-socket-buffer" value="<OS default>"/>
+ * <property name="tx-socket-buffer" value="<OS default>"/>
+ * <property name="silent-receiver" value="false"/>
+ * <property name="silent-receiver-max-delay" value="-1"/>
+ * <property name="unicast-nack" value="false"/>
+ * <property name="transport" value="norm"/>
+ * <property name="memory-network" value="default"/>
+ * }</pre>
+ * <ul>
+ * <li><i>tx-rate</i>: fixed sender rate in bits per second, or the initial
+ * rate when congestion control is on.</li>
+ * <li><i>congestion-control</i>: 'none' for a fixed rate, 'cc' for NORM-CC
+ * or 'ecn' for NORM-CC using ECN marks.</li>
+ * <li><i>silent-receiver-max-delay</i>: maximum number of FEC blocks a
+ * silent receiver buffers before passing up partial data, -1 for NORM's
+ * default.</li>
+ * <li><i>transport</i>: 'norm' for the NORM library, or 'memory' for a
+ * {@link MemoryTransport} that never leaves the JVM, for load testing
+ * without the native library.</li>
+ * <li><i>memory-network</i>: name of the in-memory network to join, for
+ * the memory transport.</li>
+ * </ul>
+ */
+public class NormSessionConfig {
+
+	public static final String CACHE_DIRECTORY = "cache-directory";
+	public static final String RX_BUFFER_SIZE = "rx-buffer-size";
+	public static final String TX_BUFFER_SIZE = "tx-buffer-size";
+	public static final String STREAM_BUFFER_SIZE = "stream-buffer-size";
+	public static final String SEGMENT_SIZE = "segment-size";
+	public static final String BLOCK_SIZE = "block-size";
+	public static final String PARITY = "parity";
+	public static final String AUTO_PARITY = "auto-parity";
+	public static final String TX_RATE = "tx-rate";
+	public static final String CONGESTION_CONTROL = "congestion-control";
+	public static final String RX_SOCKET_BUFFER = "rx-socket-buffer";
+	public static final String TX_SOCKET_BUFFER = "tx-socket-buffer";
+	public static final String SILENT_RECEIVER = "silent-receiver";
+	public static final String SILENT_RECEIVER_MAX_DELAY = "silent-receiver-max-delay";
+	public static final String UNICAST_NACK = "unicast-nack";
+	public static final String TRANSPORT = "transport";
+	public static final String MEMORY_NETWORK = "memory-network";
+
+	public enum CongestionControl {
+		NONE, CC, ECN
+	}
+
+	public enum Transport {
+		NORM, MEMORY
+	}
+
+	private final String cacheDirectory;
+	private final long rxBufferSize;
+	private final long txBufferSize;
+	private final long streamBufferSize;
+	private final int segmentSize;
+	private final int blockSize;
+	private final int parity;
+	private final int autoParity;
+	private final double txRate;
+	private final CongestionControl congestionControl;
+	private final long rxSocketBuffer;
+	private final long txSocketBuffer;
+	private final boolean silentReceiver;
+	private final int silentReceiverMaxDelay;
+	private final boolean unicastNack;
+	private final Transport transport;
+	private final String memoryNetwork;
+
+	public NormSessionConfig(ConfigTree config) throws ConfigurationException {
+		cacheDirectory = config.getAttribute(CACHE_DIRECTORY, "/tmp/norm");
+		rxBufferSize = getLong(config, RX_BUFFER_SIZE, 1024 * 1024);
+		txBufferSize = getLong(config, TX_BUFFER_SIZE, 1024 * 1024);
+		streamBufferSize = getLong(config, STREAM_BUFFER_SIZE, txBufferSize);
+		segmentSize = (int) getLong(config, SEGMENT_SIZE, 1400);
+		blockSize = (int) getLong(config, BLOCK_SIZE, 16);
+		parity = (int) getLong(config, PARITY, 4);
+		autoParity = (int) getLong(config, AUTO_PARITY, 0);
+		rxSocketBuffer = getLong(config, RX_SOCKET_BUFFER, 0);
+		txSocketBuffer = getLong(config, TX_SOCKET_BUFFER, 0);
+		silentReceiver = Boolean.parseBoolean(config.getAttribute(
+				SILENT_RECEIVER, "false"));
+		silentReceiverMaxDelay = (int) getLong(config,
+				SILENT_RECEIVER_MAX_DELAY, -1);
+		unicastNack = Boolean.parseBoolean(config.getAttribute(UNICAST_NACK,
+				"false"));
+
+		String rate = config.getAttribute(TX_RATE);
+		try {
+			txRate = rate == null ? 0 : Double.parseDouble(rate.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '" + TX_RATE
+					+ "' value: " + rate, e);
+		}
+
+		String transportName = config.getAttribute(TRANSPORT, "norm");
+		try {
+			transport = Transport.valueOf(transportName.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationException("Invalid '" + TRANSPORT
+					+ "' value: " + transportName, e);
+		}
+		memoryNetwork = config.getAttribute(MEMORY_NETWORK,
+				MemoryTransport.DEFAULT_NETWORK);
+
+		String cc = config.getAttribute(CONGESTION_CONTROL, "none");
+		try {
+			congestionControl = CongestionControl.valueOf(cc.trim()
+					.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationException("Invalid '" + CONGESTION_CONTROL
+					+ "' value: " + cc, e);
+		}
+
+		if (rxBufferSize < 1 || txBufferSize < 1 || streamBufferSize < 1
+				|| segmentSize < 1 || blockSize < 1 || parity < 0
+				|| blockSize + parity > 255 || autoParity < 0
+				|| autoParity > parity || txRate < 0) {
+			throw new ConfigurationException(
+					"Invalid NORM session settings: buffer, segment and block sizes must be positive, "
+							+ "block-size + parity at most 255 and auto-parity at most parity");
+		}
+	}
+
+	private static long getLong(ConfigTree config, String name,
+			long defaultValue) throws ConfigurationException {
+		String value = config.getAttribute(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid '" + name + "' value: "
+					+ value, e);
+		}
+	}
+
+	/**
+	 * Acquires the configured transport. The caller releases it when done.
+	 */
+	public NormTransport acquireTransport() throws IOException {
+		if (transport == Transport.MEMORY) {
+			return MemoryTransport.acquire(memoryNetwork);
+		}
+		return NormRuntime.acquire(cacheDirectory);
+	}
+
+	/**
+	 * Applies the receive settings and starts the receiver.
+	 */
+	public void startReceiver(NormSession session) throws IOException {
+		if (rxSocketBuffer > 0) {
+			session.setRxSocketBuffer(rxSocketBuffer);
+		}
+		if (silentReceiver) {
+			session.setSilentReceiver(true, silentReceiverMaxDelay);
+		}
+		session.setDefaultUnicastNack(unicastNack);
+		session.startReceiver(rxBufferSize);
+	}
+
+	/**
+	 * Applies the send settings and starts the sender.
+	 */
+	public void startSender(NormSession session, int sessionId)
+			throws IOException {
+		if (txSocketBuffer > 0) {
+			session.setTxSocketBuffer(txSocketBuffer);
+		}
+		if (txRate > 0) {
+			session.setTxRate(txRate);
+		}
+		switch (congestionControl) {
+		case ECN:
+			session.setEcnSupport(true, false);
+			session.setCongestionControl(true, true);
+			break;
+		case CC:
+			session.setCongestionControl(true, true);
+			break;
+		case NONE:
+			break;
+		}
+		session.startSender(sessionId, txBufferSize, segmentSize, blockSize,
+				parity);
+		if (autoParity > 0) {
+			session.setAutoParity((byte) autoParity);
+		}
+	}
+
+	public String getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+	public long getRxBufferSize() {
+		return rxBufferSize;
+	}
+
+	public long getTxBufferSize() {
+		return txBufferSize;
+	}
+
+	public long getStreamBufferSize() {
+		return streamBufferSize;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getParity() {
+		return parity;
+	}
+
+	/**
+	 * @return the sender rate in bits per second, 0 for NORM's default.
+	 */
+	public double getTxRate() {
+		return txRate;
+	}
+
+	public Transport getTransport() {
+		return transport;
+	}
+}
@@ -0,0 +1,591 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log of records waiting to be delivered, kept in memory-mapped
+ * segment files so it survives a restart of the gateway.
+ * <p/>
+ * {@link #append} copies a record into the mapped segment being written and
+ * returns; it never waits for the disk. A commit thread forces the segments
+ * written since its last pass every commit interval, so one flush covers
+ * every record appended in between. A replay thread hands the records, in
+ * order, to a {@link Handler} and retries one it refuses after the retry
+ * interval. Segments are deleted once all their records are replayed.
+ * <p/>
+ * The replay position is saved in a checkpoint file on every commit. After
+ * a restart replay carries on from there, so records replayed since the
+ * last commit are delivered again. A record torn by a crash ends its
+ * segment.
+ * <p/>
+ * Each record is its length, the CRC-32 of its body and the body. The
+ * segments are named by sequence number, so they sort in the order they
+ * were written.
+ */
+public class NormSpool {
+
+	private static Logger logger = Logger.getLogger(NormSpool.class);
+
+	/**
+	 * Takes records back from the spool, on its replay thread.
+	 */
+	public interface Handler {
+		/**
+		 * @return true once the record is delivered, false to be given it
+		 *         again after the retry interval.
+		 */
+		boolean replay(byte[] buffer, int offset, int length);
+	}
+
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".spool";
+	private static final String CHECKPOINT = "checkpoint";
+
+	/* Length and checksum of the body */
+	private static final int HEADER_LENGTH = 8;
+	/* Segment sequence and offset of the next record to replay */
+	private static final int CHECKPOINT_LENGTH = 12;
+
+	/* A mapped segment file */
+	private static final class Segment {
+		final long sequence;
+		final File file;
+		final MappedByteBuffer buffer;
+		/* End of the last whole record, guarded by the spool */
+		int end;
+		/* Written since the last commit, guarded by the spool */
+		boolean dirty;
+
+		Segment(long sequence, File file, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final long maxBytes;
+	private final long commitMillis;
+	private final long retryMillis;
+	private final RandomAccessFile checkpoint;
+
+	/*
+	 * Guarded by this, oldest first. Replay reads the first segment and
+	 * appends go to the last.
+	 */
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private long nextSequence;
+	private long bytes;
+	private ByteBuffer writeView;
+	private final CRC32 checksum = new CRC32();
+	private Segment readSegment;
+	private ByteBuffer readView;
+	private int readOffset;
+	private boolean checkpointed = true;
+	private boolean closed;
+
+	/* Records appended and not yet replayed, written under the lock */
+	private volatile long backlog;
+	private long backlogBytes;
+
+	private long appended;
+	private long replayed;
+	private long dropped;
+	private long commits;
+
+	/* Only used on the replay thread */
+	private byte[] record = new byte[1024];
+
+	private Thread committer;
+	private Thread replayer;
+
+	/**
+	 * Opens the spool in the directory, creating it if need be, and recovers
+	 * the records left there unreplayed.
+	 *
+	 * @param segmentSize
+	 *            bytes in each segment file; a larger record gets a segment
+	 *            of its own size.
+	 * @param maxBytes
+	 *            most bytes of segment files; records that need another
+	 *            segment beyond that are refused.
+	 */
+	public NormSpool(File directory, int segmentSize, long maxBytes,
+			long commitMillis, long retryMillis) throws IOException {
+		if (segmentSize <= HEADER_LENGTH || maxBytes < segmentSize
+				|| commitMillis < 1 || retryMillis < 1) {
+			throw new IllegalArgumentException("Invalid spool limits");
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxBytes = maxBytes;
+		this.commitMillis = commitMillis;
+		this.retryMillis = retryMillis;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create spool directory " + directory);
+		}
+		checkpoint = new RandomAccessFile(new File(directory, CHECKPOINT),
+				"rw");
+		try {
+			recover();
+		} catch (IOException e) {
+			checkpoint.close();
+			throw e;
+		}
+	}
+
+	/* Maps the segments left by the last run, dropping those replayed */
+	private void recover() throws IOException {
+		long readSequence = -1;
+		int offset = 0;
+		if (checkpoint.length() >= CHECKPOINT_LENGTH) {
+			readSequence = checkpoint.readLong();
+			offset = checkpoint.readInt();
+		}
+
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && sequence(file) >= 0;
+			}
+		});
+		if (files == null) {
+			throw new IOException("Can't list spool directory " + directory);
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = sequence(a) - sequence(b);
+				return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+			}
+		});
+
+		for (File file : files) {
+			long sequence = sequence(file);
+			nextSequence = sequence + 1;
+			if (sequence < readSequence) {
+				delete(file);
+				continue;
+			}
+			Segment segment = map(file, sequence, file.length());
+			segment.end = scan(segment, sequence == readSequence ? offset : 0);
+			segments.add(segment);
+			bytes += segment.buffer.capacity();
+		}
+		// Never reuse the number of a segment the checkpoint has passed
+		nextSequence = Math.max(nextSequence, readSequence);
+
+		if (!segments.isEmpty()) {
+			Segment first = segments.getFirst();
+			if (first.sequence == readSequence) {
+				readOffset = Math.min(offset, first.end);
+			}
+			Segment last = segments.getLast();
+			writeView = last.buffer.duplicate();
+			writeView.position(last.end);
+		}
+		if (backlog > 0) {
+			logger.info("NORM: Recovered " + backlog + " spooled records ("
+					+ backlogBytes + " bytes) from " + directory);
+		}
+	}
+
+	/*
+	 * Finds the end of the whole records in a segment, counting those from
+	 * the offset on as backlog.
+	 */
+	private int scan(Segment segment, int from) {
+		ByteBuffer view = segment.buffer.duplicate();
+		int offset = 0;
+		byte[] body = new byte[1024];
+		while (offset + HEADER_LENGTH <= view.capacity()) {
+			int length = view.getInt(offset);
+			if (length < 1 || length > view.capacity() - offset - HEADER_LENGTH) {
+				break;
+			}
+			if (body.length < length) {
+				body = new byte[Math.max(length, body.length * 2)];
+			}
+			view.position(offset + HEADER_LENGTH);
+			view.get(body, 0, length);
+			checksum.reset();
+			checksum.update(body, 0, length);
+			if (view.getInt(offset + 4) != (int) checksum.getValue()) {
+				logger.warn("NORM: Spool segment " + segment.file
+						+ " ends with a torn record at " + offset);
+				break;
+			}
+			if (offset >= from) {
+				backlog++;
+				backlogBytes += HEADER_LENGTH + length;
+			}
+			offset += HEADER_LENGTH + length;
+		}
+		return offset;
+	}
+
+	/**
+	 * Starts the commit and replay threads.
+	 */
+	public synchronized void start(final Handler handler) {
+		committer = new Thread(new Runnable() {
+			public void run() {
+				while (awaitCommit()) {
+					commit();
+				}
+			}
+		}, "NORM spool commit " + directory.getName());
+		replayer = new Thread(new Runnable() {
+			public void run() {
+				replay(handler);
+			}
+		}, "NORM spool replay " + directory.getName());
+		committer.setDaemon(true);
+		replayer.setDaemon(true);
+		committer.start();
+		replayer.start();
+	}
+
+	/**
+	 * Adds a record to the end of the spool.
+	 *
+	 * @return false if the spool is closed or has no room for it.
+	 */
+	public boolean append(byte[] buffer, int offset, int length)
+			throws IOException {
+		if (length < 1) {
+			throw new IllegalArgumentException("Empty spool record");
+		}
+		int recordLength = HEADER_LENGTH + length;
+		synchronized (this) {
+			boolean full = writeView == null
+					|| writeView.remaining() < recordLength;
+			if (closed || (full && !roll(recordLength))) {
+				dropped++;
+				return false;
+			}
+			checksum.reset();
+			checksum.update(buffer, offset, length);
+			writeView.putInt(length);
+			writeView.putInt((int) checksum.getValue());
+			writeView.put(buffer, offset, length);
+			if (writeView.remaining() >= 4) {
+				// Marks the end for recovery over anything left in the file
+				writeView.putInt(writeView.position(), 0);
+			}
+			Segment tail = segments.getLast();
+			tail.end = writeView.position();
+			tail.dirty = true;
+			appended++;
+			backlog++;
+			backlogBytes += recordLength;
+			notifyAll();
+		}
+		return true;
+	}
+
+	/* Starts a new segment for the record, unless that would pass the limit */
+	private boolean roll(int recordLength) throws IOException {
+		int size = Math.max(segmentSize, recordLength + 4);
+		if (bytes + size > maxBytes) {
+			return false;
+		}
+		long sequence = nextSequence++;
+		Segment segment = map(new File(directory, PREFIX
+				+ String.format("%019d", Long.valueOf(sequence)) + SUFFIX),
+				sequence, size);
+		segments.add(segment);
+		bytes += size;
+		writeView = segment.buffer.duplicate();
+		return true;
+	}
+
+	/* Hands the records to the handler until the spool is closed */
+	private void replay(Handler handler) {
+		while (true) {
+			int length;
+			synchronized (this) {
+				length = next();
+			}
+			if (length < 0) {
+				return;
+			}
+			boolean delivered;
+			try {
+				delivered = handler.replay(record, 0, length);
+			} catch (RuntimeException e) {
+				logger.warn("NORM: Spooled record could not be replayed", e);
+				delivered = false;
+			}
+			synchronized (this) {
+				if (delivered) {
+					readOffset += HEADER_LENGTH + length;
+					checkpointed = false;
+					replayed++;
+					backlog--;
+					backlogBytes -= HEADER_LENGTH + length;
+				} else {
+					long deadline = System.currentTimeMillis() + retryMillis;
+					long remaining = retryMillis;
+					while (!closed && remaining > 0) {
+						try {
+							wait(remaining);
+						} catch (InterruptedException e) {
+							return;
+						}
+						remaining = deadline - System.currentTimeMillis();
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Copies the next record into the record buffer, waiting for one and
+	 * deleting the segments left behind. Returns its length, or -1 once the
+	 * spool is closed. Called with the lock held.
+	 */
+	private int next() {
+		while (!closed) {
+			if (!segments.isEmpty()) {
+				Segment head = segments.getFirst();
+				if (readOffset < head.end) {
+					if (readSegment != head) {
+						readSegment = head;
+						readView = head.buffer.duplicate();
+					}
+					int length = readView.getInt(readOffset);
+					if (record.length < length) {
+						record = new byte[Math.max(length, record.length * 2)];
+					}
+					readView.position(readOffset + HEADER_LENGTH);
+					readView.get(record, 0, length);
+					return length;
+				}
+				if (segments.size() > 1) {
+					segments.removeFirst();
+					bytes -= head.buffer.capacity();
+					readSegment = null;
+					readView = null;
+					readOffset = 0;
+					checkpointed = false;
+					delete(head.file);
+					continue;
+				}
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		return -1;
+	}
+
+	/* Waits out the commit interval, returning false once closed */
+	private synchronized boolean awaitCommit() {
+		long deadline = System.currentTimeMillis() + commitMillis;
+		long remaining = commitMillis;
+		while (!closed && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				return false;
+			}
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return !closed;
+	}
+
+	/*
+	 * Forces the segments written since the last commit, then saves the
+	 * replay position.
+	 */
+	private void commit() {
+		List<Segment> dirty = new ArrayList<Segment>(2);
+		long sequence;
+		int offset;
+		boolean save;
+		synchronized (this) {
+			for (Segment segment : segments) {
+				if (segment.dirty) {
+					segment.dirty = false;
+					dirty.add(segment);
+				}
+			}
+			if (segments.isEmpty()) {
+				sequence = nextSequence;
+				offset = 0;
+			} else {
+				sequence = segments.getFirst().sequence;
+				offset = readOffset;
+			}
+			save = !checkpointed;
+			checkpointed = true;
+			if (!dirty.isEmpty() || save) {
+				commits++;
+			}
+		}
+		for (Segment segment : dirty) {
+			segment.buffer.force();
+		}
+		if (save) {
+			try {
+				checkpoint.seek(0);
+				checkpoint.writeLong(sequence);
+				checkpoint.writeInt(offset);
+				checkpoint.getChannel().force(false);
+			} catch (IOException e) {
+				logger.warn("NORM: Can't save spool checkpoint in "
+						+ directory + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Stops replaying, commits what has been appended and closes the files.
+	 * The segments are kept for the next run.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		join(committer);
+		join(replayer);
+		commit();
+		try {
+			checkpoint.close();
+		} catch (IOException e) {
+			logger.warn("NORM: Can't close spool checkpoint: " + e);
+		}
+	}
+
+	private static void join(Thread thread) {
+		if (thread == null) {
+			return;
+		}
+		try {
+			// Replay may be stuck delivering; its record stays in the spool
+			thread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return true while records are waiting to be replayed, when anything
+	 *         new should be appended rather than delivered to keep the order.
+	 */
+	public boolean hasBacklog() {
+		return backlog > 0;
+	}
+
+	/**
+	 * @return the number of records waiting to be replayed.
+	 */
+	public long getBacklog() {
+		return backlog;
+	}
+
+	public synchronized long getBacklogBytes() {
+		return backlogBytes;
+	}
+
+	public synchronized long getAppended() {
+		return appended;
+	}
+
+	public synchronized long getReplayed() {
+		return replayed;
+	}
+
+	/**
+	 * @return the number of records refused for want of room.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	public synchronized long getCommits() {
+		return commits;
+	}
+
+	/* Sequence number of a segment file, -1 for any other file */
+	private static long sequence(File file) {
+		String name = file.getName();
+		if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name
+					.length()
+					- SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/* Maps a segment file read-write, extending it to the size */
+	private static Segment map(File file, long sequence, long size)
+			throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Too large to map: " + file);
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			return new Segment(sequence, file, raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void delete(File file) {
+		if (!file.delete()) {
+			logger.warn("NORM: Can't delete spool segment " + file);
+		}
+	}
+}
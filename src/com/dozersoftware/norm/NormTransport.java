@@ -0,0 +1,177 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import java.io.IOException;
+
+import mil.navy.nrl.norm.enums.NormEventType;
+import mil.navy.nrl.norm.enums.NormFlushMode;
+import mil.navy.nrl.norm.enums.NormObjectType;
+
+/**
+ * The parts of NORM the gateway uses: shared sessions, a transmit stream,
+ * file and data objects, and the events of each session.
+ * <p/>
+ * {@link NormRuntime} implements it over the NORM binding and its native
+ * library. {@link MemoryTransport} implements it in memory, so the listener,
+ * the processor and {@link NormLoadGenerator} can run without the library
+ * or multicast. The listener and the processor pick one through the
+ * transport property read by {@link NormSessionConfig}.
+ * <p/>
+ * Event types and object types are NORM's own enums. Events are delivered
+ * on a single thread per transport, as with NormInstance.getNextEvent().
+ */
+public interface NormTransport {
+
+	/**
+	 * Receives the events of one session, on the transport's event thread.
+	 */
+	interface EventHandler {
+		void onNormEvent(Event event);
+	}
+
+	/**
+	 * A NORM event, only valid for the duration of the handler call.
+	 */
+	interface Event {
+		NormEventType getType();
+
+		/**
+		 * @return the id of the remote node a receive event is about, 0 if
+		 *         there is none.
+		 */
+		long getNodeId();
+
+		/**
+		 * @return the received object a receive event is about, null for
+		 *         other events. The same object is returned for every event
+		 *         about it, or one that is equal to it.
+		 */
+		Received getObject();
+	}
+
+	/**
+	 * A stream, file or data object coming in from a remote sender.
+	 */
+	interface Received {
+		NormObjectType getType();
+
+		byte[] getInfo();
+
+		long getSize();
+
+		/**
+		 * @return what to read a stream object from.
+		 */
+		NormFrameDecoder.Source getStream();
+
+		/**
+		 * @return the path of a received file in the cache directory.
+		 */
+		String getFileName() throws IOException;
+
+		/**
+		 * @return the bytes of a data object.
+		 */
+		byte[] getData();
+	}
+
+	/**
+	 * One NORM session, shared by everyone who opens the same group.
+	 */
+	interface Session {
+		long getLocalNodeId();
+
+		/**
+		 * Sets the handler for transmit events, null to remove.
+		 */
+		void setSender(EventHandler handler);
+
+		/**
+		 * Sets the handler for receive events, null to remove. Events raised
+		 * by the local node are never passed to it.
+		 */
+		void setReceiver(EventHandler handler);
+
+		void startReceiver(NormSessionConfig config) throws IOException;
+
+		void stopReceiver();
+
+		void startSender(NormSessionConfig config, int sessionId)
+				throws IOException;
+
+		void stopSender();
+
+		Stream openStream(long bufferSize) throws IOException;
+
+		void enqueueFile(String path, byte[] info) throws IOException;
+
+		/**
+		 * Sends a copy of the bytes as a data object.
+		 */
+		void enqueueData(byte[] data, int offset, int length, byte[] info)
+				throws IOException;
+
+		/**
+		 * Asks for NORM_TX_WATERMARK_COMPLETED once everything written to the
+		 * stream so far has been sent.
+		 */
+		void setWatermark(Stream stream) throws IOException;
+
+		/**
+		 * Drops the reference taken by
+		 * {@link NormTransport#openSession(String, int)}. The sender or
+		 * receiver is stopped by the caller first.
+		 */
+		void close();
+	}
+
+	/**
+	 * The transmit side of a NORM stream.
+	 */
+	interface Stream {
+		/**
+		 * @return the number of bytes accepted, less than asked for when the
+		 *         stream buffer is full. NORM_TX_QUEUE_VACANCY follows once
+		 *         there is room again.
+		 */
+		int write(byte[] buffer, int offset, int length);
+
+		void flush(boolean eom, NormFlushMode mode);
+
+		void markEom();
+
+		void close();
+	}
+
+	/**
+	 * Returns the session for the group, creating it on first use. Each call
+	 * must be matched by {@link Session#close()}.
+	 */
+	Session openSession(String address, int port) throws IOException;
+
+	/**
+	 * Drops the reference to the transport taken when it was acquired.
+	 */
+	void release();
+}
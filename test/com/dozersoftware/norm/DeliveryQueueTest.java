@@ -0,0 +1,137 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class DeliveryQueueTest {
+
+	@Test
+	public void keepsArrivalOrderAcrossWrapAround() throws Exception {
+		DeliveryQueue<Integer> queue = new DeliveryQueue<Integer>(3,
+				DeliveryQueue.OverflowPolicy.BLOCK);
+		List<Integer> taken = new ArrayList<Integer>();
+		for (int i = 0; i < 10; i++) {
+			assertTrue(queue.offer(i));
+			taken.add(queue.poll(0, TimeUnit.MILLISECONDS));
+		}
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), taken);
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void dropOldestMakesRoomForTheNewItem() throws Exception {
+		DeliveryQueue<Integer> queue = new DeliveryQueue<Integer>(3,
+				DeliveryQueue.OverflowPolicy.DROP_OLDEST);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(queue.offer(i));
+		}
+		List<Integer> drained = new ArrayList<Integer>();
+		assertEquals(3, queue.drainTo(drained, 10));
+		assertEquals(Arrays.asList(2, 3, 4), drained);
+		assertEquals(2, queue.getDroppedOldest());
+		assertEquals(5, queue.getOffered());
+	}
+
+	@Test
+	public void dropNewestRefusesTheNewItem() throws Exception {
+		DeliveryQueue<Integer> queue = new DeliveryQueue<Integer>(2,
+				DeliveryQueue.OverflowPolicy.DROP_NEWEST);
+		assertTrue(queue.offer(0));
+		assertTrue(queue.offer(1));
+		assertFalse(queue.offer(2));
+		List<Integer> drained = new ArrayList<Integer>();
+		queue.drainTo(drained, 10);
+		assertEquals(Arrays.asList(0, 1), drained);
+		assertEquals(1, queue.getDroppedNewest());
+	}
+
+	@Test
+	public void blockWaitsForRoom() throws Exception {
+		final DeliveryQueue<Integer> queue = new DeliveryQueue<Integer>(1,
+				DeliveryQueue.OverflowPolicy.BLOCK);
+		queue.offer(0);
+		final CountDownLatch offered = new CountDownLatch(1);
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					queue.offer(1);
+					offered.countDown();
+				} catch (InterruptedException e) {
+					// Test failed, the latch stays up
+				}
+			}
+		});
+		producer.start();
+		assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+		assertEquals(Integer.valueOf(0), queue.poll(0, TimeUnit.MILLISECONDS));
+		assertTrue(offered.await(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(1), queue.poll(0, TimeUnit.MILLISECONDS));
+		assertEquals(1, queue.getBlocked());
+		producer.join();
+	}
+
+	@Test
+	public void drainToTakesAtMostMax() throws Exception {
+		DeliveryQueue<Integer> queue = new DeliveryQueue<Integer>(8,
+				DeliveryQueue.OverflowPolicy.BLOCK);
+		for (int i = 0; i < 5; i++) {
+			queue.offer(i);
+		}
+		List<Integer> drained = new ArrayList<Integer>();
+		assertEquals(2, queue.drainTo(drained, 2));
+		assertEquals(Arrays.asList(0, 1), drained);
+		assertEquals(3, queue.size());
+	}
+
+	@Test
+	public void pollTimesOutWhenEmpty() throws Exception {
+		DeliveryQueue<Integer> queue = new DeliveryQueue<Integer>(1,
+				DeliveryQueue.OverflowPolicy.BLOCK);
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void overflowPolicyNamesMatchTheConfiguration() {
+		assertEquals(DeliveryQueue.OverflowPolicy.DROP_OLDEST,
+				DeliveryQueue.OverflowPolicy.fromString(" drop-oldest"));
+		assertEquals(DeliveryQueue.OverflowPolicy.BLOCK,
+				DeliveryQueue.OverflowPolicy.fromString("block"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnEmptyQueue() {
+		new DeliveryQueue<Integer>(0, DeliveryQueue.OverflowPolicy.BLOCK);
+	}
+}
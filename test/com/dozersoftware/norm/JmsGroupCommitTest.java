@@ -0,0 +1,207 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.JMSException;
+
+import org.jboss.soa.esb.actions.ActionProcessingException;
+import org.junit.Test;
+
+public class JmsGroupCommitTest {
+
+	/* Records what each transaction held when it committed */
+	private static class RecordingTransaction implements
+			JmsGroupCommit.Transaction {
+		final List<Object> uncommitted = new ArrayList<Object>();
+		final List<Object> committed = Collections
+				.synchronizedList(new ArrayList<Object>());
+		final List<Integer> sizes = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		final AtomicInteger failCommits = new AtomicInteger();
+		int resets;
+		long commitMillis;
+
+		public void send(Object message) throws JMSException,
+				ActionProcessingException {
+			if ("refused".equals(message)) {
+				throw new ActionProcessingException("refused");
+			}
+			uncommitted.add(message);
+		}
+
+		public void commit() throws JMSException {
+			if (failCommits.getAndDecrement() > 0) {
+				throw new JMSException("commit failed");
+			}
+			if (commitMillis > 0) {
+				try {
+					Thread.sleep(commitMillis);
+				} catch (InterruptedException e) {
+					throw new JMSException("interrupted");
+				}
+			}
+			committed.addAll(uncommitted);
+			sizes.add(uncommitted.size());
+			uncommitted.clear();
+		}
+
+		public void reset() {
+			uncommitted.clear();
+			resets++;
+		}
+	}
+
+	@Test
+	public void aLoneCallerIsNotHeldForTheInterval() throws Exception {
+		RecordingTransaction transaction = new RecordingTransaction();
+		JmsGroupCommit groupCommit = new JmsGroupCommit(transaction, 16, 1000);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 5; i++) {
+			groupCommit.route("m" + i);
+		}
+		assertTrue(System.currentTimeMillis() - start < 500);
+		assertEquals(Arrays.<Object> asList("m0", "m1", "m2", "m3", "m4"),
+				transaction.committed);
+		assertEquals(5, groupCommit.getCommits());
+	}
+
+	@Test
+	public void callersArrivingDuringACommitShareTheNext() throws Exception {
+		final RecordingTransaction transaction = new RecordingTransaction();
+		transaction.commitMillis = 20;
+		final JmsGroupCommit groupCommit = new JmsGroupCommit(transaction,
+				64, 0);
+		final int threads = 8;
+		final int messages = 20;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger failures = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < messages; i++) {
+							groupCommit.route(thread + ":" + i);
+						}
+					} catch (ActionProcessingException e) {
+						failures.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, failures.get());
+		assertEquals(threads * messages, transaction.committed.size());
+		assertEquals(threads * messages, groupCommit.getCommitted());
+		assertTrue(groupCommit.getCommits() < threads * messages);
+	}
+
+	@Test
+	public void aTransactionHoldsAtMostTheBatchSize() throws Exception {
+		final RecordingTransaction transaction = new RecordingTransaction();
+		transaction.commitMillis = 10;
+		final JmsGroupCommit groupCommit = new JmsGroupCommit(transaction, 2,
+				0);
+		final CountDownLatch done = new CountDownLatch(6);
+		for (int t = 0; t < 6; t++) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < 10; i++) {
+							groupCommit.route("m");
+						}
+					} catch (ActionProcessingException e) {
+						// Counted by the size check below
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(60, transaction.committed.size());
+		for (Integer size : transaction.sizes) {
+			assertTrue(size <= 2);
+		}
+	}
+
+	@Test
+	public void aFailedCommitIsSentAgainOnce() throws Exception {
+		RecordingTransaction transaction = new RecordingTransaction();
+		transaction.failCommits.set(1);
+		JmsGroupCommit groupCommit = new JmsGroupCommit(transaction, 16, 0);
+		groupCommit.route("m");
+		assertEquals(Arrays.<Object> asList("m"), transaction.committed);
+		assertEquals(1, transaction.resets);
+	}
+
+	@Test
+	public void aFailedResendFailsTheCaller() throws Exception {
+		RecordingTransaction transaction = new RecordingTransaction();
+		transaction.failCommits.set(2);
+		JmsGroupCommit groupCommit = new JmsGroupCommit(transaction, 16, 0);
+		try {
+			groupCommit.route("m");
+			fail();
+		} catch (ActionProcessingException expected) {
+			// Reported to the caller
+		}
+		assertTrue(transaction.committed.isEmpty());
+		groupCommit.route("next");
+		assertEquals(Arrays.<Object> asList("next"), transaction.committed);
+	}
+
+	@Test
+	public void aRefusedMessageOnlyFailsItsCaller() throws Exception {
+		RecordingTransaction transaction = new RecordingTransaction();
+		JmsGroupCommit groupCommit = new JmsGroupCommit(transaction, 16, 0);
+		try {
+			groupCommit.route("refused");
+			fail();
+		} catch (ActionProcessingException expected) {
+			// Nothing was sent
+		}
+		groupCommit.route("m");
+		assertEquals(Arrays.<Object> asList("m"), transaction.committed);
+		assertEquals(1, groupCommit.getCommits());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnEmptyBatch() {
+		new JmsGroupCommit(new RecordingTransaction(), 0, 0);
+	}
+}
@@ -0,0 +1,97 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class NormDuplicateFilterTest {
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	private final byte[] line = "<message type=\"chat\" sender=\"a\">hi</message>"
+			.getBytes(US_ASCII);
+
+	@Test
+	public void dropsACopyFromTheSameOrigin() {
+		NormDuplicateFilter filter = new NormDuplicateFilter(64, 10000);
+		assertFalse(filter.isDuplicate(1, line, 0, line.length));
+		assertTrue(filter.isDuplicate(1, line, 0, line.length));
+		assertEquals(2, filter.getChecked());
+		assertEquals(1, filter.getDuplicates());
+	}
+
+	@Test
+	public void keepsTheSameFrameFromAnotherOrigin() {
+		NormDuplicateFilter filter = new NormDuplicateFilter(64, 10000);
+		assertFalse(filter.isDuplicate(1, line, 0, line.length));
+		assertFalse(filter.isDuplicate(2, line, 0, line.length));
+	}
+
+	@Test
+	public void comparesOnlyTheFrameBytes() {
+		NormDuplicateFilter filter = new NormDuplicateFilter(64, 10000);
+		byte[] padded = new byte[line.length + 8];
+		System.arraycopy(line, 0, padded, 4, line.length);
+		assertFalse(filter.isDuplicate(1, line, 0, line.length));
+		assertTrue(filter.isDuplicate(1, padded, 4, line.length));
+		assertFalse(filter.isDuplicate(1, padded, 4, line.length - 1));
+	}
+
+	@Test
+	public void forgetsFramesOutsideTheWindow() {
+		NormDuplicateFilter filter = new NormDuplicateFilter(64, 100);
+		long key = NormDuplicateFilter.key(1, line, 0, line.length);
+		long start = System.nanoTime();
+		assertFalse(filter.isDuplicate(key, start));
+		assertTrue(filter.isDuplicate(key, start
+				+ TimeUnit.MILLISECONDS.toNanos(99)));
+		assertFalse(filter.isDuplicate(key, start
+				+ TimeUnit.MILLISECONDS.toNanos(100)));
+	}
+
+	@Test
+	public void aFullTableForgetsTheOldest() {
+		NormDuplicateFilter filter = new NormDuplicateFilter(8, 10000);
+		long now = System.nanoTime();
+		for (int i = 0; i < 100; i++) {
+			filter.isDuplicate(i + 1, now + i);
+		}
+		assertTrue(filter.getForgotten() > 0);
+		assertTrue(filter.isDuplicate(100, now + 100));
+	}
+
+	@Test
+	public void originsOfNamesAreStable() {
+		assertEquals(NormDuplicateFilter.origin("alice"), NormDuplicateFilter
+				.origin("alice"));
+		assertFalse(NormDuplicateFilter.origin("alice") == NormDuplicateFilter
+				.origin("bob"));
+	}
+}
@@ -0,0 +1,444 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mil.navy.nrl.norm.enums.NormEventType;
+import mil.navy.nrl.norm.enums.NormObjectType;
+
+import org.jboss.soa.esb.Service;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.ListenerTagNames;
+import org.jboss.soa.esb.message.Message;
+import org.jboss.soa.esb.message.format.MessageFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The gateway listener and processor on a {@link MemoryTransport} network,
+ * with remote nodes sending and receiving chat lines as normChat does.
+ * <p/>
+ * The listener's lifecycle steps are called directly, without the ESB's
+ * controller, and what it delivers is collected instead of being handed to
+ * a ServiceInvoker.
+ */
+public class NormGatewayMemoryTest {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final String ADDRESS = "224.1.2.3";
+	private static final int PORT = 6003;
+	private static final int MAX_PACKET_LENGTH = 2048;
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private static final AtomicInteger networks = new AtomicInteger();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final NormFrameEncoder encoder = new NormFrameEncoder(
+			MAX_PACKET_LENGTH);
+	private final List<Message> delivered = Collections
+			.synchronizedList(new ArrayList<Message>());
+	private final List<NormTransport> nodes = new ArrayList<NormTransport>();
+	private final List<NormTransport.Session> sessions = new ArrayList<NormTransport.Session>();
+	private final List<NormSender> senders = new ArrayList<NormSender>();
+
+	private String network;
+	private MemoryTransport memory;
+	private NormGatewayListener listener;
+
+	@Before
+	public void setUp() {
+		network = "gateway-test-" + networks.incrementAndGet();
+		memory = MemoryTransport.acquire(network);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (NormSender sender : senders) {
+			sender.close(5000);
+		}
+		for (NormTransport.Session session : sessions) {
+			session.setSender(null);
+			session.setReceiver(null);
+			session.stopSender();
+			session.stopReceiver();
+			session.close();
+		}
+		if (listener != null) {
+			listener.doStop();
+		}
+		for (NormTransport node : nodes) {
+			node.release();
+		}
+		memory.release();
+	}
+
+	private ConfigTree config(String name) {
+		ConfigTree config = new ConfigTree(name);
+		config.setAttribute(NormSessionConfig.TRANSPORT, "memory");
+		config.setAttribute(NormSessionConfig.MEMORY_NETWORK, network);
+		config.setAttribute(NormSessionConfig.CACHE_DIRECTORY, folder
+				.getRoot().getPath());
+		config.setAttribute(NormGatewayListener.ADDRESS, ADDRESS);
+		config.setAttribute(NormGatewayListener.PORT, String.valueOf(PORT));
+		return config;
+	}
+
+	private void startListener(ConfigTree config) throws Exception {
+		config.setAttribute(ListenerTagNames.TARGET_SERVICE_CATEGORY_TAG,
+				"norm");
+		config.setAttribute(ListenerTagNames.TARGET_SERVICE_NAME_TAG, "chat");
+		listener = new NormGatewayListener(config) {
+			Invoker createInvoker(Service target) {
+				return new Invoker() {
+					public void deliverAsync(Message message) {
+						delivered.add(message);
+					}
+				};
+			}
+		};
+		listener.doInitialise();
+	}
+
+	/* A remote node sending on the group, as normChat does */
+	private NormSender sender(long nodeId) throws Exception {
+		NormTransport node = memory.node(nodeId);
+		nodes.add(node);
+		NormTransport.Session session = node.openSession(ADDRESS, PORT);
+		sessions.add(session);
+		NormSessionConfig sessionConfig = new NormSessionConfig(
+				config("sender"));
+		session.startSender(sessionConfig, (int) nodeId);
+		final NormSender sender = new NormSender(session, session
+				.openStream(sessionConfig.getStreamBufferSize()),
+				NormProcessor.FlushPolicy.IMMEDIATE, sessionConfig
+						.getSegmentSize(), 1, 1024);
+		session.setSender(new NormTransport.EventHandler() {
+			public void onNormEvent(NormTransport.Event event) {
+				sender.onEvent(event);
+			}
+		});
+		sender.start();
+		senders.add(sender);
+		return sender;
+	}
+
+	private String send(NormSender sender, String from, String body)
+			throws Exception {
+		String line = NormChatEnvelope.format("chat", from, body);
+		byte[] bytes = line.getBytes(ISO_8859_1);
+		byte[] frames = encoder.encode(bytes, 0, bytes.length);
+		sender.send(frames, 0, frames.length, true);
+		return line;
+	}
+
+	private void awaitDelivered(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (delivered.size() < count
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, delivered.size());
+	}
+
+	/* Waits until nothing more has been delivered for a while */
+	private void awaitQuiet() throws InterruptedException {
+		int last = -1;
+		while (delivered.size() != last) {
+			last = delivered.size();
+			Thread.sleep(300);
+		}
+	}
+
+	private List<String> bodies(String from) {
+		List<String> bodies = new ArrayList<String>();
+		synchronized (delivered) {
+			for (Message message : delivered) {
+				if (from == null
+						|| from.equals(message.getProperties().getProperty(
+								NormGatewayListener.CHAT_SENDER_PROPERTY))) {
+					bodies.add((String) message.getBody().get());
+				}
+			}
+		}
+		return bodies;
+	}
+
+	private static String body(int i, int length) {
+		StringBuilder body = new StringBuilder().append(i).append(' ');
+		while (body.length() < length) {
+			body.append('x');
+		}
+		return body.toString();
+	}
+
+	@Test
+	public void deliversEveryLineInOrder() throws Exception {
+		startListener(config("listener"));
+		NormSender sender = sender(10);
+		List<String> sent = new ArrayList<String>();
+		for (int i = 0; i < 200; i++) {
+			// Every tenth line needs fragments
+			sent.add(send(sender, "alice", body(i, i % 10 == 0 ? 5000 : 40)));
+		}
+		awaitDelivered(200);
+		assertEquals(sent, bodies(null));
+		Message first = delivered.get(0);
+		assertEquals("chat", first.getProperties().getProperty(
+				NormGatewayListener.CHAT_TYPE_PROPERTY));
+		assertEquals("alice", first.getProperties().getProperty(
+				NormGatewayListener.CHAT_SENDER_PROPERTY));
+	}
+
+	@Test
+	public void publishesTheQueueCounters() throws Exception {
+		startListener(config("listener"));
+		NormSender sender = sender(10);
+		send(sender, "alice", "hello");
+		awaitDelivered(1);
+		StringBuilder text = new StringBuilder();
+		NormMetrics.getInstance().writeText(text);
+		String label = "{service=\"norm:chat\"}";
+		assertTrue(text.indexOf("norm_delivery_queue_offered" + label
+				+ " 1") >= 0);
+		assertTrue(text.indexOf("norm_delivery_queue_dropped_oldest" + label
+				+ " 0") >= 0);
+		assertTrue(text.indexOf("norm_delivery_queue_dropped_newest" + label
+				+ " 0") >= 0);
+		assertTrue(text.indexOf("norm_delivery_queue_blocked" + label
+				+ " 0") >= 0);
+	}
+
+	@Test
+	public void closeCompletesEverySendItAccepted() throws Exception {
+		final NormSender sender = sender(10);
+		final List<NormSender.TxRequest> accepted = Collections
+				.synchronizedList(new ArrayList<NormSender.TxRequest>());
+		final CountDownLatch stopped = new CountDownLatch(4);
+		final byte[] frames = encoder.encode(new byte[64], 0, 64);
+		for (int t = 0; t < 4; t++) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							accepted.add(sender.send(frames, 0,
+									frames.length, true));
+						}
+					} catch (IllegalStateException closed) {
+						// Refused once close() started
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						stopped.countDown();
+					}
+				}
+			}).start();
+		}
+		Thread.sleep(50);
+		sender.close(5000);
+		assertTrue(stopped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		assertFalse(accepted.isEmpty());
+		synchronized (accepted) {
+			for (NormSender.TxRequest request : accepted) {
+				assertTrue(request.isDone());
+			}
+		}
+		try {
+			send(sender, "alice", "late");
+			fail();
+		} catch (IllegalStateException expected) {
+			// Closed
+		}
+	}
+
+	@Test
+	public void lossDropsWholeLinesOnly() throws Exception {
+		startListener(config("listener"));
+		NormSender sender = sender(10);
+		memory.setConditions(new MemoryTransport.Conditions(0.05, 0, 0, 0));
+		List<String> sent = new ArrayList<String>();
+		for (int i = 0; i < 300; i++) {
+			sent.add(send(sender, "alice", body(i, i % 10 == 0 ? 5000 : 40)));
+		}
+		awaitQuiet();
+		assertTrue(memory.getSegmentsLost() > 0);
+		List<String> received = bodies(null);
+		assertTrue(received.size() < sent.size());
+		assertTrue(received.size() > sent.size() / 2);
+		assertInOrder(sent, received);
+
+		// The stream picks up again at the next line
+		memory.setConditions(MemoryTransport.PERFECT);
+		int before = delivered.size();
+		List<String> after = new ArrayList<String>();
+		for (int i = 300; i < 310; i++) {
+			after.add(send(sender, "alice", body(i, 40)));
+		}
+		awaitDelivered(before + 10);
+		assertEquals(after, bodies(null).subList(before, before + 10));
+	}
+
+	@Test
+	public void reorderingKeepsEachSendersOrder() throws Exception {
+		startListener(config("listener"));
+		NormSender alice = sender(10);
+		NormSender bob = sender(11);
+		memory.setConditions(new MemoryTransport.Conditions(0, 0.3, 20, 0));
+		List<String> fromAlice = new ArrayList<String>();
+		List<String> fromBob = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			fromAlice.add(send(alice, "alice", body(i, 40)));
+			fromBob.add(send(bob, "bob", body(i, 40)));
+		}
+		awaitDelivered(200);
+		assertEquals(fromAlice, bodies("alice"));
+		assertEquals(fromBob, bodies("bob"));
+	}
+
+	@Test
+	public void keepsRelayedCopiesByDefault() throws Exception {
+		startListener(config("listener"));
+		NormSender origin = sender(10);
+		NormSender relay = sender(11);
+		send(origin, "alice", "hello");
+		send(relay, "alice", "hello");
+		awaitDelivered(2);
+	}
+
+	@Test
+	public void dropsRelayedCopiesInsideTheWindow() throws Exception {
+		ConfigTree config = config("listener");
+		config.setAttribute(NormGatewayListener.DEDUP_WINDOW, "10000");
+		startListener(config);
+		NormSender origin = sender(10);
+		NormSender relay = sender(11);
+		String line = send(origin, "alice", "hello");
+		awaitDelivered(1);
+		send(relay, "alice", "hello");
+		String next = send(relay, "alice", "next");
+		awaitDelivered(2);
+		awaitQuiet();
+		assertEquals(2, delivered.size());
+		assertEquals(line, bodies(null).get(0));
+		assertEquals(next, bodies(null).get(1));
+	}
+
+	@Test
+	public void processorReachesRemoteReceivers() throws Exception {
+		NormTransport node = memory.node(20);
+		nodes.add(node);
+		NormTransport.Session session = node.openSession(ADDRESS, PORT);
+		sessions.add(session);
+		Receiver receiver = new Receiver();
+		session.setReceiver(receiver);
+		session.startReceiver(new NormSessionConfig(config("receiver")));
+
+		NormProcessor processor = new NormProcessor(config("processor"));
+		processor.initialise();
+		String hello = NormChatEnvelope.format("chat", "gateway", "hello");
+		Message message = MessageFactory.getInstance().getMessage();
+		message.getBody().add(hello);
+		processor.process(message);
+		processor.destroy();
+
+		receiver.await(3);
+		List<String> lines = receiver.lines();
+		assertTrue(lines.get(0).contains("connect"));
+		assertEquals(hello, lines.get(1));
+		assertTrue(lines.get(2).contains("disconnect"));
+	}
+
+	/* Each received line is one that was sent, in the order sent */
+	private static void assertInOrder(List<String> sent, List<String> received) {
+		int next = 0;
+		for (String line : received) {
+			int index = sent.subList(next, sent.size()).indexOf(line);
+			assertTrue("Unexpected or out of order: " + line, index >= 0);
+			next += index + 1;
+		}
+	}
+
+	/* Decodes the chat lines arriving at a remote node */
+	private static final class Receiver implements
+			NormTransport.EventHandler, NormFrameDecoder.FrameHandler {
+		private final Map<NormTransport.Received, NormFrameDecoder> decoders = new HashMap<NormTransport.Received, NormFrameDecoder>();
+		private final Map<NormFrameDecoder, NormReassembler.Stream> frames = new HashMap<NormFrameDecoder, NormReassembler.Stream>();
+		private final NormReassembler reassembler = new NormReassembler(4,
+				1024 * 1024, 30000);
+		private final List<String> lines = new ArrayList<String>();
+
+		public void onNormEvent(NormTransport.Event event) {
+			NormTransport.Received object = event.getObject();
+			if (event.getType() != NormEventType.NORM_RX_OBJECT_UPDATED
+					|| object.getType() != NormObjectType.NORM_OBJECT_STREAM) {
+				return;
+			}
+			NormFrameDecoder decoder = decoders.get(object);
+			if (decoder == null) {
+				decoder = new NormFrameDecoder(object.getStream(),
+						MAX_PACKET_LENGTH);
+				decoders.put(object, decoder);
+				frames.put(decoder, reassembler.open(this));
+			}
+			decoder.decode(frames.get(decoder));
+		}
+
+		public synchronized void onFrame(byte[] buffer, int offset,
+				int length) {
+			lines.add(new String(buffer, offset, length, ISO_8859_1));
+			notifyAll();
+		}
+
+		synchronized void await(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			long remaining = TIMEOUT_MILLIS;
+			while (lines.size() < count && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			assertEquals(count, lines.size());
+		}
+
+		synchronized List<String> lines() {
+			return new ArrayList<String>(lines);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NormReassemblerTest {
+
+	private static final int MAX_PACKET_LENGTH = 64;
+
+	private final NormFrameEncoder encoder = new NormFrameEncoder(
+			MAX_PACKET_LENGTH);
+	private final List<byte[]> delivered = new ArrayList<byte[]>();
+	private final NormFrameDecoder.FrameHandler collector = new NormFrameDecoder.FrameHandler() {
+		public void onFrame(byte[] buffer, int offset, int length) {
+			delivered.add(Arrays.copyOfRange(buffer, offset, offset + length));
+		}
+	};
+
+	private NormReassembler reassembler;
+	private NormReassembler.Stream stream;
+
+	@Before
+	public void setUp() {
+		reassembler = new NormReassembler(4, 4096, 30000);
+		stream = reassembler.open(collector);
+	}
+
+	@Test
+	public void passesWholeFramesThrough() {
+		byte[] line = payload(20, 'a');
+		feed(frames(line));
+		assertEquals(1, delivered.size());
+		assertArrayEquals(line, delivered.get(0));
+		assertEquals(0, reassembler.getFragments());
+	}
+
+	@Test
+	public void joinsFragments() {
+		byte[] line = payload(500, 'b');
+		List<byte[]> fragments = frames(line);
+		assertTrue(fragments.size() > 1);
+		feed(fragments);
+		assertEquals(1, delivered.size());
+		assertArrayEquals(line, delivered.get(0));
+		assertEquals(fragments.size(), reassembler.getFragments());
+		assertEquals(1, reassembler.getReassembled());
+		assertEquals(0, reassembler.getActive());
+	}
+
+	@Test
+	public void dropsAMessageWithALostFragment() {
+		List<byte[]> lossy = frames(payload(500, 'c'));
+		lossy.remove(lossy.size() / 2);
+		byte[] next = payload(300, 'd');
+		feed(lossy);
+		feed(frames(next));
+		assertEquals(1, delivered.size());
+		assertArrayEquals(next, delivered.get(0));
+		// The message, then each fragment left over after the gap
+		assertTrue(reassembler.getIncomplete() >= 1);
+		assertEquals(0, reassembler.getActive());
+	}
+
+	@Test
+	public void dropsAMessageWithReorderedFragments() {
+		List<byte[]> reordered = frames(payload(500, 'e'));
+		Collections.swap(reordered, 1, 2);
+		byte[] next = payload(20, 'f');
+		feed(reordered);
+		feed(frames(next));
+		assertEquals(1, delivered.size());
+		assertArrayEquals(next, delivered.get(0));
+		assertTrue(reassembler.getIncomplete() >= 1);
+		assertEquals(0, reassembler.getActive());
+	}
+
+	@Test
+	public void skipsAMessageJoinedPartWay() {
+		List<byte[]> late = frames(payload(500, 'g'));
+		late.remove(0);
+		feed(late);
+		assertEquals(0, delivered.size());
+		assertEquals(0, reassembler.getActive());
+	}
+
+	@Test
+	public void dropsMessagesOverTheLimit() {
+		reassembler = new NormReassembler(4, 200, 30000);
+		stream = reassembler.open(collector);
+		feed(frames(payload(500, 'h')));
+		assertEquals(0, delivered.size());
+		assertEquals(1, reassembler.getTooLarge());
+	}
+
+	@Test
+	public void boundsMessagesInProgress() {
+		reassembler = new NormReassembler(1, 4096, 30000);
+		NormReassembler.Stream first = reassembler.open(collector);
+		NormReassembler.Stream second = reassembler.open(collector);
+		List<byte[]> a = frames(payload(500, 'i'));
+		List<byte[]> b = frames(payload(500, 'j'));
+		first.onFrame(a.get(0), 0, a.get(0).length);
+		second.onFrame(b.get(0), 0, b.get(0).length);
+		assertEquals(1, reassembler.getPoolExhausted());
+		for (int i = 1; i < a.size(); i++) {
+			first.onFrame(a.get(i), 0, a.get(i).length);
+		}
+		assertEquals(1, delivered.size());
+	}
+
+	@Test
+	public void closeDropsTheMessageInProgress() {
+		List<byte[]> partial = frames(payload(500, 'k'));
+		feed(partial.subList(0, 2));
+		assertEquals(1, reassembler.getActive());
+		assertTrue(reassembler.close(stream));
+		assertEquals(0, reassembler.getActive());
+		assertEquals(1, reassembler.getIncomplete());
+	}
+
+	private static byte[] payload(int length, char fill) {
+		byte[] payload = new byte[length];
+		Arrays.fill(payload, (byte) fill);
+		payload[length - 1] = '\n';
+		return payload;
+	}
+
+	/* The frame payloads the encoder writes for the line, without headers */
+	private List<byte[]> frames(byte[] line) {
+		byte[] encoded = encoder.encode(line, 0, line.length);
+		List<byte[]> frames = new ArrayList<byte[]>();
+		int position = 0;
+		while (position < encoded.length) {
+			int length = ((encoded[position] & 0xFF) << 8)
+					| (encoded[position + 1] & 0xFF);
+			frames.add(Arrays.copyOfRange(encoded, position
+					+ NormFrameDecoder.HEADER_LENGTH, position + length));
+			position += length;
+		}
+		return frames;
+	}
+
+	private void feed(List<byte[]> frames) {
+		for (byte[] frame : frames) {
+			stream.onFrame(frame, 0, frame.length);
+		}
+	}
+}
@@ -0,0 +1,231 @@
+/**
+* Copyright (c) 2010 Dozer Software LLC.
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+**/
+
+package com.dozersoftware.norm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NormSpoolTest {
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final int SEGMENT_SIZE = 4096;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<String> replayed = Collections
+			.synchronizedList(new ArrayList<String>());
+	private NormSpool spool;
+
+	@After
+	public void tearDown() {
+		if (spool != null) {
+			spool.close();
+		}
+	}
+
+	private NormSpool open(long maxBytes) throws Exception {
+		return new NormSpool(folder.getRoot(), SEGMENT_SIZE, maxBytes, 10, 10);
+	}
+
+	private static void append(NormSpool spool, String record)
+			throws Exception {
+		byte[] bytes = record.getBytes(US_ASCII);
+		assertTrue(spool.append(bytes, 0, bytes.length));
+	}
+
+	private final NormSpool.Handler collector = new NormSpool.Handler() {
+		public boolean replay(byte[] buffer, int offset, int length) {
+			replayed.add(new String(buffer, offset, length, US_ASCII));
+			return true;
+		}
+	};
+
+	private void awaitReplayed(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (replayed.size() < count
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, replayed.size());
+	}
+
+	private List<String> records(int from, int to) {
+		List<String> records = new ArrayList<String>();
+		for (int i = from; i < to; i++) {
+			records.add(record(i));
+		}
+		return records;
+	}
+
+	/* About 100 bytes, so a few hundred fill several segments */
+	private static String record(int i) {
+		StringBuilder record = new StringBuilder("record ").append(i)
+				.append(' ');
+		while (record.length() < 100) {
+			record.append('x');
+		}
+		return record.toString();
+	}
+
+	private File[] segmentFiles() {
+		return folder.getRoot().listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().endsWith(".spool");
+			}
+		});
+	}
+
+	@Test
+	public void replaysInOrderAcrossSegments() throws Exception {
+		spool = open(1024 * 1024);
+		spool.start(collector);
+		for (int i = 0; i < 200; i++) {
+			append(spool, record(i));
+		}
+		awaitReplayed(200);
+		assertEquals(records(0, 200), replayed);
+		assertEquals(0, spool.getBacklog());
+		assertFalse(spool.hasBacklog());
+		assertEquals(1, segmentFiles().length);
+	}
+
+	@Test
+	public void retriesARefusedRecordBeforeTheNext() throws Exception {
+		final AtomicInteger refusals = new AtomicInteger(3);
+		spool = open(1024 * 1024);
+		spool.start(new NormSpool.Handler() {
+			public boolean replay(byte[] buffer, int offset, int length) {
+				if (refusals.getAndDecrement() > 0) {
+					return false;
+				}
+				return collector.replay(buffer, offset, length);
+			}
+		});
+		for (int i = 0; i < 5; i++) {
+			append(spool, record(i));
+		}
+		awaitReplayed(5);
+		assertEquals(records(0, 5), replayed);
+	}
+
+	@Test
+	public void recoversRecordsAfterARestart() throws Exception {
+		spool = open(1024 * 1024);
+		for (int i = 0; i < 100; i++) {
+			append(spool, record(i));
+		}
+		spool.close();
+
+		spool = open(1024 * 1024);
+		assertEquals(100, spool.getBacklog());
+		spool.start(collector);
+		awaitReplayed(100);
+		assertEquals(records(0, 100), replayed);
+	}
+
+	@Test
+	public void carriesOnFromTheCheckpoint() throws Exception {
+		final AtomicInteger accepted = new AtomicInteger(40);
+		spool = open(1024 * 1024);
+		spool.start(new NormSpool.Handler() {
+			public boolean replay(byte[] buffer, int offset, int length) {
+				if (accepted.getAndDecrement() <= 0) {
+					return false;
+				}
+				return collector.replay(buffer, offset, length);
+			}
+		});
+		for (int i = 0; i < 100; i++) {
+			append(spool, record(i));
+		}
+		awaitReplayed(40);
+		spool.close();
+		replayed.clear();
+
+		spool = open(1024 * 1024);
+		assertEquals(60, spool.getBacklog());
+		spool.start(collector);
+		awaitReplayed(60);
+		assertEquals(records(40, 100), replayed);
+	}
+
+	@Test
+	public void refusesRecordsBeyondTheLimit() throws Exception {
+		spool = open(2 * SEGMENT_SIZE);
+		byte[] record = record(0).getBytes(US_ASCII);
+		int accepted = 0;
+		while (spool.append(record, 0, record.length)) {
+			accepted++;
+		}
+		assertTrue(accepted > 0);
+		assertTrue(accepted * record.length <= 2 * SEGMENT_SIZE);
+		assertEquals(1, spool.getDropped());
+		assertEquals(accepted, spool.getBacklog());
+	}
+
+	@Test
+	public void aTornRecordEndsTheSegment() throws Exception {
+		spool = open(1024 * 1024);
+		for (int i = 0; i < 3; i++) {
+			append(spool, record(i));
+		}
+		spool.close();
+		spool = null;
+
+		File[] files = segmentFiles();
+		assertEquals(1, files.length);
+		RandomAccessFile segment = new RandomAccessFile(files[0], "rw");
+		try {
+			// A byte in the body of the last record
+			long position = 2 * (8 + record(0).length()) + 8 + 10;
+			segment.seek(position);
+			int value = segment.read();
+			segment.seek(position);
+			segment.write(value ^ 0xFF);
+		} finally {
+			segment.close();
+		}
+
+		spool = open(1024 * 1024);
+		assertEquals(2, spool.getBacklog());
+		spool.start(collector);
+		awaitReplayed(2);
+		assertEquals(records(0, 2), replayed);
+	}
+}